@@ -0,0 +1,120 @@
+package talkbox.client;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import talkbox.lib.*;
+
+/**
+ * Measures how long a message takes to reach another Client and come back,
+ * through a server running at {@link Backend#hostname}. One Backend sends
+ * numbered pings one at a time, the other answers each with a pong, and the
+ * round trips are printed as percentiles. Both Backends run in this process,
+ * so they share a clock.
+ * <p>
+ * Usage: EchoLatencyBenchmark [pings] [warmup pings]
+ */
+public class EchoLatencyBenchmark {
+	/**
+	 * How long to wait for a pong before giving up, in milliseconds.
+	 */
+	public static final long timeoutMillis = 5000;
+
+	public static void main(String[] args) throws InterruptedException {
+		int pings = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		ArrayBlockingQueue<String> pongs = new ArrayBlockingQueue<>(16);
+		CountDownLatch connected = new CountDownLatch(2);
+		Backend pinger = new Backend(new Listener(connected, text -> {
+			if(text.startsWith("pong ")) {
+				pongs.offer(text.substring(5));
+			}
+		}));
+		Backend[] ponger = new Backend[1];
+		ponger[0] = new Backend(new Listener(connected, text -> {
+			if(text.startsWith("ping ")) {
+				ponger[0].sendMessage("pong " + text.substring(5));
+			}
+		}));
+		pinger.changeName("pinger", false);
+		ponger[0].changeName("ponger", false);
+		pinger.start();
+		ponger[0].start();
+		if(!connected.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			System.err.println("No server at " + Backend.hostname + ":" + Backend.port);
+			System.exit(1);
+		}
+		long[] nanos = new long[pings];
+		for(int i = -warmup; i < pings; i++) {
+			long start = System.nanoTime();
+			pinger.sendMessage("ping " + i);
+			String pong;
+			do {
+				pong = pongs.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+				if(pong == null) {
+					System.err.println("Ping " + i + " was not answered");
+					System.exit(1);
+				}
+			} while(!pong.equals(Integer.toString(i)));
+			if(i >= 0) {
+				nanos[i] = System.nanoTime() - start;
+			}
+		}
+		pinger.stop();
+		ponger[0].stop();
+		Arrays.sort(nanos);
+		System.out.printf("%d round trips: p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n", pings,
+				percentile(nanos, 0.5), percentile(nanos, 0.9), percentile(nanos, 0.99), nanos[pings - 1] / 1e6);
+		System.exit(0);
+	}
+
+	/**
+	 * @param sorted Times in nanoseconds, in order.
+	 * @param p The fraction of times that should be no longer.
+	 * @return The time in milliseconds.
+	 */
+	private static double percentile(long[] sorted, double p) {
+		int i = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+
+	/**
+	 * Passes the text of each message received on, and only uses the roster
+	 * to tell when it has connected.
+	 */
+	private static class Listener extends ChatWindowController {
+		private final CountDownLatch connected;
+		private final Consumer<String> text;
+		private boolean counted = false;
+
+		private Listener(CountDownLatch connected, Consumer<String> text) {
+			this.connected = connected;
+			this.text = text;
+		}
+
+		@Override
+		public void receiveMessage(Message m) {
+			if(m.text != null) {
+				text.accept(m.text);
+			}
+		}
+
+		@Override
+		public void addOnline(Client add) {
+		}
+
+		@Override
+		public void removeOnline(Client remove) {
+		}
+
+		@Override
+		public void setOnlineNames(Client[] names) {
+			if(!counted) {
+				counted = true;
+				connected.countDown();
+			}
+		}
+	}
+}
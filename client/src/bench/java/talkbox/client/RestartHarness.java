@@ -0,0 +1,173 @@
+package talkbox.client;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import talkbox.lib.*;
+import talkbox.server.Server;
+
+/**
+ * Checks that no message is lost or received twice when the server is killed
+ * and restarted under load. A Server runs in this process, and Backends
+ * connect to it and send numbered messages to everyone. While they send, the
+ * Server is stopped, which drops every connection, and a new one is started
+ * on the same port that knows nothing of their sessions. Once the Backends
+ * have reconnected and the sending is done, every Backend must have received
+ * every message from the others exactly once.
+ * <p>
+ * A Backend that is away can only be caught up on the last
+ * {@link Server#recentLimit} messages, so the Backends send slowly enough that
+ * fewer than that are sent while one waits to reconnect.
+ * <p>
+ * Usage: RestartHarness [clients] [messages per client] [restarts]
+ */
+public class RestartHarness {
+	/**
+	 * How long to wait for every message to arrive once they are all sent,
+	 * in milliseconds.
+	 */
+	public static final long timeoutMillis = 60000;
+	/**
+	 * How long the server stays down each time it is killed, in milliseconds.
+	 */
+	public static final long downMillis = 300;
+	/**
+	 * How long each Backend waits after sending a message, in milliseconds.
+	 */
+	public static final long sendPauseMillis = 10;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int restarts = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		Server server = new Server(0);
+		int port = server.port;
+		server.start();
+		CountDownLatch connected = new CountDownLatch(clients);
+		Backend[] backends = new Backend[clients];
+		Listener[] listeners = new Listener[clients];
+		for(int i = 0; i < clients; i++) {
+			listeners[i] = new Listener(i, connected);
+			backends[i] = new Backend(listeners[i], "localhost", port);
+			backends[i].changeName("load-" + i, false);
+			backends[i].start();
+		}
+		if(!connected.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			System.err.println("The Backends did not connect");
+			System.exit(1);
+		}
+		AtomicInteger sending = new AtomicInteger(clients);
+		for(int i = 0; i < clients; i++) {
+			Backend b = backends[i];
+			int sender = i;
+			new Thread(() -> {
+				for(int m = 0; m < messages; m++) {
+					b.sendMessage("load " + sender + " " + m);
+					pause(sendPauseMillis);
+				}
+				sending.decrementAndGet();
+			}, "sender-" + i).start();
+		}
+		//Spread the restarts over the time the messages take to send.
+		long sendMillis = messages * sendPauseMillis;
+		for(int r = 0; r < restarts; r++) {
+			pause(sendMillis / (restarts + 1));
+			server.stop();
+			server.join();
+			System.out.println("Server killed");
+			pause(downMillis);
+			server = new Server(port);
+			server.start();
+			System.out.println("Server restarted");
+		}
+		while(sending.get() > 0) {
+			pause(50);
+		}
+		int expected = (clients - 1) * messages;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(System.currentTimeMillis() < deadline && !allReceived(listeners, expected)) {
+			pause(100);
+		}
+		boolean ok = true;
+		for(Listener l : listeners) {
+			int missing = 0;
+			for(int sender = 0; sender < clients; sender++) {
+				for(int m = 0; sender != l.index && m < messages; m++) {
+					if(!l.counts.containsKey("load " + sender + " " + m)) {
+						missing++;
+					}
+				}
+			}
+			int duplicated = l.duplicates.get();
+			System.out.printf("load-%d: %d of %d received, %d missing, %d duplicated%n", l.index,
+					l.counts.size(), expected, missing, duplicated);
+			ok &= missing == 0 && duplicated == 0;
+		}
+		for(Backend b : backends) {
+			b.stop();
+		}
+		server.stop();
+		System.out.println(ok ? "PASS" : "FAIL");
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean allReceived(Listener[] listeners, int expected) {
+		for(Listener l : listeners) {
+			if(l.counts.size() < expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch(InterruptedException ex) {
+		}
+	}
+
+	/**
+	 * Counts each load message received from the other Backends.
+	 */
+	private static class Listener extends ChatWindowController {
+		private final int index;
+		private final CountDownLatch connected;
+		private final ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<>();
+		private final AtomicInteger duplicates = new AtomicInteger();
+		private boolean counted = false;
+
+		private Listener(int index, CountDownLatch connected) {
+			this.index = index;
+			this.connected = connected;
+		}
+
+		@Override
+		public void receiveMessage(Message m) {
+			if(m.text == null || !m.text.startsWith("load ") || m.text.startsWith("load " + index + " ")) {
+				return;
+			}
+			if(counts.merge(m.text, 1, Integer::sum) > 1) {
+				duplicates.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void addOnline(Client add) {
+		}
+
+		@Override
+		public void removeOnline(Client remove) {
+		}
+
+		@Override
+		public void setOnlineNames(Client[] names) {
+			if(!counted) {
+				counted = true;
+				connected.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package talkbox.client;
+
+import java.util.ArrayList;
+import java.util.Random;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import talkbox.lib.*;
+
+/**
+ * Measures a presence storm: Clients joining, leaving and being renamed in a
+ * roster of thousands. The same random events are applied three ways: to a
+ * plain list the way the roster used to be kept, finding each Client with
+ * indexOf and renaming it with a remove and an add at the same index; to a
+ * RosterModel one event at a time; and to a RosterModel a frame at a time, the
+ * way ChatWindowController collects them for its UiPulse flusher. The changes
+ * to each list are counted, as each one would make the ListView lay out again.
+ * <p>
+ * Usage: RosterBenchmark [clients] [events] [events per frame]
+ */
+public class RosterBenchmark {
+	private static final int join = 0;
+	private static final int leave = 1;
+	private static final int rename = 2;
+
+	public static void main(String[] args) {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		int perFrame = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		Client[] everyone = new Client[clients];
+		for(int i = 0; i < clients; i++) {
+			everyone[i] = new Client(Client.createID());
+			everyone[i].setName("guest-" + i);
+		}
+		int[] kinds = new int[events];
+		Client[] subjects = new Client[events];
+		storm(everyone, kinds, subjects);
+		for(int round = 0; round < 3; round++) {
+			oldList(everyone, kinds, subjects, perFrame);
+			oneAtATime(everyone, kinds, subjects, perFrame);
+			perFrame(everyone, kinds, subjects, perFrame);
+		}
+	}
+
+	/**
+	 * Make the events. Every Client starts online, and about as many join as
+	 * leave, so the roster stays near its size.
+	 */
+	private static void storm(Client[] everyone, int[] kinds, Client[] subjects) {
+		Client[] online = everyone.clone();
+		Client[] offline = new Client[everyone.length];
+		int on = everyone.length;
+		int off = 0;
+		Random random = new Random(1);
+		for(int i = 0; i < kinds.length; i++) {
+			int kind = random.nextInt(3);
+			if(kind == join && off == 0 || kind == leave && on == 0) {
+				kind = rename;
+			}
+			if(kind == join) {
+				int j = random.nextInt(off);
+				Client c = offline[j];
+				offline[j] = offline[--off];
+				online[on++] = c;
+				subjects[i] = c;
+			} else if(kind == leave) {
+				int j = random.nextInt(on);
+				Client c = online[j];
+				online[j] = online[--on];
+				offline[off++] = c;
+				subjects[i] = c;
+			} else {
+				int j = random.nextInt(on);
+				//A renamed Client is read as a new Client with the same id.
+				online[j] = online[j].renamed("renamed-" + i);
+				subjects[i] = online[j];
+			}
+			kinds[i] = kind;
+		}
+	}
+
+	private static void oldList(Client[] everyone, int[] kinds, Client[] subjects, int perFrame) {
+		ObservableList<Client> items = FXCollections.observableArrayList(everyone);
+		long[] changes = new long[1];
+		items.addListener(o -> changes[0]++);
+		ArrayList<Runnable> queued = new ArrayList<>();
+		long start = System.nanoTime();
+		for(int i = 0; i < kinds.length; i++) {
+			Client c = subjects[i];
+			if(kinds[i] == leave) {
+				queued.add(() -> items.remove(c));
+			} else {
+				queued.add(() -> {
+					int at = items.indexOf(c);
+					if(at >= 0) {
+						items.remove(c);
+						items.add(at, c);
+					} else {
+						items.add(c);
+					}
+				});
+			}
+			if(queued.size() == perFrame || i == kinds.length - 1) {
+				for(Runnable r : queued) {
+					r.run();
+				}
+				queued.clear();
+			}
+		}
+		report("old list", kinds.length, items.size(), changes[0], System.nanoTime() - start);
+	}
+
+	private static void oneAtATime(Client[] everyone, int[] kinds, Client[] subjects, int perFrame) {
+		ObservableList<Client> items = FXCollections.observableArrayList();
+		RosterModel roster = new RosterModel(items);
+		for(Client c : everyone) {
+			roster.put(c);
+		}
+		long[] changes = new long[1];
+		items.addListener(o -> changes[0]++);
+		ArrayList<Runnable> queued = new ArrayList<>();
+		long start = System.nanoTime();
+		for(int i = 0; i < kinds.length; i++) {
+			Client c = subjects[i];
+			if(kinds[i] == leave) {
+				queued.add(() -> roster.remove(c));
+			} else {
+				queued.add(() -> roster.put(c));
+			}
+			if(queued.size() == perFrame || i == kinds.length - 1) {
+				for(Runnable r : queued) {
+					r.run();
+				}
+				queued.clear();
+			}
+		}
+		report("RosterModel, one at a time", kinds.length, roster.size(), changes[0], System.nanoTime() - start);
+	}
+
+	private static void perFrame(Client[] everyone, int[] kinds, Client[] subjects, int perFrame) {
+		ObservableList<Client> items = FXCollections.observableArrayList();
+		RosterModel roster = new RosterModel(items);
+		for(Client c : everyone) {
+			roster.put(c);
+		}
+		long[] changes = new long[1];
+		items.addListener(o -> changes[0]++);
+		LongMap<Client> joins = new LongMap<>();
+		LongMap<Client> leaves = new LongMap<>();
+		long start = System.nanoTime();
+		for(int i = 0; i < kinds.length; i++) {
+			Client c = subjects[i];
+			if(kinds[i] == leave) {
+				joins.remove(c.id);
+				leaves.put(c.id, c);
+			} else {
+				leaves.remove(c.id);
+				joins.put(c.id, c);
+			}
+			if((i + 1) % perFrame == 0 || i == kinds.length - 1) {
+				roster.apply(joins.values(), leaves.values());
+				joins.clear();
+				leaves.clear();
+			}
+		}
+		report("RosterModel, per frame", kinds.length, roster.size(), changes[0], System.nanoTime() - start);
+	}
+
+	private static void report(String name, int events, int online, long changes, long nanos) {
+		System.out.printf("%s: %d events, %d online at the end, %d list changes, %.1f ms%n", name, events,
+				online, changes, nanos / 1e6);
+	}
+}
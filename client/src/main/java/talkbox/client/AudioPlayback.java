@@ -0,0 +1,438 @@
+package talkbox.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import talkbox.lib.*;
+
+/**
+ * Plays AudioMessages straight from memory. Each AudioMessage is decoded to
+ * PCM once, from a WAV file or with its AudioCodec, and the decoded clips are
+ * cached, bounded by their size. Output lines are kept open in a small pool
+ * between plays instead of being opened for every clip. Each message has one
+ * Player, which keeps its position and whether it is playing however often the
+ * cell showing it is reused. Audio the server only sent a reference to is
+ * fetched when it is first played. Players tell their controls about changes
+ * through a UiPulse, at most once a frame.
+ */
+public class AudioPlayback {
+	/**
+	 * The default number of decoded PCM bytes to keep.
+	 */
+	public static final long defaultMaxBytes = 1024L * 1024 * 32;
+	/**
+	 * The most open lines kept for later plays.
+	 */
+	public static final int maxIdleLines = 2;
+	/**
+	 * The most Players kept. Players that are playing are never dropped.
+	 */
+	public static final int maxPlayers = 256;
+	/**
+	 * How much audio is written to a line at a time, in milliseconds. This is
+	 * also how often a Player has a new position to report.
+	 */
+	public static final int chunkMillis = 50;
+	/**
+	 * How long to wait for the audio of a reference to be fetched.
+	 */
+	public static final long fetchTimeoutMillis = 30000;
+	/**
+	 * The playback service shared by everything in the client.
+	 */
+	public static final AudioPlayback shared = new AudioPlayback(defaultMaxBytes);
+	private final long maxBytes;
+	private final LinkedHashMap<MessageKey, Clip> clips;
+	private long bytes = 0;
+	private final LinkedHashMap<MessageKey, Player> players;
+	private final ArrayDeque<SourceDataLine> idle;
+	private final ExecutorService threads;
+	private volatile UiPulse pulse;
+
+	/**
+	 * Set the UiPulse that Players tell their controls about changes through.
+	 * Until one is set, each change is posted to the FX thread on its own.
+	 *
+	 * @param pulse The UiPulse.
+	 */
+	public void setPulse(UiPulse pulse) {
+		this.pulse = pulse;
+	}
+
+	/**
+	 * Create a new AudioPlayback.
+	 *
+	 * @param maxBytes The most decoded PCM bytes to keep.
+	 */
+	public AudioPlayback(long maxBytes) {
+		this.maxBytes = maxBytes;
+		clips = new LinkedHashMap<>(16, 0.75f, true);
+		players = new LinkedHashMap<>(16, 0.75f, true);
+		idle = new ArrayDeque<>();
+		threads = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "audio-playback");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * A decoded AudioMessage.
+	 */
+	public static class Clip {
+		public final AudioFormat format;
+		public final byte[] pcm;
+
+		private Clip(AudioFormat format, byte[] pcm) {
+			this.format = format;
+			this.pcm = pcm;
+		}
+
+		/**
+		 * @return The length of the clip in seconds.
+		 */
+		public double getSeconds() {
+			return pcm.length / (double)format.getFrameSize() / format.getFrameRate();
+		}
+	}
+
+	/**
+	 * Get the Player of an AudioMessage, making one if it has none.
+	 *
+	 * @param am The AudioMessage.
+	 * @return Its Player.
+	 */
+	public synchronized Player player(AudioMessage am) {
+		MessageKey key = MessageKey.of(am);
+		Player p = players.get(key);
+		if(p == null) {
+			p = new Player(am);
+			players.put(key, p);
+			Iterator<Player> it = players.values().iterator();
+			while(players.size() > maxPlayers && it.hasNext()) {
+				if(!it.next().isPlaying()) {
+					it.remove();
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Get the decoded audio of an AudioMessage, decoding it if it is not
+	 * cached, and fetching it first if it is a reference.
+	 *
+	 * @param am The AudioMessage.
+	 * @return The decoded audio.
+	 * @throws IOException
+	 * @throws UnsupportedAudioFileException
+	 */
+	public Clip clip(AudioMessage am) throws IOException, UnsupportedAudioFileException {
+		MessageKey key = MessageKey.of(am);
+		synchronized(this) {
+			Clip c = clips.get(key);
+			if(c != null) {
+				return c;
+			}
+		}
+		if(!am.hasAudio()) {
+			fetch(am);
+		}
+		Clip c = am.getCodec() == null ? decode(am.getAudioBytes()) : new Clip(am.getFormat(), am.getPCM());
+		synchronized(this) {
+			if(clips.put(key, c) == null) {
+				bytes += c.pcm.length;
+			}
+			Iterator<Clip> it = clips.values().iterator();
+			while(bytes > maxBytes && clips.size() > 1 && it.hasNext()) {
+				bytes -= it.next().pcm.length;
+				it.remove();
+			}
+		}
+		return c;
+	}
+
+	private static void fetch(AudioMessage am) throws IOException {
+		Backend backend = NetworkMethods.backend;
+		if(backend == null) {
+			throw new IOException("Not connected");
+		}
+		try {
+			backend.fetchAudio(am).get(fetchTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch(ExecutionException | TimeoutException ex) {
+			throw new IOException("Could not fetch " + am.getHash(), ex);
+		}
+	}
+
+	private static Clip decode(byte[] wav) throws IOException, UnsupportedAudioFileException {
+		try(AudioInputStream in = AudioSystem.getAudioInputStream(new ByteArrayInputStream(wav))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(wav.length);
+			byte[] buffer = new byte[1024 * 8];
+			int r;
+			while((r = in.read(buffer)) != -1) {
+				out.write(buffer, 0, r);
+			}
+			return new Clip(in.getFormat(), out.toByteArray());
+		}
+	}
+
+	/**
+	 * Get an open line for a format, from the pool if one is idle.
+	 *
+	 * @param format The format to play.
+	 * @return An open line.
+	 * @throws LineUnavailableException
+	 */
+	SourceDataLine acquire(AudioFormat format) throws LineUnavailableException {
+		synchronized(idle) {
+			Iterator<SourceDataLine> it = idle.iterator();
+			while(it.hasNext()) {
+				SourceDataLine line = it.next();
+				if(line.getFormat().matches(format)) {
+					it.remove();
+					return line;
+				}
+			}
+		}
+		SourceDataLine line = AudioSystem.getSourceDataLine(format);
+		line.open(format);
+		return line;
+	}
+
+	/**
+	 * Give a line back to the pool, or close it if the pool is full.
+	 *
+	 * @param line The line.
+	 */
+	void release(SourceDataLine line) {
+		line.stop();
+		line.flush();
+		synchronized(idle) {
+			if(idle.size() < maxIdleLines) {
+				idle.push(line);
+				return;
+			}
+		}
+		line.close();
+	}
+
+	/**
+	 * The playback state of one AudioMessage.
+	 */
+	public class Player {
+		private final AudioMessage message;
+		private volatile Clip clip;
+		/**
+		 * Where playback is, in bytes of PCM.
+		 */
+		private volatile int position = 0;
+		private volatile boolean playing = false;
+		/**
+		 * Set once the audio of a reference could not be fetched, as when the
+		 * server no longer keeps it.
+		 */
+		private volatile boolean unavailable = false;
+		private volatile Runnable onUpdate;
+		/**
+		 * Set while an update is waiting to run, so a Player playing many
+		 * chunks in one frame only posts one.
+		 */
+		private final AtomicBoolean updatePosted = new AtomicBoolean();
+		/**
+		 * Counts plays, so a play that has been replaced stops writing.
+		 */
+		private int generation = 0;
+
+		private Player(AudioMessage message) {
+			this.message = message;
+		}
+
+		/**
+		 * Start playing from the current position.
+		 */
+		public synchronized void play() {
+			if(playing) {
+				return;
+			}
+			playing = true;
+			int g = ++generation;
+			threads.submit(() -> run(g));
+			update();
+		}
+
+		/**
+		 * Stop playing, keeping the current position.
+		 */
+		public synchronized void pause() {
+			playing = false;
+			generation++;
+			update();
+		}
+
+		/**
+		 * Stop playing and go back to the start.
+		 */
+		public synchronized void stop() {
+			pause();
+			position = 0;
+			update();
+		}
+
+		/**
+		 * Move to a point in the clip.
+		 *
+		 * @param fraction How far into the clip, from 0 to 1.
+		 */
+		public void seek(double fraction) {
+			Clip c = clip;
+			if(c == null) {
+				return;
+			}
+			int frameSize = c.format.getFrameSize();
+			long frames = c.pcm.length / frameSize;
+			position = (int)(Math.max(0, Math.min(1, fraction)) * frames) * frameSize;
+			update();
+		}
+
+		/**
+		 * @return How far playback is, from 0 to 1.
+		 */
+		public double getProgress() {
+			Clip c = clip;
+			return c == null || c.pcm.length == 0 ? 0 : (double)position / c.pcm.length;
+		}
+
+		/**
+		 * @return The length of the clip in seconds, or 0 if it has not been
+		 * decoded yet.
+		 */
+		public double getSeconds() {
+			Clip c = clip;
+			return c == null ? 0 : c.getSeconds();
+		}
+
+		public boolean isPlaying() {
+			return playing;
+		}
+
+		/**
+		 * @return True if the audio could not be fetched to be played.
+		 */
+		public boolean isUnavailable() {
+			return unavailable;
+		}
+
+		/**
+		 * @return The AudioMessage this Player plays.
+		 */
+		public AudioMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * Set what to run on the FX thread when the state of this Player
+		 * changes. Only the controls last shown for the message are told.
+		 *
+		 * @param onUpdate What to run.
+		 */
+		public void setOnUpdate(Runnable onUpdate) {
+			this.onUpdate = onUpdate;
+		}
+
+		private void update() {
+			if(onUpdate == null || !updatePosted.compareAndSet(false, true)) {
+				return;
+			}
+			Runnable r = () -> {
+				updatePosted.set(false);
+				Runnable u = onUpdate;
+				if(u != null) {
+					u.run();
+				}
+			};
+			UiPulse p = pulse;
+			if(p != null) {
+				p.post(r);
+			} else {
+				Platform.runLater(r);
+			}
+		}
+
+		private synchronized boolean isCurrent(int g) {
+			return playing && generation == g;
+		}
+
+		private void run(int g) {
+			SourceDataLine line = null;
+			try {
+				if(clip == null) {
+					clip = clip(message);
+				}
+				Clip c = clip;
+				line = acquire(c.format);
+				line.start();
+				int frameSize = c.format.getFrameSize();
+				int chunk = Math.max(frameSize, (int)(c.format.getFrameRate() * chunkMillis / 1000) * frameSize);
+				if(position >= c.pcm.length) {
+					position = 0;
+				}
+				while(isCurrent(g) && position < c.pcm.length) {
+					int p = position;
+					int n = Math.min(chunk, c.pcm.length - p);
+					line.write(c.pcm, p, n);
+					if(isCurrent(g)) {
+						position = p + n;
+					}
+					update();
+				}
+				if(isCurrent(g)) {
+					line.drain();
+					synchronized(this) {
+						if(generation == g) {
+							playing = false;
+							position = 0;
+						}
+					}
+				}
+			} catch(IOException | UnsupportedAudioFileException | LineUnavailableException | IllegalArgumentException ex) {
+				Logger.getLogger(AudioPlayback.class.getName()).log(Level.SEVERE, null, ex);
+				if(!message.hasAudio()) {
+					unavailable = true;
+				}
+				synchronized(this) {
+					if(generation == g) {
+						playing = false;
+					}
+				}
+			} finally {
+				if(line != null) {
+					release(line);
+				}
+			}
+			update();
+		}
+	}
+}
@@ -1,17 +1,24 @@
 package talkbox.client;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.Arrays;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sound.sampled.*;
@@ -26,6 +33,37 @@ public class Backend implements Runnable {
 	public static final String hostname = "java.cjdeakin.me";
 	public static final int port = 5476;
 	private static AudioFormat format; // Added because AudioFormat is not serializable.
+	/**
+	 * The most messages sent in one batch.
+	 */
+	public static final int batchMessages = 256;
+	/**
+	 * The most bytes sent in one batch, as estimated by the messages.
+	 */
+	public static final int batchBytes = 1024 * 64;
+	/**
+	 * How long to wait for more messages before sending a batch.
+	 */
+	public static final long batchLingerMillis = 2;
+	/**
+	 * The longest wait before the first attempt to reconnect.
+	 */
+	public static final long reconnectBaseMillis = 250;
+	/**
+	 * The longest wait between attempts to reconnect.
+	 */
+	public static final long reconnectMaxMillis = 30000;
+	/**
+	 * How many unacknowledged messages are kept so they can be resent after
+	 * the connection is lost, and how many of the last messages sent are kept
+	 * to resend to a server that has restarted.
+	 */
+	public static final int resendLimit = 1024;
+	/**
+	 * How long an acknowledgement may wait for other traffic to ride along
+	 * with before it is sent on its own.
+	 */
+	public static final long ackDelayMillis = 100;
 
 	/**
 	 * Create a new Backend, start it, then return it.
@@ -48,32 +86,108 @@ public class Backend implements Runnable {
 	private ChatWindowController controller;
 	private final Thread thread;
 	private final AtomicBoolean started;
-	private final ConcurrentLinkedQueue<Message> sendQueue;
-	private final ConcurrentHashMap<String, Client> clientMap;
+	private final Outbox<Message> sendQueue;
+	/**
+	 * The online Clients, by id. Guarded by itself.
+	 */
+	private final LongMap<Client> clientMap;
 	private final ConcurrentHashMap<String, FileMessage> sharedFiles;
-	private final ConcurrentHashMap<String, FileGetter> downloadingFiles;
-	private boolean running = true;
-	private Client self;
+	/**
+	 * Files being downloaded, by the id of their sender and then their name.
+	 * Guarded by itself.
+	 */
+	private final LongMap<HashMap<String, FileGetter>> downloadingFiles;
+	/**
+	 * Media being fetched from the server, by hash.
+	 */
+	private final ConcurrentHashMap<String, MediaGetter> fetchingMedia = new ConcurrentHashMap<>();
+	private volatile ImageTranscoder transcoder = new ImageTranscoder();
+	private volatile AudioCodec audioCodec = AudioCodecs.adpcm;
+	/**
+	 * The voice room this Backend is in, or null.
+	 */
+	private volatile String room;
+	private CaptureAudio roomCapture;
+	private final VoicePlayback voice = new VoicePlayback((AudioMessage am) -> {
+		if(controller != null) {
+			controller.receiveMessage(am);
+		}
+	});
+	/**
+	 * What this Backend tells the server it supports when it connects.
+	 */
+	private volatile int capabilities = Capabilities.thumbnails | Capabilities.mediaReferences;
+	/**
+	 * The Compressors this Backend offers the server, the one it would rather
+	 * use first.
+	 */
+	private volatile Compressor[] compressors = {Compressors.deflate};
+	private volatile int compressionThreshold = FrameOutputStream.defaultThreshold;
+	private volatile boolean running = true;
+	private volatile Client self;
 	private String setNameAtStart;
+	private String sessionToken;
+	private boolean established;
+	/**
+	 * Stamped on every message this Backend sends. It is random so it stays
+	 * unique even if the server forgets about this Backend.
+	 */
+	private final long origin = new SecureRandom().nextLong();
+	/**
+	 * Written messages the server has not acknowledged yet.
+	 */
+	private final ArrayDeque<Message> unsent = new ArrayDeque<>();
+	/**
+	 * The last messages written to the server, acknowledged or not. A server
+	 * that restarted may have acknowledged some of them without passing them
+	 * on, so they are all resent to it. Guarded by unsent.
+	 */
+	private final ArrayDeque<Message> recent = new ArrayDeque<>();
+	/**
+	 * The sequence number of the last message written to the server.
+	 */
+	private long sent = 0;
+	/**
+	 * The messages received from the server over the current session.
+	 */
+	private SequenceWindow received = new SequenceWindow(0);
+	/**
+	 * Where the server is.
+	 */
+	private final String serverHost;
+	private final int serverPort;
+	/**
+	 * The messages received from each origin, used to drop duplicates.
+	 */
+	private final ConcurrentHashMap<Long, SequenceWindow> seen = new ConcurrentHashMap<>();
 
 	public Backend() {
-		this.controller = null;
-		sendQueue = new ConcurrentLinkedQueue<>();
-		started = new AtomicBoolean();
-		thread = new Thread(this);
-		clientMap = new ConcurrentHashMap<>();
-		sharedFiles = new ConcurrentHashMap<>();
-		downloadingFiles = new ConcurrentHashMap<>();
+		this(null);
 	}
 
 	public Backend(ChatWindowController controller) {
+		this(controller, hostname, port);
+	}
+
+	/**
+	 * Create a new Backend that connects to a server other than the usual
+	 * one.
+	 *
+	 * @param controller The ChatWindowController to talk to.
+	 * @param host The host of the server.
+	 * @param port The port of the server.
+	 */
+	public Backend(ChatWindowController controller, String host, int port) {
 		this.controller = controller;
-		sendQueue = new ConcurrentLinkedQueue<>();
+		serverHost = host;
+		serverPort = port;
+		sendQueue = new Outbox<>(Message::estimateSize);
+		setBatching(batchMessages, batchBytes, batchLingerMillis);
 		started = new AtomicBoolean();
 		thread = new Thread(this);
-		clientMap = new ConcurrentHashMap<>();
+		clientMap = new LongMap<>();
 		sharedFiles = new ConcurrentHashMap<>();
-		downloadingFiles = new ConcurrentHashMap<>();
+		downloadingFiles = new LongMap<>();
 	}
 
 	/**
@@ -91,6 +205,20 @@ public class Backend implements Runnable {
 		return false;
 	}
 
+	/**
+	 * Change how messages are batched before they are sent. Only one file
+	 * slice is ever sent per batch.
+	 *
+	 * @param messages The most messages in a batch.
+	 * @param bytes The most bytes in a batch.
+	 * @param lingerMillis How long to wait for a batch to fill up. Zero sends
+	 * whatever is queued immediately.
+	 */
+	public void setBatching(int messages, int bytes, long lingerMillis) {
+		sendQueue.setLimits(messages, 1, bytes);
+		sendQueue.setLinger(lingerMillis, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Start this Backend. If it has already been started, it will not be
 	 * started again.
@@ -103,10 +231,13 @@ public class Backend implements Runnable {
 	}
 
 	/**
-	 * Stop this Backend. Once stopped, it can not be restarted.
+	 * Stop this Backend. Once stopped, it can not be restarted. Anything
+	 * already queued is still sent before the connection is closed.
 	 */
 	public void stop() {
+		leaveRoom();
 		running = false;
+		sendQueue.close();
 		resume();
 	}
 
@@ -123,9 +254,11 @@ public class Backend implements Runnable {
 			return;
 		}
 		String oldname = self.getName();
-		self.setName(name);
-		self.nameChangeProcessed();
-		clientMap.put(self.id, self);
+		//self may be shared with messages already received, so it is replaced.
+		self = self.renamed(name);
+		synchronized(clientMap) {
+			clientMap.put(self.id, self);
+		}
 		controller.addOnline(self);
 		if(announce) {
 			sendMessage(oldname + " has changed their name to " + name);
@@ -138,8 +271,7 @@ public class Backend implements Runnable {
 	 * @param m The Message to send.
 	 */
 	public void sendMessage(Message m) {
-		sendQueue.add(m);
-		//resume();
+		sendQueue.add(m.getChannel(), m);
 	}
 
 	/**
@@ -148,8 +280,7 @@ public class Backend implements Runnable {
 	 * @param s The text of the Message to send.
 	 */
 	public void sendMessage(String s) {
-		sendQueue.add(new Message(self, s));
-		//resume();
+		sendMessage(new Message(self, s));
 	}
 
 	/**
@@ -158,8 +289,9 @@ public class Backend implements Runnable {
 	 * @param m An array of Messages to send.
 	 */
 	public void sendMessages(Message[] m) {
-		sendQueue.addAll(Arrays.asList(m));
-		//resume();
+		for(Message message : m) {
+			sendMessage(message);
+		}
 	}
 
 	/**
@@ -169,41 +301,312 @@ public class Backend implements Runnable {
 	* @throws IOException
 	*/
 	public void sendAudio(byte[] b, AudioFormat f){
-		sendQueue.add(new AudioMessage(self, b));
 		format = f;
+		AudioCodec codec = audioCodec;
+		try(AudioInputStream in = AudioSystem.getAudioInputStream(new ByteArrayInputStream(b))) {
+			AudioFormat pcmFormat = in.getFormat();
+			if(codec != AudioCodecs.pcm && codec.supports(pcmFormat)) {
+				byte[] pcm = new byte[(int)in.getFrameLength() * pcmFormat.getFrameSize()];
+				new DataInputStream(in).readFully(pcm);
+				sendMessage(new AudioMessage(self, pcmFormat, pcm, codec));
+				return;
+			}
+		} catch(IOException | UnsupportedAudioFileException ex) {
+			Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		sendMessage(new AudioMessage(self, b));
+	}
+
+	/**
+	 * Queue a recording as an AudioMessage, encoded with the audio codec if
+	 * it can be.
+	 *
+	 * @param recording The recording.
+	 */
+	public void sendAudio(AudioBuffer recording) {
+		format = recording.getFormat();
+		AudioCodec codec = audioCodec;
+		if(codec != AudioCodecs.pcm && codec.supports(format)) {
+			sendMessage(new AudioMessage(self, format, recording.getPCM(), codec));
+		} else {
+			sendMessage(new AudioMessage(self, recording.toWAV()));
+		}
 	}
 
 	/**
-	 * Queue a single ImageMessage.
+	 * Set the codec audio is sent with. If it can not encode a recording, the
+	 * recording is sent as it was recorded.
+	 *
+	 * @param codec The codec.
+	 */
+	public void setAudioCodec(AudioCodec codec) {
+		audioCodec = codec;
+	}
+
+	private AudioCodec codecFor(AudioFormat format) {
+		AudioCodec codec = audioCodec;
+		return codec.supports(format) ? codec : AudioCodecs.pcm;
+	}
+
+	/**
+	 * Make a listener that sends a recording as AudioFrames while it is being
+	 * recorded. Each listener sends one stream.
+	 *
+	 * @param recipients The intended recipients, or none for everyone.
+	 * @return The listener to give to CaptureAudio.
+	 */
+	public CaptureAudio.StreamListener voiceStream(Client... recipients) {
+		long stream = ThreadLocalRandom.current().nextLong();
+		return new CaptureAudio.StreamListener() {
+			private int index = 0;
+			private AudioFormat format;
+			private AudioCodec codec;
+
+			@Override
+			public void captured(AudioFormat format, byte[] pcm, long timestamp) {
+				if(codec == null) {
+					this.format = format;
+					codec = codecFor(format);
+				}
+				sendMessage(new AudioFrame(self, stream, index++, timestamp, format, pcm, codec, false, recipients));
+			}
+
+			@Override
+			public void ended(long timestamp) {
+				if(format != null) {
+					sendMessage(new AudioFrame(self, stream, index++, timestamp, format, new byte[0], codec, true, recipients));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Join a voice room, leaving any other room first. Audio is sent from the
+	 * microphone until the room is left, and the mix of everyone else in the
+	 * room is played as it arrives.
+	 *
+	 * @param name The name of the room.
+	 */
+	public synchronized void joinRoom(String name) {
+		leaveRoom();
+		room = name;
+		sendMessage(new RoomMessage(self, name, true));
+		roomCapture = new CaptureAudio();
+		roomCapture.setKeepRecording(false);
+		roomCapture.setStreamListener(roomStream(name));
+		roomCapture.start();
+	}
+
+	/**
+	 * Leave the voice room, if this Backend is in one.
+	 */
+	public synchronized void leaveRoom() {
+		if(room == null) {
+			return;
+		}
+		roomCapture.stop();
+		roomCapture = null;
+		sendMessage(new RoomMessage(self, room, false));
+		room = null;
+	}
+
+	/**
+	 * @return The voice room this Backend is in, or null.
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * Make a listener that sends audio to a voice room. Anything that makes
+	 * audio, not only CaptureAudio, can send to a room through it.
+	 *
+	 * @param name The name of the room.
+	 * @return The listener.
+	 */
+	public CaptureAudio.StreamListener roomStream(String name) {
+		long stream = ThreadLocalRandom.current().nextLong();
+		return new CaptureAudio.StreamListener() {
+			private int index = 0;
+			private AudioCodec codec;
+
+			@Override
+			public void captured(AudioFormat format, byte[] pcm, long timestamp) {
+				if(codec == null) {
+					codec = codecFor(format);
+				}
+				sendMessage(new AudioFrame(self, name, stream, index++, timestamp, format, pcm, codec, false));
+			}
+
+			@Override
+			public void ended(long timestamp) {
+			}
+		};
+	}
+
+	/**
+	 * Set how images are prepared before they are sent.
+	 *
+	 * @param maxDimension The longest either side of a sent image may be.
+	 * @param maxBytes How many bytes a sent image should fit in.
+	 * @param quality The JPEG quality to try first, from 0 to 1.
+	 */
+	public final void setImageLimits(int maxDimension, int maxBytes, float quality) {
+		transcoder = new ImageTranscoder(maxDimension, maxBytes, quality);
+	}
+
+	/**
+	 * Set whether the server should send thumbnails of images instead of the
+	 * full images, which are then only fetched when opened. This takes effect
+	 * the next time this Backend connects.
+	 *
+	 * @param thumbnails True to prefer thumbnails, false otherwise.
+	 */
+	public void setPreferThumbnails(boolean thumbnails) {
+		if(thumbnails) {
+			capabilities |= Capabilities.thumbnails;
+		} else {
+			capabilities &= ~Capabilities.thumbnails;
+		}
+	}
+
+	/**
+	 * Set whether the server should send references to large AudioMessages
+	 * instead of the audio, which is then only fetched when played. This
+	 * takes effect the next time this Backend connects.
+	 *
+	 * @param references True to prefer references, false otherwise.
+	 */
+	public void setPreferMediaReferences(boolean references) {
+		if(references) {
+			capabilities |= Capabilities.mediaReferences;
+		} else {
+			capabilities &= ~Capabilities.mediaReferences;
+		}
+	}
+
+	/**
+	 * Set the Compressors to offer the server for frames sent to and from
+	 * it. The server picks the first one it can use, or none. Frames smaller
+	 * than the threshold, media and frames that look compressed already are
+	 * sent as they are. This takes effect the next time this Backend
+	 * connects.
+	 *
+	 * @param compressors The Compressors, the one to rather use first, or
+	 * none to not compress.
+	 * @param threshold The size of the smallest frame that is compressed.
+	 */
+	public void setCompressors(Compressor[] compressors, int threshold) {
+		compressionThreshold = threshold;
+		this.compressors = compressors.clone();
+	}
+
+	/**
+	 * Queue a single image. Only a thumbnail is sent; the full image is shared
+	 * and sent to whoever opens it.
 	 *
 	 * @param f The File of the image to send.
-	 * @throws IOException
 	 */
-	public void sendImage(File f) throws IOException {
-		sendQueue.add(new ImageMessage(self, f));
+	public void sendImage(File f) {
+		sendImage("", f);
 	}
 
 	/**
-	 * Queue a single ImageMessage with text.
+	 * Queue a single image with text.
 	 *
 	 * @param s The text of the Message to send.
 	 * @param f The File of the image to send.
-	 * @throws IOException
 	 */
-	public void sendImage(String s, File f) throws IOException {
-		sendQueue.add(new ImageMessage(self, s, f));
+	public void sendImage(String s, File f) {
+		sendImage(s, f, (Client[])null);
 	}
 		
 	/**
-	 * Queue a single ImageMessage with text and specified recipients.
+	 * Queue a single image with text and specified recipients. The image is
+	 * scaled down and encoded again in the background before it is sent, and
+	 * the original file is shared so that it can still be requested. Files
+	 * that can not be read as images are shared as plain files.
 	 *
 	 * @param s The text of the Message to send.
 	 * @param f The File of the image to send.
 	 * @param recipients The intended recipients.
-	 * @throws IOException
 	 */
-	public void sendImage(String s, File f, Client... recipients) throws IOException {
-		sendQueue.add(new ImageMessage(self, s, f, recipients));
+	public void sendImage(String s, File f, Client... recipients) {
+		ImageTranscoder t = transcoder;
+		Main.submit(() -> {
+			try {
+				ImageTranscoder.Result r = t.transcode(f);
+				if(r == null) {
+					if(recipients == null) {
+						sendFile(f);
+					} else {
+						sendFile(f, recipients);
+					}
+					return;
+				}
+				ThumbnailMessage tm = new ThumbnailMessage(self, s, ImageStore.put(r.bytes), r.image, f, recipients);
+				FileMessage original = tm.getOriginal();
+				sharedFiles.put(original.name, original);
+				sharedFiles.put(tm.name, tm);
+				sendMessage(tm);
+			} catch(IOException ex) {
+				Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		});
+	}
+
+	/**
+	 * Get the full size image of a ThumbnailMessage, downloading it from the
+	 * sender if it is not available locally.
+	 *
+	 * @param tm The ThumbnailMessage of the image.
+	 * @param done Called with the image file once it is available, or with
+	 * null if the download was bad. This may be called on the reader thread.
+	 * @return False if the image can not be gotten, true otherwise.
+	 */
+	public boolean openImage(ThumbnailMessage tm, Consumer<File> done) {
+		File f = ImageStore.get(tm);
+		if(f != null) {
+			done.accept(f);
+			return true;
+		}
+		File part = ImageStore.partFile(tm);
+		if(part == null || (!tm.served && !hasClient(tm.sender))) {
+			return false;
+		}
+		if(isDownloading(tm)) {
+			return true;
+		}
+		try {
+			putDownload(tm, new FileGetter(tm, part, (File got) -> done.accept(ImageStore.store(tm, got))));
+			sendMessage(new FileMessage.FileRequest(self, tm));
+		} catch(IOException ex) {
+			Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Fetch the audio of an AudioMessage that is a reference to audio kept by
+	 * the server. The audio is filled in to the message once it has arrived.
+	 *
+	 * @param am The AudioMessage.
+	 * @return Completed with the AudioMessage once it has its audio.
+	 */
+	public CompletableFuture<AudioMessage> fetchAudio(AudioMessage am) {
+		if(am.hasAudio() || am.getHash() == null) {
+			return CompletableFuture.completedFuture(am);
+		}
+		MediaGetter get = fetchingMedia.computeIfAbsent(am.getHash(), (String h) -> new MediaGetter(h, am.getSize()));
+		MediaRequest r = get.nextRequest(self);
+		if(r != null) {
+			sendMessage(r);
+		}
+		return get.getDone().thenApply((byte[] b) -> {
+			am.fill(b);
+			return am;
+		});
 	}
 
 	/**
@@ -214,7 +617,7 @@ public class Backend implements Runnable {
 	public void sendFile(File f) {
 		FileMessage fm = new FileMessage(self, f);
 		sharedFiles.put(fm.name, fm);
-		sendQueue.add(fm);
+		sendMessage(fm);
 	}
 
 	/**
@@ -226,7 +629,7 @@ public class Backend implements Runnable {
 	public void sendFile(File f, Client... recipients) {
 		FileMessage fm = new FileMessage(self, f, recipients);
 		sharedFiles.put(fm.name, fm);
-		sendQueue.add(fm);
+		sendMessage(fm);
 	}
 
 	/**
@@ -240,8 +643,8 @@ public class Backend implements Runnable {
 			if(isDownloading(fm)) {
 				return;
 			}
-			downloadingFiles.put(fm.sender.id + fm.name, new FileGetter(fm, f));
-			sendQueue.add(new FileMessage.FileRequest(self, fm));
+			putDownload(fm, new FileGetter(fm, f));
+			sendMessage(new FileMessage.FileRequest(self, fm));
 		} catch(IOException ex) {
 			Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
 		}
@@ -252,14 +655,41 @@ public class Backend implements Runnable {
 	 * @return True if it is being downloaded, false otherwise.
 	 */
 	public boolean isDownloading(FileMessage fm) {
-		FileGetter get = downloadingFiles.get(fm.sender.id + fm.name);
+		FileGetter get = getDownload(fm);
 		if(get != null && get.isClosed()) {
-			downloadingFiles.remove(fm.sender.id + fm.name);
+			removeDownload(fm);
 			return false;
 		}
 		return get != null;
 	}
 
+	private FileGetter getDownload(FileMessage fm) {
+		synchronized(downloadingFiles) {
+			HashMap<String, FileGetter> files = downloadingFiles.get(fm.sender.id);
+			return files == null ? null : files.get(fm.name);
+		}
+	}
+
+	private void putDownload(FileMessage fm, FileGetter get) {
+		synchronized(downloadingFiles) {
+			HashMap<String, FileGetter> files = downloadingFiles.get(fm.sender.id);
+			if(files == null) {
+				files = new HashMap<>();
+				downloadingFiles.put(fm.sender.id, files);
+			}
+			files.put(fm.name, get);
+		}
+	}
+
+	private void removeDownload(FileMessage fm) {
+		synchronized(downloadingFiles) {
+			HashMap<String, FileGetter> files = downloadingFiles.get(fm.sender.id);
+			if(files != null && files.remove(fm.name) != null && files.isEmpty()) {
+				downloadingFiles.remove(fm.sender.id);
+			}
+		}
+	}
+
 	/**
 	 * A singe received message should be passed to this method. It will be
 	 * processed and displayed.
@@ -270,18 +700,38 @@ public class Backend implements Runnable {
 		if(m == null || m.sender == null) {
 			return;
 		}
-		Client c = clientMap.get(m.sender.id);
+		Client c;
+		synchronized(clientMap) {
+			c = clientMap.get(m.sender.id);
+		}
 		if(c == null) {
 			addClient(m.sender);
 		}
-		if(m instanceof DataPacket) {
+		if(m instanceof AudioFrame) {
+			//Our own frames are only kept for the history, not played.
+			Client me = self;
+			voice.receive((AudioFrame)m, me == null || m.sender.id != me.id);
+		} else if(m instanceof DataPacket) {
 			if(m instanceof FilePacket) {
 				FilePacket fp = (FilePacket)m;
-				FileGetter get = downloadingFiles.get(fp.sender.id + fp.name);
+				FileGetter get = getDownload(fp);
 				if(get != null) {
 					get.receivePacket(fp);
 					if(get.isClosed()) {
-						downloadingFiles.remove(fp.sender.id + fp.name);
+						removeDownload(fp);
+					}
+				}
+			} else if(m instanceof MediaPacket) {
+				MediaPacket mp = (MediaPacket)m;
+				MediaGetter get = fetchingMedia.get(mp.hash);
+				if(get != null) {
+					get.receivePacket(mp);
+					MediaRequest r = get.nextRequest(self);
+					if(r != null) {
+						sendMessage(r);
+					}
+					if(get.isClosed()) {
+						fetchingMedia.remove(mp.hash);
 					}
 				}
 			}
@@ -299,7 +749,6 @@ public class Backend implements Runnable {
 		if(m.display()) {
 			controller.receiveMessage(m);
 		}
-		//resume();
 	}
 
 	/**
@@ -312,36 +761,22 @@ public class Backend implements Runnable {
 		for(Message message : m) {
 			receiveMessage(message);
 		}
-		//resume();
 	}
 
 	/**
-	 * Add all Clients in a ConcurrentHashMap to this Backend.
+	 * Add Clients to this Backend.
 	 *
-	 * @param clients The ConcurrentHashMap to add.
+	 * @param clients The Clients to add.
 	 */
-	public void addClients(ConcurrentHashMap<String, Client> clients) {
-		clients.values().stream().forEach((c) -> {
-			Client old = clientMap.put(c.id, c);
-			if(old != null && c.getName() == null) {
-				c.setName(old.getName());
-			}
-		});
-		updateClientList();
-	}
-
-	/**
-	 * Like {@link #addClients(ConcurrentHashMap)}, but for a HashMap.
-	 *
-	 * @param clients The HashMap to add.
-	 */
-	public void addClients(HashMap<String, Client> clients) {
-		clients.values().stream().forEach((c) -> {
-			Client old = clientMap.put(c.id, c);
-			if(old != null && c.getName() == null) {
-				c.setName(old.getName());
+	public void addClients(Client... clients) {
+		synchronized(clientMap) {
+			for(Client c : clients) {
+				Client old = clientMap.put(c.id, c);
+				if(old != null && c.getName() == null) {
+					clientMap.put(c.id, c.renamed(old.getName()));
+				}
 			}
-		});
+		}
 		updateClientList();
 	}
 
@@ -351,7 +786,9 @@ public class Backend implements Runnable {
 	 * @param client The Client to add.
 	 */
 	public void addClient(Client client) {
-		clientMap.put(client.id, client);
+		synchronized(clientMap) {
+			clientMap.put(client.id, client);
+		}
 		controller.addOnline(client);
 	}
 
@@ -361,7 +798,9 @@ public class Backend implements Runnable {
 	 * @param client The Client to remove.
 	 */
 	public void removeClient(Client client) {
-		clientMap.remove(client.id);
+		synchronized(clientMap) {
+			clientMap.remove(client.id);
+		}
 		controller.removeOnline(client);
 	}
 
@@ -372,81 +811,359 @@ public class Backend implements Runnable {
 	 * @return True if the Client is connected, false otherwise.
 	 */
 	public boolean hasClient(Client client) {
-		return clientMap.get(client.id) != null;
+		synchronized(clientMap) {
+			return clientMap.get(client.id) != null;
+		}
 	}
 
 	/**
 	 * Update the GUI with the latest names.
 	 */
 	public void updateClientList() {
-		Client[] clients = clientMap.values().toArray(new Client[0]);
+		Client[] clients;
+		synchronized(clientMap) {
+			clients = clientMap.values().toArray(new Client[0]);
+		}
 		controller.setOnlineNames(clients);
 	}
 
-	private synchronized void pause() {
-		try {
-			wait();
-		} catch(InterruptedException e) {
+	/**
+	 * Stamp a batch of messages that is about to be written and keep them
+	 * until the server acknowledges them. The oldest are dropped once there
+	 * are more than {@link #resendLimit}. Messages that were already sent
+	 * are left out.
+	 *
+	 * @param messages The messages about to be written.
+	 * @return The messages to write.
+	 */
+	private Message[] keep(List<Message> messages) {
+		ArrayList<Message> kept = new ArrayList<>(messages.size());
+		synchronized(unsent) {
+			for(Message m : messages) {
+				//A Message sent again is already kept until the server
+				//acknowledges it, and would only be dropped as a duplicate.
+				if(m.getSequence() != 0) {
+					continue;
+				}
+				m.stamp(origin, ++sent);
+				unsent.add(m);
+				recent.add(m);
+				kept.add(m);
+			}
+			while(unsent.size() > resendLimit) {
+				unsent.poll();
+			}
+			while(recent.size() > resendLimit) {
+				recent.poll();
+			}
 		}
+		return kept.toArray(new Message[0]);
 	}
 
-	private synchronized void resume() {
-		notifyAll();
+	/**
+	 * Forget every kept message the server has acknowledged, and return the
+	 * rest.
+	 *
+	 * @param ack What the server has received.
+	 * @return The messages the server has not acknowledged.
+	 */
+	private Message[] confirm(Ack ack) {
+		synchronized(unsent) {
+			unsent.removeIf(m -> ack.covers(m.getSequence()));
+			return unsent.toArray(new Message[0]);
+		}
 	}
 
-	@Override
-	public void run() {
-		//TODO: Change back to NetworkMethods
-		try(Socket s = new Socket(hostname, port)) {
-			ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
-			ObjectInputStream in = new ObjectInputStream(s.getInputStream());
-			self = (Client)in.readObject();
-			s.setSoTimeout(100);
-			if(setNameAtStart != null) {
-				self.setName(setNameAtStart);
-				sendMessage(new Message(self, null));
+	private static void writeBatch(FrameOutputStream frames, ObjectOutputStream out, Ack ack, Message[] messages)
+			throws IOException {
+		frames.setCompressible(Message.isCompressible(messages));
+		out.reset();
+		out.writeUTF("message");
+		out.writeObject(ack);
+		out.writeObject(messages);
+		out.flush();
+	}
+
+	/**
+	 * Write queued messages until this Backend is stopped or the connection is
+	 * lost. This runs on its own Thread and sleeps in the send queue until
+	 * something is queued, so a new message is written as soon as it is sent.
+	 * Anything the server did not acknowledge over the last connection is
+	 * resent first. Acknowledgements ride along with each batch, and are only
+	 * written on their own if nothing has been sent for a while.
+	 *
+	 * @param s The Socket to the server.
+	 * @param frames The stream under out, told what is worth compressing.
+	 * @param out The stream to write messages to.
+	 * @param resend The messages to resend.
+	 */
+	private void write(Socket s, FrameOutputStream frames, ObjectOutputStream out, Message[] resend) {
+		try {
+			if(resend.length > 0) {
+				writeBatch(frames, out, null, resend);
 			}
-			while(running) {
-				try {
-					String ins = (String)in.readObject();
-					s.setSoTimeout(0);
-					switch(ins) {
-						case "message":
-							Message m = (Message)in.readObject();
-							receiveMessage(m);
-							break;
-						case "clientDisconnect":
-							removeClient((Client)in.readObject());
-							break;
-						case "clientConnect":
-							addClient((Client)in.readObject());
-							break;
-						case "clients":
-							addClients((HashMap<String, Client>)in.readObject());
-							break;
-						default:
-							break;
+			while(true) {
+				List<Message> batch = sendQueue.take(ackDelayMillis, TimeUnit.MILLISECONDS);
+				if(batch.isEmpty()) {
+					if(sendQueue.isClosed()) {
+						break;
 					}
-					s.setSoTimeout(100);
-				} catch(SocketTimeoutException e) {
+					Ack ack = received.pollAck();
+					if(ack != null) {
+						out.reset();
+						out.writeUTF("ack");
+						out.writeObject(ack);
+						out.flush();
+					}
+					continue;
 				}
-				if(!sendQueue.isEmpty()) {
-					Message[] messages = sendQueue.toArray(new Message[0]);
-					out.reset();
-					out.writeUTF("message");
-					out.writeObject(messages);
-					for(Message m : messages) {
-						sendQueue.remove(m);
-						receiveMessage(m);
+				ArrayList<Message> numbered = new ArrayList<>(batch.size());
+				boolean voice = false;
+				for(Message m : batch) {
+					if(m instanceof AudioFrame && ((AudioFrame)m).room != null) {
+						//Voice is encoded already, so it gets a frame of its own.
+						frames.setCompressible(false);
+						out.reset();
+						out.writeUTF("voice");
+						out.writeObject(m);
+						voice = true;
+					} else {
+						numbered.add(m);
 					}
 				}
+				if(voice) {
+					out.flush();
+				}
+				if(numbered.isEmpty()) {
+					continue;
+				}
+				Message[] messages = keep(numbered);
+				if(messages.length == 0) {
+					continue;
+				}
+				writeBatch(frames, out, received.pollAck(), messages);
+				for(Message m : messages) {
+					receiveMessage(m);
+				}
 			}
 			out.reset();
 			out.writeUTF("disconnect");
 			out.flush();
 			s.shutdownOutput();
-		} catch(IOException | ClassNotFoundException ex) {
-			Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
+		} catch(IOException | RuntimeException ex) {
+			//Closing the Socket makes the reader reconnect, so nothing more
+			//is lost than what was being written.
+			if(running || ex instanceof RuntimeException) {
+				Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
+			}
+			try {
+				s.close();
+			} catch(IOException e) {
+			}
+		} catch(InterruptedException ex) {
+		}
+	}
+
+	/**
+	 * Connect to the server, resuming the last session if there was one, and
+	 * read from it until the connection is lost or this Backend is stopped.
+	 *
+	 * @param s The Socket to the server.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws InterruptedException
+	 */
+	private void connect(Socket s) throws IOException, ClassNotFoundException, InterruptedException {
+		FrameOutputStream frames = new FrameOutputStream(s.getOutputStream());
+		ObjectOutputStream out = new DictionaryOutputStream(frames);
+		ObjectInputStream in = new DictionaryInputStream(new FrameInputStream(s.getInputStream()));
+		boolean resuming = sessionToken != null;
+		if(sessionToken == null) {
+			out.writeUTF("connect");
+		} else {
+			out.writeUTF("resume");
+			out.writeUTF(sessionToken);
+		}
+		out.writeLong(origin);
+		out.writeLong(received.getBase());
+		out.writeInt(capabilities);
+		Compressor[] offered = compressors;
+		out.writeByte(offered.length);
+		for(Compressor offer : offered) {
+			out.writeByte(offer.getId());
+		}
+		out.flush();
+		String name = self != null ? self.getName() : setNameAtStart;
+		Client c = (Client)in.readObject();
+		SessionTicket ticket = (SessionTicket)in.readObject();
+		established = true;
+		sessionToken = ticket.token;
+		IDGenerator.shared().setNode(ticket.node);
+		Compressor chosen = Compressors.forId(ticket.compressor);
+		if(chosen != null) {
+			frames.setThreshold(compressionThreshold);
+			frames.setCompressor(chosen);
+		}
+		if(!ticket.resumed) {
+			received = new SequenceWindow(0);
+		}
+		if(name != null) {
+			c = c.renamed(name);
+		}
+		self = c;
+		synchronized(clientMap) {
+			clientMap.clear();
+		}
+		Message[] unconfirmed = confirm(ticket.received);
+		if(resuming && !ticket.resumed) {
+			//The server has restarted, or forgot this Backend, and may not
+			//have passed on what it acknowledged. Those that got them drop
+			//them again.
+			synchronized(unsent) {
+				unconfirmed = recent.toArray(new Message[0]);
+			}
+		}
+		Message[] resend = unconfirmed;
+		if(!ticket.resumed && name != null) {
+			sendMessage(new Message(self, null));
+		}
+		if(!ticket.resumed && room != null) {
+			sendMessage(new RoomMessage(self, room, true));
+		}
+		Thread w = new Thread(() -> write(s, frames, out, resend));
+		w.start();
+		try {
+			while(true) {
+				String ins;
+				try {
+					ins = (String)in.readObject();
+				} catch(EOFException ex) {
+					break;
+				}
+				switch(ins) {
+					case "message":
+						Message m = (Message)in.readObject();
+						receiveMessage(m);
+						break;
+					case "messages":
+						long first = in.readLong();
+						Ack ack = (Ack)in.readObject();
+						if(ack != null) {
+							confirm(ack);
+						}
+						receiveMessages(first, (Message[])in.readObject());
+						break;
+					case "ack":
+						confirm((Ack)in.readObject());
+						break;
+					case "voice":
+						voice.receive((AudioFrame)in.readObject(), true);
+						break;
+					case "clientDisconnect":
+						removeClient((Client)in.readObject());
+						break;
+					case "clientConnect":
+						addClient((Client)in.readObject());
+						break;
+					case "clients":
+						addClients((Client[])in.readObject());
+						break;
+					default:
+						break;
+				}
+			}
+		} finally {
+			if(running) {
+				s.close();
+				w.interrupt();
+			}
+			w.join();
+		}
+	}
+
+	/**
+	 * Receive numbered messages from the server, skipping any that were
+	 * already received. Messages can arrive twice when the server replays
+	 * them after a lost connection, or when another Client resends them to a
+	 * server that had forgotten it.
+	 *
+	 * @param first The sequence number of the first message.
+	 * @param messages The messages in the order they were sent.
+	 */
+	private void receiveMessages(long first, Message[] messages) {
+		for(int i = 0; i < messages.length; i++) {
+			if(received.mark(first + i) && isNew(messages[i])) {
+				receiveMessage(messages[i]);
+			}
+		}
+	}
+
+	/**
+	 * Check if a message has been seen before, by its origin and sequence
+	 * number. Messages from other origins may arrive out of order, so the
+	 * window for a new origin starts a little behind the first message seen.
+	 *
+	 * @param m The message to check.
+	 * @return True if it has not been seen before, false otherwise.
+	 */
+	private boolean isNew(Message m) {
+		if(m.getSequence() == 0) {
+			return true;
+		}
+		SequenceWindow window = seen.computeIfAbsent(m.getOrigin(),
+				o -> new SequenceWindow(Math.max(0, m.getSequence() - 1 - SequenceWindow.defaultSize / 2)));
+		return window.mark(m.getSequence());
+	}
+
+	/**
+	 * How long to wait before the next attempt to connect. This is a random
+	 * time between zero and an exponentially growing ceiling, so Clients that
+	 * lost their connection at the same time do not all come back at once.
+	 *
+	 * @param attempt How many attempts have failed in a row.
+	 * @return The time to wait in milliseconds.
+	 */
+	private static long backoff(int attempt) {
+		long ceiling = Math.min(reconnectMaxMillis, reconnectBaseMillis << Math.min(attempt, 16));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	private synchronized void pause(long millis) {
+		//wait(0) would never come back.
+		if(!running || millis <= 0) {
+			return;
+		}
+		try {
+			wait(millis);
+		} catch(InterruptedException e) {
+		}
+	}
+
+	private synchronized void resume() {
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		int attempt = 0;
+		while(running) {
+			//TODO: Change back to NetworkMethods
+			established = false;
+			try(Socket s = new Socket(serverHost, serverPort)) {
+				s.setTcpNoDelay(true);
+				connect(s);
+			} catch(IOException | ClassNotFoundException ex) {
+				if(running) {
+					Logger.getLogger(Backend.class.getName()).log(Level.SEVERE, null, ex);
+				}
+			} catch(InterruptedException ex) {
+			}
+			if(established) {
+				attempt = 0;
+			}
+			if(running) {
+				pause(backoff(attempt++));
+			}
 		}
 	}
 }
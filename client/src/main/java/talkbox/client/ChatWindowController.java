@@ -1,42 +1,39 @@
 package talkbox.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.ResourceBundle;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
 import javafx.scene.control.Hyperlink;
+import javafx.scene.Node;
+import javafx.scene.Scene;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Tooltip;
 import javafx.scene.control.cell.TextFieldListCell;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
-import javafx.scene.media.Media;
-import javafx.scene.media.MediaPlayer;
-import javafx.scene.media.MediaView;
 import javafx.scene.text.TextFlow;
 import javafx.stage.FileChooser;
+import javafx.stage.Stage;
 import javafx.util.StringConverter;
 import talkbox.lib.*;
 
@@ -51,9 +48,43 @@ public class ChatWindowController implements Initializable {
 	private ListView<Client> onlineList;
 	@FXML
 	private Button microphoneButton;
+	@FXML
+	private Button voiceButton;
 
 	private CaptureAudio capt = new CaptureAudio();
+	private final UiPulse pulse = new UiPulse();
+	private final History history = new History(pulse);
+	/**
+	 * The online Clients. Only used on the FX thread.
+	 */
+	private RosterModel roster;
+	/**
+	 * The Clients the roster has been told about, so that a message from a
+	 * sender it already shows does not have to update it.
+	 */
+	private final Presence presence = new Presence();
+	/**
+	 * Roster changes waiting for the next frame, by id. A Client is in at most
+	 * one of them, for the last thing that happened to it. Guarded by joins.
+	 */
+	private final LongMap<Client> joins = new LongMap<>();
+	private final LongMap<Client> leaves = new LongMap<>();
+	/**
+	 * The whole roster sent by the server, waiting for the next frame, or
+	 * null. The changes after it are in joins and leaves. Guarded by joins.
+	 */
+	private Client[] everyone = null;
 	static final long RECORD_TIME = 30000;  // 30 seconds
+	/**
+	 * The voice room joined with the voice button.
+	 */
+	static final String VOICE_ROOM = "lobby";
+	/**
+	 * Whether recordings are sent as they are recorded instead of once they
+	 * are finished.
+	 */
+	private boolean streamVoice = true;
+	private boolean streaming = false;
 	private String name;
 	private final StringConverter<Message> messageConverter = new StringConverter<Message>() {
 		@Override
@@ -98,32 +129,39 @@ public class ChatWindowController implements Initializable {
 	private void microphoneAction(ActionEvent event) {
 		System.out.println("Mic button pressed.");
 		if(microphoneButton.getText().startsWith("Record")) {
+			streaming = streamVoice;
+			capt.setStreamListener(streaming ? NetworkMethods.backend.voiceStream() : null);
+			//A streamed note is already sent, so only a sent recording is kept.
+			capt.setKeepRecording(!streaming);
 			capt.start();
 			microphoneButton.setText("Stop");
 		} else {
-			System.out.println("in microphoneAction before b = capt.getAudioBytes ");
-			CompletableFuture<byte[]> audioBytes = capt.getAudioBytes();
+			CompletableFuture<AudioBuffer> recording = capt.getRecording();
 			capt.stop();
-			byte[] b;
-			try {
-				b = audioBytes.get();
-				System.out.println("in microphoneAction after b = capt.getAudioBytes " + b.length);
-				NetworkMethods.backend.sendAudio(b, capt.getFormat());
-			} catch(InterruptedException ex) {
-				Logger.getLogger(ChatWindowController.class.getName()).log(Level.SEVERE, null, ex);
-			} catch(ExecutionException ex) {
-				Logger.getLogger(ChatWindowController.class.getName()).log(Level.SEVERE, null, ex);
+			if(!streaming) {
+				//The recording is sent once it is finished, off the FX thread.
+				recording.thenAccept(NetworkMethods.backend::sendAudio);
 			}
 			microphoneButton.setText("Record");
 		}
 	}
 
+	@FXML
+	private void voiceAction(ActionEvent event) {
+		if(NetworkMethods.backend.getRoom() == null) {
+			NetworkMethods.backend.joinRoom(VOICE_ROOM);
+			voiceButton.setText("Leave");
+		} else {
+			NetworkMethods.backend.leaveRoom();
+			voiceButton.setText("Voice");
+		}
+	}
+
 	public void receiveMessage(Message m) {
-		Platform.runLater(() -> {
-			messageList.getItems().add(m);
-			messageList.scrollTo(messageList.getItems().size() - 1);
+		history.add(m);
+		if(m.sender != null) {
 			addOnline(m.sender);
-		});
+		}
 	}
 
 	@Override
@@ -132,6 +170,11 @@ public class ChatWindowController implements Initializable {
 		nameField.setText(name);
 		NetworkMethods.backend.changeName(name, false);
 
+		history.attach(messageList);
+		roster = new RosterModel(onlineList.getItems());
+		pulse.onPulse(this::flushRoster);
+		AudioPlayback.shared.setPulse(pulse);
+		pulse.start();
 		messageList.setCellFactory((ListView<Message> list) -> {
 			MessageCell mc = new MessageCell();
 			mc.setConverter(messageConverter);
@@ -146,57 +189,136 @@ public class ChatWindowController implements Initializable {
 		Image microphone = new Image(getClass().getResourceAsStream("Microphone.png"));
 		ImageView mp = new ImageView(microphone);
 		microphoneButton.setText("Record");
+		voiceButton.setText("Voice");
+	}
+
+	/**
+	 * @return The UiPulse that applies updates to this window.
+	 */
+	public UiPulse getPulse() {
+		return pulse;
 	}
 
 	public void setOnlineNames(Client[] Names) {
-		Platform.runLater(() -> {
-			ObservableList<Client> names = FXCollections.observableArrayList(Arrays.asList(Names));
-			onlineList.setItems(names);
-		});
+		synchronized(joins) {
+			presence.setAll(Names);
+			everyone = Names;
+			joins.clear();
+			leaves.clear();
+		}
+		pulse.requestFlush();
 	}
 
+	/**
+	 * Show a Client in the roster, unless it is already shown with the same
+	 * name.
+	 *
+	 * @param add The Client.
+	 */
 	public void addOnline(Client add) {
-		Platform.runLater(() -> {
-			int i = onlineList.getItems().indexOf(add);
-			if(i >= 0) {
-				onlineList.getItems().remove(add);
-				onlineList.getItems().add(i, add);
-			} else {
-				onlineList.getItems().add(add);
+		synchronized(joins) {
+			if(!presence.put(add)) {
+				return;
 			}
-		});
+			leaves.remove(add.id);
+			joins.put(add.id, add);
+		}
+		pulse.requestFlush();
 	}
 
 	public void removeOnline(Client remove) {
-		Platform.runLater(() -> {
-			onlineList.getItems().remove(remove);
-		});
+		synchronized(joins) {
+			presence.remove(remove);
+			joins.remove(remove.id);
+			leaves.put(remove.id, remove);
+		}
+		pulse.requestFlush();
+	}
+
+	/**
+	 * Apply the roster changes recorded since the last frame in one go.
+	 */
+	private void flushRoster() {
+		Client[] all;
+		ArrayList<Client> puts;
+		ArrayList<Client> removes;
+		synchronized(joins) {
+			if(everyone == null && joins.isEmpty() && leaves.isEmpty()) {
+				return;
+			}
+			all = everyone;
+			puts = joins.values();
+			removes = leaves.values();
+			everyone = null;
+			joins.clear();
+			leaves.clear();
+		}
+		if(all != null) {
+			roster.setAll(Arrays.asList(all));
+		}
+		roster.apply(puts, removes);
 	}
 }
 
 class MessageCell extends TextFieldListCell<Message> {
-	public static final Base64.Decoder b64decoder = Base64.getDecoder();
+	private ImageCache.Request pending = null;
 
 	@Override
 	public void updateItem(Message item, boolean empty) {
+		if(pending != null) {
+			pending.cancel();
+			pending = null;
+		}
 		super.updateItem(null, true);
 		if(!empty && item != null) {
 			super.updateItem(item, empty);
 			String msg = getText();
 			setText(null);
 			setGraphic(null);
+			double width = getListView().getWidth() - 40;
 			if(item instanceof ImageMessage) {
 				ImageMessage im = (ImageMessage)item;
-				byte[] imagebytes = b64decoder.decode(im.base64image);
-				ByteArrayInputStream imagestream = new ByteArrayInputStream(imagebytes);
-				Image image = new Image(imagestream);
-				ImageView iv = new ImageView(image);
+				Image cached = ImageCache.shared.getIfPresent(im, width);
+				ImageView iv = imageView(cached, width);
 				if(im.text != null && im.text.length() > 0) {
 					Tooltip t = new Tooltip(im.text);
 					Tooltip.install(iv, t);
 				}
 				VBox vb = new VBox();
-				vb.getChildren().addAll(new Label(msg), iv);
+				if(cached != null) {
+					vb.getChildren().addAll(new Label(msg), iv);
+				} else {
+					vb.getChildren().addAll(new Label(msg), new Label("Loading image..."));
+					pending = ImageCache.shared.load(im, width, (Image image) -> {
+						if(getItem() == im) {
+							show(vb, iv, image, width);
+						}
+					});
+				}
+				setGraphic(vb);
+			} else if(item instanceof ThumbnailMessage) {
+				ThumbnailMessage tm = (ThumbnailMessage)item;
+				Image cached = ImageCache.shared.getIfPresent(tm, width);
+				ImageView iv = imageView(cached, width);
+				iv.setOnMouseClicked(new ThumbnailClickListener(tm));
+				Tooltip.install(iv, new Tooltip(tm.width + " x " + tm.height + ", click to open"));
+				VBox vb = new VBox();
+				if(cached != null) {
+					vb.getChildren().addAll(new Label(msg), iv);
+				} else {
+					vb.getChildren().addAll(new Label(msg), new Label("Loading image..."));
+					pending = ImageCache.shared.load(tm, () -> tm.thumbnail, width, (Image image) -> {
+						if(getItem() == tm) {
+							show(vb, iv, image, width);
+						}
+					});
+				}
+				FileMessage original = tm.getOriginal();
+				if(original != null) {
+					Hyperlink hl = new Hyperlink("Original (" + (tm.originalSize + 1023) / 1024 + " KB)");
+					hl.setOnAction(new FileLinkListener(original));
+					vb.getChildren().add(hl);
+				}
 				setGraphic(vb);
 			} else if(item instanceof FileMessage) {
 				Hyperlink hl = new Hyperlink(((FileMessage)item).name);
@@ -204,34 +326,7 @@ class MessageCell extends TextFieldListCell<Message> {
 				TextFlow tf = new TextFlow(new Label(msg), hl);
 				setGraphic(tf);
 			} else if(item instanceof AudioMessage) {
-				//dostuff
-				File f = new File("" + System.nanoTime() + ".wav");
-				if(!f.exists()) {
-					f.deleteOnExit();
-					try {
-						new FileOutputStream(f).write(((AudioMessage)item).getAudioBytes());
-					} catch(Exception ex) {
-						Logger.getLogger(MessageCell.class.getName()).log(Level.SEVERE, null, ex);
-					}
-				}
-				Media media = new Media(f.toURI().toString());
-				MediaPlayer mp = new MediaPlayer(media);
-				setGraphic(MediaControlsController.MediaControls(mp, msg));
-//				MediaView mv = new MediaView(mp);
-//				setGraphic(mv);
-				/*Hyperlink hyperlink = new Hyperlink("AudioMessage");
-				hyperlink.setOnAction(new EventHandler<ActionEvent>() {
-					@Override
-					public void handle(ActionEvent event) {
-						if(mp.getStatus() == MediaPlayer.Status.PLAYING) {
-							mp.stop();
-						} else {
-							mp.play();
-						}
-					}
-				});
-				TextFlow tf = new TextFlow(new Label(msg), hyperlink);
-				setGraphic(tf);*/
+				setGraphic(MediaControlsController.MediaControls(AudioPlayback.shared.player((AudioMessage)item), msg));
 			} else {
 				Label l = new Label(msg);
 				l.setWrapText(true);
@@ -240,6 +335,35 @@ class MessageCell extends TextFieldListCell<Message> {
 			}
 		}
 	}
+
+	/**
+	 * Make an ImageView that shows an image no wider than a width. Cached
+	 * images can be a little wider than the width they were asked for.
+	 */
+	private static ImageView imageView(Image image, double width) {
+		ImageView iv = new ImageView();
+		iv.setPreserveRatio(true);
+		setImage(iv, image, width);
+		return iv;
+	}
+
+	private static void setImage(ImageView iv, Image image, double width) {
+		iv.setImage(image);
+		iv.setFitWidth(image != null && width > 0 && image.getWidth() > width ? width : 0);
+	}
+
+	/**
+	 * Show a loaded image in place of the loading label, or say that it could
+	 * not be shown.
+	 */
+	private static void show(VBox vb, ImageView iv, Image image, double width) {
+		if(image == null) {
+			vb.getChildren().set(1, new Label("The image could not be shown."));
+			return;
+		}
+		setImage(iv, image, width);
+		vb.getChildren().set(1, iv);
+	}
 }
 
 class FileLinkListener implements EventHandler<ActionEvent> {
@@ -262,3 +386,45 @@ class FileLinkListener implements EventHandler<ActionEvent> {
 		NetworkMethods.backend.getFile(fm, f);
 	}
 }
+
+class ThumbnailClickListener implements EventHandler<MouseEvent> {
+	public final ThumbnailMessage tm;
+	private final Label unavailable = new Label("The full image is no longer available.");
+
+	public ThumbnailClickListener(ThumbnailMessage tm) {
+		this.tm = tm;
+	}
+
+	@Override
+	public void handle(MouseEvent e) {
+		Node thumbnail = (Node)e.getSource();
+		boolean opening = NetworkMethods.backend.openImage(tm, (File f) -> Platform.runLater(() -> {
+			if(f == null) {
+				unavailable(thumbnail);
+				return;
+			}
+			ImageView iv = new ImageView(new Image(f.toURI().toString(), 0, 0, true, true, true));
+			Stage stage = new Stage();
+			stage.setTitle(tm.text == null || tm.text.isEmpty() ? tm.name : tm.text);
+			stage.setScene(new Scene(new ScrollPane(iv)));
+			stage.show();
+		}));
+		if(!opening) {
+			unavailable(thumbnail);
+		}
+	}
+
+	/**
+	 * Tell the user the full image can not be gotten, under the thumbnail and
+	 * in its tooltip.
+	 */
+	private void unavailable(Node thumbnail) {
+		Tooltip.install(thumbnail, new Tooltip(unavailable.getText()));
+		if(thumbnail.getParent() instanceof VBox) {
+			VBox vb = (VBox)thumbnail.getParent();
+			if(!vb.getChildren().contains(unavailable)) {
+				vb.getChildren().add(unavailable);
+			}
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import talkbox.lib.*;
@@ -18,6 +19,7 @@ public class FileGetter {
 	private final File f;
 	private final BufferedOutputStream out;
 	private final LinkedList<FilePacket> packets;
+	private final Consumer<File> done;
 	private long written = 0;
 	private int next = 0;
 	private boolean closed = false;
@@ -30,8 +32,22 @@ public class FileGetter {
 	 * @throws IOException
 	 */
 	public FileGetter(FileMessage fm, File f) throws IOException {
+		this(fm, f, null);
+	}
+
+	/**
+	 * Create a new FileGetter for a shared file, that tells someone when the
+	 * whole file has been written.
+	 *
+	 * @param fm The shared file to get.
+	 * @param f The File to write the shared file to.
+	 * @param done Called with the File once it has been completely written.
+	 * @throws IOException
+	 */
+	public FileGetter(FileMessage fm, File f, Consumer<File> done) throws IOException {
 		this.fm = fm;
 		this.f = f;
+		this.done = done;
 		f.createNewFile();
 		out = new BufferedOutputStream(new FileOutputStream(f, false));
 		packets = new LinkedList<>();
@@ -94,9 +110,7 @@ public class FileGetter {
 		next = p.sequence + 1;
 		written += p.getBytes().length;
 		if(p.isLastPacket()) {
-			out.flush();
-			out.close();
-			closed = true;
+			finish();
 			return;
 		}
 		synchronized(packets) {
@@ -106,12 +120,24 @@ public class FileGetter {
 				written += p.getBytes().length;
 				packets.remove(0);
 				if(p.isLastPacket()) {
-					out.flush();
-					out.close();
-					closed = true;
+					finish();
 					return;
 				}
 			}
 		}
 	}
+
+	/**
+	 * Close the file after the last FilePacket has been written.
+	 *
+	 * @throws IOException
+	 */
+	private void finish() throws IOException {
+		out.flush();
+		out.close();
+		closed = true;
+		if(done != null) {
+			done.accept(f);
+		}
+	}
 }
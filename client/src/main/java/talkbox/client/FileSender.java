@@ -3,9 +3,6 @@ package talkbox.client;
 import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import talkbox.lib.*;
@@ -14,20 +11,16 @@ public class FileSender implements Runnable {
 	private final Backend backend;
 	private final FileMessage fm;
 	private final BufferedInputStream in;
-	private final List<Client> recipients;
 	public final long from, to;
 
 	protected FileSender(Backend backend, FileMessage fm, Client... recipients) throws IOException {
 		this.backend = backend;
-		this.fm = fm;
+		//The packets are addressed to whoever the message they are made from
+		//is addressed to.
+		this.fm = new FileMessage(fm.sender, fm, recipients);
 		in = new BufferedInputStream(new FileInputStream(fm.file));
 		from = 0;
 		to = fm.file.length();
-		if(recipients != null) {
-			this.recipients = Arrays.asList(recipients);
-		} else {
-			this.recipients = new ArrayList<>();
-		}
 	}
 
 	public static FileSender FileSender(Backend backend, FileMessage fm, Client... recipients) throws IOException {
@@ -40,25 +33,23 @@ public class FileSender implements Runnable {
 	public void run() {
 		try {
 			long size = fm.file.length();
-			if(size <= FilePacket.preferredSize) {
+			if(size <= FilePacket.sliceSize) {
 				byte[] bytes = new byte[(int)size];
 				int r = 0;
 				while(r < size) {
 					r += in.read(bytes, r, (int)(size - r));
 				}
-				FilePacket fp = new FilePacket(fm, bytes);
-				fp.setRecipients(recipients);
-				backend.sendMessage(fp);
+				backend.sendMessage(new FilePacket(fm, bytes));
 			} else {
 				FilePacket last = null;
 				while(size > 0) {
-					if(size > FilePacket.preferredSize) {
-						byte[] bytes = new byte[FilePacket.preferredSize];
+					if(size > FilePacket.sliceSize) {
+						byte[] bytes = new byte[FilePacket.sliceSize];
 						int r = 0;
 						while(r < FilePacket.minimumSize) {
-							r += in.read(bytes, r, FilePacket.preferredSize - r);
+							r += in.read(bytes, r, FilePacket.sliceSize - r);
 						}
-						if(r != FilePacket.preferredSize) {
+						if(r != FilePacket.sliceSize) {
 							byte[] bb = new byte[r];
 							System.arraycopy(bytes, 0, bb, 0, r);
 							bytes = bb;
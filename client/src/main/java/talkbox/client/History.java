@@ -0,0 +1,440 @@
+package talkbox.client;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.ScrollEvent;
+import talkbox.lib.*;
+
+/**
+ * The chat history shown in a ListView. Every message is written to a local
+ * file as it arrives, and only a window of messages is kept in the ListView.
+ * Messages are written and read back on a thread of their own, so the threads
+ * that receive and send them never wait on the disk. Where each message starts
+ * is kept in a second file rather than in memory.
+ * When the user scrolls past either end of the window, the next page of
+ * messages is read back from the file and the other end of the window is
+ * dropped, so memory stays the same however long the history gets.
+ *
+ * New messages are shown through a UiPulse, so a burst of messages is added to
+ * the ListView in one change per frame with one scroll.
+ * <p>
+ * Media is not written with the message. A full image is kept in the
+ * ImageStore and written as a ThumbnailMessage with the same id. Audio that
+ * the server sent as a reference is kept in a MediaStore and written as that
+ * reference, which is filled in again when it is read back. Other audio, such
+ * as this Client's own recordings and those too small for the server to keep,
+ * is written with the message, as the server may not have it to fetch again.
+ */
+public class History {
+	/**
+	 * The most messages kept in memory by default.
+	 */
+	public static final int defaultWindow = 500;
+	/**
+	 * How many messages are read back from the file at a time.
+	 */
+	public static final int pageSize = 100;
+	/**
+	 * Where the audio of messages in the history is kept.
+	 */
+	public static final File mediaDirectory = new File(new File(System.getProperty("user.home"), ".talkbox"), "audio");
+	/**
+	 * The most bytes of audio to keep.
+	 */
+	public static final long maxMediaBytes = 1024L * 1024 * 256;
+	private static MediaStore media;
+	private final int window;
+	private final UiPulse pulse;
+	/**
+	 * Writes messages to the file and reads them back, in the order they were
+	 * asked for, so a page is never read before it is written.
+	 */
+	private final ExecutorService io;
+	private ListView<Message> list;
+	private ScrollBar bar;
+	/**
+	 * How many messages have been added. Guarded by this History.
+	 */
+	private int count = 0;
+	/**
+	 * The messages, each written as its length and then the message, and
+	 * where each one starts, by its index in the history. Only used on the
+	 * io thread.
+	 */
+	private RandomAccessFile store;
+	private RandomAccessFile offsets;
+	private long size = 0;
+	/**
+	 * The index of the first message in the ListView. Only used on the FX
+	 * thread.
+	 */
+	private int first = 0;
+	/**
+	 * Messages after the end of the ListView waiting to be added at the end
+	 * of the frame. Only used on the FX thread.
+	 */
+	private final ArrayList<Message> incoming = new ArrayList<>();
+	private boolean paging = false;
+
+	/**
+	 * Create a new History that keeps a window of messages in memory.
+	 *
+	 * @param pulse The UiPulse to show new messages through.
+	 * @param window The most messages to keep in memory.
+	 */
+	public History(UiPulse pulse, int window) {
+		this.pulse = pulse;
+		this.window = Math.max(window, pageSize * 2);
+		io = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "history");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public History(UiPulse pulse) {
+		this(pulse, defaultWindow);
+	}
+
+	/**
+	 * Show this History in a ListView.
+	 *
+	 * @param list The ListView to show messages in.
+	 */
+	public void attach(ListView<Message> list) {
+		this.list = list;
+		pulse.onPulse(this::flush);
+		list.setOnScroll((ScrollEvent e) -> {
+			if(e.getDeltaY() > 0 && atTop()) {
+				older();
+			} else if(e.getDeltaY() < 0 && atBottom()) {
+				newer();
+			}
+		});
+	}
+
+	/**
+	 * Add a message to the end of the History. It is shown if the newest
+	 * messages are being shown, and written to the file later.
+	 *
+	 * @param m The message to add.
+	 */
+	public void add(Message m) {
+		synchronized(this) {
+			int index = count++;
+			pulse.post(() -> append(m, index));
+			io.submit(() -> write(m, index));
+		}
+	}
+
+	/**
+	 * Write a message to the end of the file. Only called on the io thread.
+	 *
+	 * @param m The message.
+	 * @param index The index of the message in the History.
+	 */
+	private void write(Message m, int index) {
+		byte[] bytes = new byte[0];
+		try {
+			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			try(ObjectOutputStream out = new ObjectOutputStream(bytesOut)) {
+				out.writeObject(withoutMedia(m));
+			}
+			bytes = bytesOut.toByteArray();
+		} catch(IOException ex) {
+			Logger.getLogger(History.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		try {
+			if(store == null) {
+				store = new RandomAccessFile(tempFile(".dat"), "rw");
+				offsets = new RandomAccessFile(tempFile(".idx"), "rw");
+			}
+			ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.length + 4);
+			DataOutputStream out = new DataOutputStream(record);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			store.seek(size);
+			store.write(record.toByteArray());
+			offsets.seek(index * 8L);
+			offsets.writeLong(size);
+			size += record.size();
+		} catch(IOException ex) {
+			Logger.getLogger(History.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	private static File tempFile(String suffix) throws IOException {
+		File f = File.createTempFile("talkbox-history", suffix);
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * @return The store of audio, opened the first time it is needed.
+	 * @throws IOException If the directory can not be used.
+	 */
+	private static synchronized MediaStore media() throws IOException {
+		if(media == null) {
+			media = new MediaStore(mediaDirectory, maxMediaBytes);
+		}
+		return media;
+	}
+
+	/**
+	 * Keep the media of a message out of the file.
+	 *
+	 * @param m The message.
+	 * @return The message to write, which refers to its media by hash.
+	 */
+	private static Message withoutMedia(Message m) {
+		try {
+			if(m instanceof ImageMessage) {
+				byte[] bytes = Base64.getDecoder().decode(((ImageMessage)m).base64image);
+				BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+				if(image != null) {
+					ImageStore.put(bytes);
+					return new ThumbnailMessage((ImageMessage)m, bytes, image);
+				}
+			} else if(m instanceof AudioMessage && ((AudioMessage)m).hasAudio()
+					&& ((AudioMessage)m).getHash() != null) {
+				AudioMessage am = (AudioMessage)m;
+				String hash = media().put(am.getData());
+				if(hash != null) {
+					return am.toReference(hash);
+				}
+			}
+		} catch(IOException | IllegalArgumentException ex) {
+			Logger.getLogger(History.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		return m;
+	}
+
+	/**
+	 * Fill in the audio of a message read back from the file, if it is still
+	 * kept. Only references the server sent are written without their audio,
+	 * so if it is not kept it can be fetched from the server again when it is
+	 * played, for as long as the server keeps it.
+	 *
+	 * @param m The message.
+	 */
+	private static void withMedia(Message m) {
+		if(!(m instanceof AudioMessage) || ((AudioMessage)m).hasAudio()) {
+			return;
+		}
+		AudioMessage am = (AudioMessage)m;
+		try {
+			File f = media().get(am.getHash());
+			if(f != null) {
+				am.fill(Files.readAllBytes(f.toPath()));
+			}
+		} catch(IOException | IllegalArgumentException ex) {
+			Logger.getLogger(History.class.getName()).log(Level.SEVERE, null, ex);
+		}
+	}
+
+	/**
+	 * Read messages back from the file. Only called on the io thread.
+	 *
+	 * @param from The index of the first message to read.
+	 * @param to The index after the last message to read.
+	 * @return The messages.
+	 */
+	private List<Message> read(int from, int to) {
+		ArrayList<Message> page = new ArrayList<>(to - from);
+		DataInputStream in = null;
+		try {
+			offsets.seek(from * 8L);
+			long start = offsets.readLong();
+			long end = size;
+			if(to * 8L < offsets.length()) {
+				offsets.seek(to * 8L);
+				end = offsets.readLong();
+			}
+			byte[] bytes = new byte[(int)(end - start)];
+			store.seek(start);
+			store.readFully(bytes);
+			in = new DataInputStream(new ByteArrayInputStream(bytes));
+		} catch(IOException | NullPointerException ex) {
+			Logger.getLogger(History.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		for(int i = from; i < to; i++) {
+			Message m = null;
+			try {
+				if(in != null) {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					if(bytes.length > 0) {
+						try(ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+							m = (Message)objects.readObject();
+						}
+						withMedia(m);
+					}
+				}
+			} catch(IOException | ClassNotFoundException ex) {
+				Logger.getLogger(History.class.getName()).log(Level.SEVERE, null, ex);
+			}
+			if(m == null) {
+				m = new Message(new Client(0), "This message could not be read back from the history.");
+			}
+			page.add(m);
+		}
+		return page;
+	}
+
+	/**
+	 * @return The index after the last message shown or waiting to be shown.
+	 */
+	private int end() {
+		return first + list.getItems().size() + incoming.size();
+	}
+
+	/**
+	 * Show a new message at the end of this frame, if the window is at the end
+	 * of the History.
+	 */
+	private void append(Message m, int index) {
+		if(end() == index) {
+			incoming.add(m);
+		}
+	}
+
+	/**
+	 * Add every message that arrived during this frame in one change, and
+	 * scroll to the end once.
+	 */
+	private void flush() {
+		if(incoming.isEmpty()) {
+			return;
+		}
+		ObservableList<Message> items = list.getItems();
+		items.addAll(incoming);
+		incoming.clear();
+		dropOldest();
+		list.scrollTo(items.size() - 1);
+	}
+
+	private void dropOldest() {
+		ObservableList<Message> items = list.getItems();
+		int extra = items.size() - window;
+		if(extra > 0) {
+			items.remove(0, extra);
+			first += extra;
+		}
+	}
+
+	/**
+	 * Read the page before the window back from the file.
+	 */
+	private void older() {
+		if(paging || first == 0) {
+			return;
+		}
+		paging = true;
+		int to = first;
+		int from = Math.max(0, to - pageSize);
+		io.submit(() -> {
+			List<Message> page = read(from, to);
+			pulse.post(() -> {
+				paging = false;
+				if(first != to) {
+					return;
+				}
+				ObservableList<Message> items = list.getItems();
+				items.addAll(0, page);
+				first = from;
+				int extra = items.size() - window;
+				if(extra > 0) {
+					items.remove(items.size() - extra, items.size());
+					incoming.clear();
+				}
+				list.scrollTo(page.size());
+			});
+		});
+	}
+
+	/**
+	 * Read the page after the window back from the file.
+	 */
+	private void newer() {
+		int from = end();
+		int to;
+		synchronized(this) {
+			to = Math.min(count, from + pageSize);
+		}
+		if(paging || from >= to) {
+			return;
+		}
+		paging = true;
+		io.submit(() -> {
+			List<Message> page = read(from, to);
+			pulse.post(() -> {
+				paging = false;
+				if(end() != from) {
+					return;
+				}
+				ObservableList<Message> items = list.getItems();
+				int shown = items.size() - 1;
+				items.addAll(incoming);
+				incoming.clear();
+				items.addAll(page);
+				int before = first;
+				dropOldest();
+				list.scrollTo(Math.max(0, shown - (first - before)));
+			});
+		});
+	}
+
+	private boolean atTop() {
+		ScrollBar b = scrollBar();
+		return b == null || b.getValue() <= b.getMin();
+	}
+
+	private boolean atBottom() {
+		ScrollBar b = scrollBar();
+		return b == null || b.getValue() >= b.getMax();
+	}
+
+	/**
+	 * @return The vertical ScrollBar of the ListView, or null if it has not
+	 * been made yet.
+	 */
+	private ScrollBar scrollBar() {
+		if(bar == null) {
+			for(Node n : list.lookupAll(".scroll-bar")) {
+				if(n instanceof ScrollBar && ((ScrollBar)n).getOrientation() == Orientation.VERTICAL) {
+					bar = (ScrollBar)n;
+					bar.valueProperty().addListener((o, a, b) -> {
+						if(b.doubleValue() <= bar.getMin()) {
+							older();
+						} else if(b.doubleValue() >= bar.getMax()) {
+							newer();
+						}
+					});
+				}
+			}
+		}
+		return bar;
+	}
+}
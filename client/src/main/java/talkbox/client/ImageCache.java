@@ -0,0 +1,331 @@
+package talkbox.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import talkbox.lib.*;
+
+/**
+ * A client wide cache of decoded images, so that a MessageCell can show an
+ * image message again without decoding it again. The cache is bounded by the
+ * number of bytes the decoded pixels take up, and evicts the least recently
+ * used image first.
+ *
+ * Images are decoded on a small pool of background threads, never on the FX
+ * thread, and are downsampled to the width they will be shown at, rounded up
+ * to a multiple of {@link #widthStep} so resizing the window does not decode
+ * everything again. Each width of a message is cached on its own. The most
+ * recently requested image is decoded first, since it belongs to a cell that
+ * is on screen now. Images that can not be decoded are logged and not cached.
+ */
+public class ImageCache {
+	/**
+	 * The default number of decoded pixel bytes to keep.
+	 */
+	public static final long defaultMaxBytes = 1024L * 1024 * 64;
+	/**
+	 * The cache shared by everything in the client.
+	 */
+	public static final ImageCache shared = new ImageCache(defaultMaxBytes);
+	/**
+	 * The number of threads decoding images.
+	 */
+	public static final int decodeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	/**
+	 * Widths images are decoded at are rounded up to a multiple of this.
+	 */
+	public static final int widthStep = 64;
+	private static final Base64.Decoder b64decoder = Base64.getDecoder();
+	private final LinkedHashMap<Key, Image> images;
+	private final ThreadPoolExecutor decoder;
+	private final AtomicLong requests = new AtomicLong();
+	private final long maxBytes;
+	private long bytes = 0;
+	private long hits = 0, misses = 0, evictions = 0;
+
+	/**
+	 * Create a new ImageCache.
+	 *
+	 * @param maxBytes The most decoded pixel bytes to keep.
+	 */
+	public ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		images = new LinkedHashMap<>(64, 0.75f, true);
+		decoder = new ThreadPoolExecutor(decodeThreads, decodeThreads, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(), r -> {
+					Thread t = new Thread(r, "image-decoder");
+					t.setDaemon(true);
+					return t;
+				});
+	}
+
+	/**
+	 * Get the decoded image of a message if it is cached at a width.
+	 *
+	 * @param m The message to get the image of.
+	 * @param width The width the image will be shown at, or 0 for its full
+	 * size.
+	 * @return The decoded image, or null if it has to be loaded.
+	 */
+	public synchronized Image getIfPresent(Message m, double width) {
+		Image image = images.get(new Key(m, width));
+		if(image != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return image;
+	}
+
+	/**
+	 * Decode the image of an ImageMessage in the background and cache it.
+	 *
+	 * @param im The ImageMessage to decode.
+	 * @param width The width the image will be shown at. Larger images are
+	 * downsampled to it while decoding.
+	 * @param done Called on the FX thread with the decoded image, or null if
+	 * it could not be decoded.
+	 * @return The pending request, which should be cancelled if the image is no
+	 * longer wanted.
+	 */
+	public Request load(ImageMessage im, double width, Consumer<Image> done) {
+		return load(im, () -> b64decoder.decode(im.base64image), width, done);
+	}
+
+	/**
+	 * Decode the image carried by a message in the background and cache it.
+	 *
+	 * @param m The message the image belongs to.
+	 * @param bytes Gets the encoded image. Called on a decoding thread.
+	 * @param width The width the image will be shown at. Larger images are
+	 * downsampled to it while decoding.
+	 * @param done Called on the FX thread with the decoded image, or null if
+	 * it could not be decoded.
+	 * @return The pending request, which should be cancelled if the image is no
+	 * longer wanted.
+	 */
+	public Request load(Message m, Supplier<byte[]> bytes, double width, Consumer<Image> done) {
+		Request r = new Request(m, bytes, width, done);
+		decoder.execute(r);
+		return r;
+	}
+
+	private synchronized void put(Key key, Image image) {
+		Image old = images.put(key, image);
+		if(old != null) {
+			bytes -= sizeOf(old);
+		}
+		bytes += sizeOf(image);
+		Iterator<Map.Entry<Key, Image>> it = images.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Map.Entry<Key, Image> eldest = it.next();
+			if(eldest.getKey().equals(key)) {
+				continue;
+			}
+			bytes -= sizeOf(eldest.getValue());
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Decode an image, downsampling it to at most the given width.
+	 *
+	 * @param bytes The encoded image.
+	 * @param width The widest the image should be, or 0 for its full size.
+	 * @return The decoded image.
+	 * @throws IOException If the image could not be decoded.
+	 */
+	private static Image decode(byte[] bytes, int width) throws IOException {
+		Image image;
+		if(width > 0 && widthOf(bytes) > width) {
+			image = new Image(new ByteArrayInputStream(bytes), width, 0, true, true);
+		} else {
+			image = new Image(new ByteArrayInputStream(bytes));
+		}
+		if(image.isError()) {
+			throw new IOException("Could not decode image", image.getException());
+		}
+		return image;
+	}
+
+	/**
+	 * @param width A width an image will be shown at.
+	 * @return The width to decode it at.
+	 */
+	private static int roundWidth(double width) {
+		if(width <= 0) {
+			return 0;
+		}
+		return (int)Math.ceil(width / widthStep) * widthStep;
+	}
+
+	/**
+	 * Read the width of an encoded image from its header, without decoding it.
+	 *
+	 * @param bytes The encoded image.
+	 * @return The width of the image, or -1 if it could not be read.
+	 */
+	private static int widthOf(byte[] bytes) {
+		try(ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if(!readers.hasNext()) {
+				return -1;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return reader.getWidth(0);
+			} finally {
+				reader.dispose();
+			}
+		} catch(IOException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param image A decoded image.
+	 * @return The number of bytes its pixels take up.
+	 */
+	private static long sizeOf(Image image) {
+		return (long)image.getWidth() * (long)image.getHeight() * 4;
+	}
+
+	/**
+	 * @return The number of decoded pixel bytes currently kept.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return How many times a cached image was found.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return How many times an image had to be decoded.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return How many images have been evicted to make room.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ImageCache: " + images.size() + " images, " + bytes + "/" + maxBytes + " bytes, "
+				+ hits + " hits, " + misses + " misses, " + evictions + " evictions";
+	}
+
+	/**
+	 * A pending decode of one image. Newer requests are decoded before older
+	 * ones.
+	 */
+	public class Request implements Runnable, Comparable<Request> {
+		private final Message m;
+		private final Supplier<byte[]> bytes;
+		private final Key key;
+		private final Consumer<Image> done;
+		private final long order = requests.incrementAndGet();
+		private volatile boolean cancelled = false;
+
+		private Request(Message m, Supplier<byte[]> bytes, double width, Consumer<Image> done) {
+			this.m = m;
+			this.bytes = bytes;
+			this.key = new Key(m, width);
+			this.done = done;
+		}
+
+		/**
+		 * Stop this request if it has not been decoded yet.
+		 */
+		public void cancel() {
+			cancelled = true;
+			decoder.remove(this);
+		}
+
+		@Override
+		public void run() {
+			if(cancelled) {
+				return;
+			}
+			Image image;
+			synchronized(ImageCache.this) {
+				image = images.get(key);
+			}
+			if(image == null) {
+				try {
+					image = decode(bytes.get(), key.width);
+					put(key, image);
+				} catch(IOException | IllegalArgumentException ex) {
+					Logger.getLogger(ImageCache.class.getName()).log(Level.SEVERE, "Could not decode the image of message " + m.id, ex);
+					image = null;
+				}
+			}
+			final Image decoded = image;
+			Platform.runLater(() -> {
+				if(!cancelled) {
+					done.accept(decoded);
+				}
+			});
+		}
+
+		@Override
+		public int compareTo(Request o) {
+			return Long.compare(o.order, order);
+		}
+	}
+
+	/**
+	 * Identifies an image by the id of its message and the width it was
+	 * decoded at.
+	 */
+	private static final class Key {
+		private final long id;
+		private final int width;
+
+		private Key(Message m, double width) {
+			id = m.id;
+			this.width = roundWidth(width);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(id ^ (id >>> 32)) * 31 + width;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return id == other.id && width == other.width;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package talkbox.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import talkbox.lib.*;
+
+/**
+ * Full size images that have been downloaded, kept on disk under their content
+ * hash so that they only have to be fetched once. The images used least
+ * recently are deleted once they take up more than {@link #maxBytes}.
+ */
+public class ImageStore {
+	/**
+	 * Where downloaded images are kept.
+	 */
+	public static final File directory = new File(new File(System.getProperty("user.home"), ".talkbox"), "images");
+	/**
+	 * The most bytes of images to keep, the same as the server keeps of
+	 * media.
+	 */
+	public static final long maxBytes = 1024L * 1024 * 512;
+	private static MediaStore store;
+
+	/**
+	 * @return The store of images, opened the first time it is needed.
+	 * @throws IOException If the directory can not be used.
+	 */
+	private static synchronized MediaStore store() throws IOException {
+		if(store == null) {
+			store = new MediaStore(directory, maxBytes);
+		}
+		return store;
+	}
+
+	/**
+	 * Get the full size image of a ThumbnailMessage if it is available
+	 * locally, either because it was sent from here or was already downloaded.
+	 *
+	 * @param tm The ThumbnailMessage of the image.
+	 * @return The image file, or null if it has to be downloaded.
+	 */
+	public static File get(ThumbnailMessage tm) {
+		if(tm.file != null && tm.file.isFile()) {
+			return tm.file;
+		}
+		if(!Thumbnails.isHash(tm.hash)) {
+			return null;
+		}
+		try {
+			return store().get(tm.hash);
+		} catch(IOException ex) {
+			Logger.getLogger(ImageStore.class.getName()).log(Level.SEVERE, null, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Keep an image that is about to be sent.
+	 *
+	 * @param bytes The encoded image.
+	 * @return The file the image was kept in, named by its hash.
+	 * @throws IOException If the image could not be kept, or is too large.
+	 */
+	public static File put(byte[] bytes) throws IOException {
+		MediaStore s = store();
+		String hash = s.put(bytes);
+		File f = hash == null ? null : s.get(hash);
+		if(f == null) {
+			throw new IOException("The image is too large to keep");
+		}
+		return f;
+	}
+
+	/**
+	 * @param tm The ThumbnailMessage of the image.
+	 * @return The file to download the image to, or null if the message does
+	 * not have a valid hash.
+	 */
+	public static File partFile(ThumbnailMessage tm) {
+		if(!Thumbnails.isHash(tm.hash)) {
+			return null;
+		}
+		try {
+			store();
+		} catch(IOException ex) {
+			Logger.getLogger(ImageStore.class.getName()).log(Level.SEVERE, null, ex);
+			return null;
+		}
+		return new File(directory, tm.hash + ".part");
+	}
+
+	/**
+	 * Keep a downloaded image, if its contents match its hash.
+	 *
+	 * @param tm The ThumbnailMessage of the image.
+	 * @param part The file the image was downloaded to.
+	 * @return The kept image file, or null if the download was bad.
+	 */
+	public static File store(ThumbnailMessage tm, File part) {
+		File f = null;
+		try {
+			f = store().put(tm.hash, part);
+		} catch(IOException ex) {
+			Logger.getLogger(ImageStore.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		part.delete();
+		return f;
+	}
+}
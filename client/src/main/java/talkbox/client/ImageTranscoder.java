@@ -0,0 +1,163 @@
+package talkbox.client;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import talkbox.lib.*;
+
+/**
+ * Prepares images for sending. Images are scaled down to a maximum size and
+ * encoded again to fit a byte budget. Encoding them again also drops any
+ * metadata, such as where a photo was taken.
+ */
+public class ImageTranscoder {
+	public static final int defaultMaxDimension = 2048;
+	public static final int defaultMaxBytes = 1024 * 512;
+	public static final float defaultQuality = 0.85f;
+	/**
+	 * The lowest JPEG quality used before the image is scaled down further
+	 * instead.
+	 */
+	public static final float minQuality = 0.5f;
+	/**
+	 * Images are never scaled smaller than this to fit the byte budget.
+	 */
+	public static final int minDimension = 256;
+	private final int maxDimension;
+	private final int maxBytes;
+	private final float quality;
+
+	/**
+	 * Create a new ImageTranscoder.
+	 *
+	 * @param maxDimension The longest either side of an image may be.
+	 * @param maxBytes How many bytes an encoded image should fit in.
+	 * @param quality The JPEG quality to try first, from 0 to 1.
+	 */
+	public ImageTranscoder(int maxDimension, int maxBytes, float quality) {
+		this.maxDimension = maxDimension;
+		this.maxBytes = maxBytes;
+		this.quality = quality;
+	}
+
+	/**
+	 * Create a new ImageTranscoder with the default limits.
+	 */
+	public ImageTranscoder() {
+		this(defaultMaxDimension, defaultMaxBytes, defaultQuality);
+	}
+
+	/**
+	 * The result of transcoding an image.
+	 */
+	public static class Result {
+		/**
+		 * The image that was encoded.
+		 */
+		public final BufferedImage image;
+		/**
+		 * The encoded image.
+		 */
+		public final byte[] bytes;
+
+		private Result(BufferedImage image, byte[] bytes) {
+			this.image = image;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Transcode an image file.
+	 *
+	 * @param file The image file.
+	 * @return The transcoded image, or null if the file is not an image that
+	 * can be read.
+	 * @throws IOException
+	 */
+	public Result transcode(File file) throws IOException {
+		BufferedImage image = ImageIO.read(file);
+		if(image == null) {
+			return null;
+		}
+		if(file.length() <= maxBytes && image.getWidth() <= maxDimension && image.getHeight() <= maxDimension
+				&& "gif".equals(formatOf(file))) {
+			//Encoding a gif again would lose its animation, and it has no metadata worth dropping.
+			return new Result(image, Files.readAllBytes(file.toPath()));
+		}
+		boolean alpha = image.getColorModel().hasAlpha();
+		int side = maxDimension;
+		while(true) {
+			BufferedImage scaled = Thumbnails.scale(image, side);
+			if(alpha) {
+				byte[] bytes = Thumbnails.encode(scaled);
+				if(bytes.length <= maxBytes || side <= minDimension) {
+					return new Result(scaled, bytes);
+				}
+			} else {
+				scaled = toRGB(scaled);
+				for(float q = quality; ; q -= 0.1f) {
+					byte[] bytes = encodeJPEG(scaled, Math.max(q, minQuality));
+					if(bytes.length <= maxBytes || (q <= minQuality && side <= minDimension)) {
+						return new Result(scaled, bytes);
+					}
+					if(q <= minQuality) {
+						break;
+					}
+				}
+			}
+			side = Math.max(minDimension, Math.max(scaled.getWidth(), scaled.getHeight()) * 3 / 4);
+		}
+	}
+
+	private static BufferedImage toRGB(BufferedImage image) {
+		if(image.getType() == BufferedImage.TYPE_INT_RGB) {
+			return image;
+		}
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+
+	/**
+	 * Encode an image as a JPEG without any metadata.
+	 *
+	 * @param image The image to encode.
+	 * @param quality The JPEG quality, from 0 to 1.
+	 * @return The encoded image.
+	 * @throws IOException
+	 */
+	private static byte[] encodeJPEG(BufferedImage image, float quality) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	private static String formatOf(File file) throws IOException {
+		try(ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			return readers.hasNext() ? readers.next().getFormatName().toLowerCase() : null;
+		}
+	}
+}
@@ -15,6 +15,7 @@ import javafx.scene.input.Dragboard;
 import javafx.scene.input.TransferMode;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
+import talkbox.lib.VoiceActivity;
 
 public class Main extends Application {
 	private static final ExecutorService threadPool = Executors.newCachedThreadPool();
@@ -26,12 +27,16 @@ public class Main extends Application {
 		Parent root = loader.load();
 		Scene scene = new Scene(root);
 
-		NetworkMethods.backend.setController(loader.getController());
+		ChatWindowController controller = loader.getController();
+		NetworkMethods.backend.setController(controller);
 		NetworkMethods.backend.start();
 
 		stage.setOnCloseRequest((WindowEvent event) -> {
 			NetworkMethods.backend.stop();
 			threadPool.shutdown();
+			Logger.getLogger(Main.class.getName()).log(Level.INFO, ImageCache.shared.toString());
+			Logger.getLogger(Main.class.getName()).log(Level.INFO, controller.getPulse().toString());
+			Logger.getLogger(Main.class.getName()).log(Level.INFO, VoiceActivity.totals());
 		});
 
 		scene.setOnDragOver((DragEvent dg) -> {
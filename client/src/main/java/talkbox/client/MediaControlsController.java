@@ -5,19 +5,19 @@ import java.net.URL;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javafx.application.Platform;
-import javafx.beans.InvalidationListener;
 import javafx.beans.Observable;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
 import javafx.scene.Parent;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.control.Slider;
-import javafx.scene.media.MediaPlayer;
-import javafx.util.Duration;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.paint.Color;
 
 public class MediaControlsController implements Initializable {
 	@FXML
@@ -26,11 +26,20 @@ public class MediaControlsController implements Initializable {
 	private Slider seekbar;
 	@FXML
 	private Button playButton;
-	private MediaPlayer player;
+	@FXML
+	private Canvas waveform;
+	@FXML
+	private Label duration;
+	private AudioPlayback.Player player;
+	/**
+	 * How many peaks of the waveform were last drawn as played, so it is only
+	 * drawn again when that changes.
+	 */
+	private int drawn = -1;
 
 	@FXML
 	private void onPlay(ActionEvent event) {
-		if(player.getStatus() == MediaPlayer.Status.PLAYING) {
+		if(player.isPlaying()) {
 			player.pause();
 		} else {
 			player.play();
@@ -39,55 +48,88 @@ public class MediaControlsController implements Initializable {
 	}
 
 	private void update() {
-		Platform.runLater(() -> {
-			if(player.getStatus() == MediaPlayer.Status.PLAYING) {
-				playButton.setText("Pause");
-			} else {
-				playButton.setText("Play");
-			}
-			if(!seekbar.isValueChanging()) {
-				double s = player.getCurrentTime().toSeconds();
-				double t = player.getTotalDuration().toSeconds();
-				double d = s / t;
-				d *= 100;
-				seekbar.setValue(d);
-			}
-		});
+		if(player.isPlaying()) {
+			playButton.setText("Pause");
+		} else {
+			playButton.setText("Play");
+		}
+		if(!seekbar.isValueChanging()) {
+			seekbar.setValue(player.getProgress() * 100);
+		}
+		playButton.setDisable(player.isUnavailable());
+		long length = player.getMessage().getDurationMillis();
+		if(player.isUnavailable()) {
+			duration.setText("No longer available");
+		} else if(player.isPlaying() || player.getProgress() > 0) {
+			duration.setText(format((long)(player.getProgress() * length)) + " / " + format(length));
+		} else {
+			duration.setText(format(length));
+		}
+		drawWaveform();
+	}
+
+	private static String format(long millis) {
+		long seconds = millis / 1000;
+		return String.format("%d:%02d", seconds / 60, seconds % 60);
+	}
+
+	/**
+	 * Draw the peaks of the recording as bars, with the part already played
+	 * in another colour.
+	 */
+	private void drawWaveform() {
+		byte[] peaks = player.getMessage().getPeaks();
+		if(peaks == null || peaks.length == 0) {
+			waveform.setVisible(false);
+			return;
+		}
+		int played = (int)Math.round(player.getProgress() * peaks.length);
+		if(played == drawn) {
+			return;
+		}
+		drawn = played;
+		GraphicsContext g = waveform.getGraphicsContext2D();
+		double w = waveform.getWidth();
+		double h = waveform.getHeight();
+		double bar = w / peaks.length;
+		g.clearRect(0, 0, w, h);
+		for(int i = 0; i < peaks.length; i++) {
+			double height = Math.max(1, (peaks[i] & 0xff) / 255.0 * h);
+			g.setFill(i < played ? Color.STEELBLUE : Color.GRAY);
+			g.fillRect(i * bar, (h - height) / 2, Math.max(1, bar - 1), height);
+		}
+	}
+
+	@FXML
+	private void onWaveformClicked(MouseEvent event) {
+		player.seek(event.getX() / waveform.getWidth());
+		update();
 	}
 
 	@FXML
 	private void onStop(ActionEvent event) {
 		player.stop();
 		seekbar.setValue(0);
-		player.seek(player.getStartTime());
 	}
 
 	@Override
 	public void initialize(URL location, ResourceBundle resources) {
 		seekbar.valueProperty().addListener((Observable observable) -> {
 			if(seekbar.isValueChanging()) {
-				double d = seekbar.getValue();
-				d /= 100;
-				d *= player.getTotalDuration().toSeconds();
-				player.seek(Duration.seconds(d));
+				player.seek(seekbar.getValue() / 100);
 			}
 		});
 	}
 
-	public void init(MediaPlayer player, String text) {
+	public void init(AudioPlayback.Player player, String text) {
 		label.setText(text);
 		this.player = player;
-		seekbar.setValue(0);
-		player.setOnEndOfMedia(() -> {
-			player.stop();
-			player.seek(player.getStartTime());
-		});
-		player.currentTimeProperty().addListener((Observable observable) -> {
-			update();
-		});
+		drawn = -1;
+		player.setOnUpdate(this::update);
+		update();
 	}
 
-	public static Parent MediaControls(MediaPlayer player, String text) {
+	public static Parent MediaControls(AudioPlayback.Player player, String text) {
 		FXMLLoader loader = new FXMLLoader(MediaControlsController.class.getResource("MediaControls.fxml"));
 		try {
 			loader.load();
@@ -0,0 +1,86 @@
+package talkbox.client;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.CompletableFuture;
+import talkbox.lib.*;
+
+/**
+ * This class is responsible for fetching media kept by the server. The media
+ * is requested one range at a time, and the next range is only requested once
+ * the last has arrived.
+ */
+public class MediaGetter {
+	/**
+	 * How many bytes are requested at once.
+	 */
+	public static final int rangeSize = 1024 * 128;
+	public final String hash;
+	private final byte[] media;
+	private final CompletableFuture<byte[]> done = new CompletableFuture<>();
+	private long received = 0;
+	private long requested = 0;
+
+	/**
+	 * Create a new MediaGetter.
+	 *
+	 * @param hash The content hash of the media.
+	 * @param size The size of the media.
+	 */
+	public MediaGetter(String hash, int size) {
+		this.hash = hash;
+		media = new byte[size];
+	}
+
+	/**
+	 * @return Completed with the media once all of it has arrived and matches
+	 * its hash.
+	 */
+	public CompletableFuture<byte[]> getDone() {
+		return done;
+	}
+
+	/**
+	 * @param self The Client fetching the media.
+	 * @return The request for the next range, or null if everything has been
+	 * requested or the last range has not all arrived yet.
+	 */
+	public synchronized MediaRequest nextRequest(Client self) {
+		if(received < requested || (requested >= media.length && media.length > 0) || done.isDone()) {
+			return null;
+		}
+		long start = requested;
+		requested = Math.min(media.length, start + rangeSize);
+		return new MediaRequest(self, hash, start, requested);
+	}
+
+	/**
+	 * Write a MediaPacket that has arrived.
+	 *
+	 * @param p The MediaPacket.
+	 */
+	public synchronized void receivePacket(MediaPacket p) {
+		if(done.isDone()) {
+			return;
+		}
+		if(!p.isAvailable() || p.totalBytes != media.length) {
+			done.completeExceptionally(new FileNotFoundException("The server no longer has " + hash));
+			return;
+		}
+		System.arraycopy(p.bytes, 0, media, (int)p.start, p.bytes.length);
+		received += p.bytes.length;
+		if(received >= media.length) {
+			if(Thumbnails.hash(media).equals(hash)) {
+				done.complete(media);
+			} else {
+				done.completeExceptionally(new FileNotFoundException("Bad download of " + hash));
+			}
+		}
+	}
+
+	/**
+	 * @return True once the media has arrived or can not be fetched.
+	 */
+	public boolean isClosed() {
+		return done.isDone();
+	}
+}
@@ -0,0 +1,40 @@
+package talkbox.client;
+
+import talkbox.lib.*;
+
+/**
+ * Identifies a message by its id, for caches that outlive the Message objects
+ * shown in the ListView. Unlike the Message itself, a key holds nothing but
+ * the id.
+ */
+public final class MessageKey {
+	private final long id;
+
+	private MessageKey(long id) {
+		this.id = id;
+	}
+
+	/**
+	 * @param m A message.
+	 * @return The key of the message.
+	 */
+	public static MessageKey of(Message m) {
+		return new MessageKey(m.id);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int)(id ^ (id >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(obj == null) {
+			return false;
+		}
+		if(getClass() != obj.getClass()) {
+			return false;
+		}
+		return id == ((MessageKey)obj).id;
+	}
+}
@@ -25,8 +25,8 @@ public class NetworkMethods {
         try {
             sock = new Socket(rcvrAddress, port);
 			sock.setSoTimeout(100);
-            objOut = new ObjectOutputStream(sock.getOutputStream());
-            objIn = new ObjectInputStream(sock.getInputStream()); //construct the input stream after the output stream in case the server constructed the input stream first
+            objOut = new DictionaryOutputStream(new FrameOutputStream(sock.getOutputStream()));
+            objIn = new DictionaryInputStream(new FrameInputStream(sock.getInputStream())); //construct the input stream after the output stream in case the server constructed the input stream first
 			return (Client)objIn.readObject();
         }catch(IOException | ClassNotFoundException ex){
             //error handling
@@ -74,7 +74,7 @@ public class NetworkMethods {
 					backend.removeClient((Client)objIn.readObject());
 					break;
 				case "clients":
-					backend.addClients((HashMap<String, Client>)objIn.readObject());
+					backend.addClients((Client[])objIn.readObject());
 					break;
 				default:
 					break;
@@ -0,0 +1,55 @@
+package talkbox.client;
+
+import talkbox.lib.*;
+
+/**
+ * The name each online Client was last shown in the roster with, by id. Every
+ * chat message names its sender, but the roster only has to hear about a
+ * sender that it does not have yet or that has been renamed, so this is
+ * checked first on the thread that receives messages. It is thread safe.
+ */
+public class Presence {
+	/**
+	 * Stands for a Client without a name, as the map can not hold null.
+	 */
+	private static final String noName = "";
+	private final LongMap<String> names = new LongMap<>();
+
+	private static String nameOf(Client c) {
+		String name = c.getName();
+		return name == null ? noName : name;
+	}
+
+	/**
+	 * Note that a Client has been shown in the roster as it is now.
+	 *
+	 * @param c The Client.
+	 * @return False if it was already shown with the same name, so the roster
+	 * does not have to be told.
+	 */
+	public synchronized boolean put(Client c) {
+		String name = nameOf(c);
+		return !name.equals(names.put(c.id, name));
+	}
+
+	/**
+	 * Note that a Client has left the roster.
+	 *
+	 * @param c The Client.
+	 */
+	public synchronized void remove(Client c) {
+		names.remove(c.id);
+	}
+
+	/**
+	 * Note that the roster now holds exactly these Clients.
+	 *
+	 * @param clients The Clients.
+	 */
+	public synchronized void setAll(Client[] clients) {
+		names.clear();
+		for(Client c : clients) {
+			names.put(c.id, nameOf(c));
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package talkbox.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javafx.collections.ObservableList;
+import talkbox.lib.*;
+
+/**
+ * The online Clients, kept sorted by name in an ObservableList. Each Client is
+ * found by its id through a map and a binary search, and joins, leaves and
+ * renames are applied to the list as a single add, remove or set, so presence
+ * changes cost O(log n) to find instead of a scan of the whole list. Many
+ * changes at once are merged into the list and applied as one change.
+ */
+public class RosterModel {
+	/**
+	 * The most changes {@link #apply} makes one at a time. With more, the
+	 * list is rebuilt and replaced in one change.
+	 */
+	public static final int rebuildThreshold = 64;
+	private final ObservableList<Client> items;
+	/**
+	 * The sort key of each Client in the list, in the same order as the list.
+	 */
+	private final ArrayList<String> keys = new ArrayList<>();
+	/**
+	 * The sort key each Client was added with, by id. Clients can be renamed
+	 * in place, so the key is kept rather than worked out again.
+	 */
+	private final LongMap<String> keyOf = new LongMap<>();
+
+	/**
+	 * Create a new RosterModel that keeps a list up to date. The list is
+	 * cleared.
+	 *
+	 * @param items The list to keep up to date.
+	 */
+	public RosterModel(ObservableList<Client> items) {
+		this.items = items;
+		items.clear();
+	}
+
+	private static String keyFor(Client c) {
+		String name = c.getName();
+		return (name == null ? "" : name.toLowerCase()) + '\0' + c.getIDString();
+	}
+
+	/**
+	 * Add a Client, or update it if it is already in the roster. A renamed
+	 * Client is moved to its new place.
+	 *
+	 * @param c The Client.
+	 */
+	public void put(Client c) {
+		String key = keyFor(c);
+		String old = keyOf.put(c.id, key);
+		if(old == null) {
+			int i = -Collections.binarySearch(keys, key) - 1;
+			keys.add(i, key);
+			items.add(i, c);
+			return;
+		}
+		int i = Collections.binarySearch(keys, old);
+		if(old.equals(key)) {
+			items.set(i, c);
+			return;
+		}
+		keys.remove(i);
+		int j = -Collections.binarySearch(keys, key) - 1;
+		keys.add(j, key);
+		if(i == j) {
+			items.set(i, c);
+		} else {
+			items.remove(i);
+			items.add(j, c);
+		}
+	}
+
+	/**
+	 * Remove a Client from the roster.
+	 *
+	 * @param c The Client.
+	 * @return True if it was in the roster, false otherwise.
+	 */
+	public boolean remove(Client c) {
+		String key = keyOf.remove(c.id);
+		if(key == null) {
+			return false;
+		}
+		int i = Collections.binarySearch(keys, key);
+		keys.remove(i);
+		items.remove(i);
+		return true;
+	}
+
+	/**
+	 * Make the roster hold exactly these Clients, removing the ones not in it
+	 * and adding or updating the rest.
+	 *
+	 * @param clients The Clients that are online.
+	 */
+	public void setAll(List<Client> clients) {
+		LongMap<Client> ids = new LongMap<>(clients.size());
+		for(Client c : clients) {
+			ids.put(c.id, c);
+		}
+		ArrayList<Client> gone = new ArrayList<>();
+		for(Client c : items) {
+			if(!ids.containsKey(c.id)) {
+				gone.add(c);
+			}
+		}
+		apply(clients, gone);
+	}
+
+	/**
+	 * Add or update some Clients and remove others. A few changes are made one
+	 * at a time; more are merged into the list in one pass and applied as a
+	 * single change.
+	 *
+	 * @param puts The Clients to add or update.
+	 * @param removes The Clients to remove, none of which are in puts.
+	 */
+	public void apply(Collection<Client> puts, Collection<Client> removes) {
+		if(puts.size() + removes.size() <= rebuildThreshold) {
+			for(Client c : removes) {
+				remove(c);
+			}
+			for(Client c : puts) {
+				put(c);
+			}
+			return;
+		}
+		//Where the Clients that leave or move are now, to be left out.
+		int[] drop = new int[puts.size() + removes.size()];
+		int dropped = 0;
+		for(Client c : removes) {
+			String old = keyOf.remove(c.id);
+			int i = old == null ? -1 : Collections.binarySearch(keys, old);
+			if(i >= 0) {
+				drop[dropped++] = i;
+			}
+		}
+		LongMap<Entry> changed = new LongMap<>(puts.size());
+		for(Client c : puts) {
+			String key = keyFor(c);
+			String old = keyOf.put(c.id, key);
+			if(changed.put(c.id, new Entry(key, c)) == null && old != null) {
+				drop[dropped++] = Collections.binarySearch(keys, old);
+			}
+		}
+		Arrays.sort(drop, 0, dropped);
+		ArrayList<Entry> added = changed.values();
+		added.sort((a, b) -> a.key.compareTo(b.key));
+		//Merge by copying the runs of the old list between the places the
+		//new entries go and the old ones are left out.
+		ArrayList<String> newKeys = new ArrayList<>(keys.size() + added.size());
+		ArrayList<Client> newItems = new ArrayList<>(keys.size() + added.size());
+		int from = 0;
+		int d = 0;
+		for(Entry e : added) {
+			int to = Collections.binarySearch(keys, e.key);
+			to = to < 0 ? -to - 1 : to;
+			for(; d < dropped && drop[d] < to; d++) {
+				copy(newKeys, newItems, from, drop[d]);
+				from = drop[d] + 1;
+			}
+			copy(newKeys, newItems, from, Math.max(from, to));
+			from = Math.max(from, to);
+			newKeys.add(e.key);
+			newItems.add(e.client);
+		}
+		for(; d < dropped; d++) {
+			copy(newKeys, newItems, from, drop[d]);
+			from = drop[d] + 1;
+		}
+		copy(newKeys, newItems, from, keys.size());
+		keys.clear();
+		keys.addAll(newKeys);
+		items.setAll(newItems);
+	}
+
+	private void copy(ArrayList<String> newKeys, ArrayList<Client> newItems, int from, int to) {
+		if(from < to) {
+			newKeys.addAll(keys.subList(from, to));
+			newItems.addAll(items.subList(from, to));
+		}
+	}
+
+	/**
+	 * @param id The id of a Client.
+	 * @return Where the Client is in the list, or -1 if it is not.
+	 */
+	public int indexOf(long id) {
+		String key = keyOf.get(id);
+		return key == null ? -1 : Collections.binarySearch(keys, key);
+	}
+
+	/**
+	 * @return How many Clients are online.
+	 */
+	public int size() {
+		return keys.size();
+	}
+
+	private static class Entry {
+		private final String key;
+		private final Client client;
+
+		private Entry(String key, Client c) {
+			this.key = key;
+			client = c;
+		}
+	}
+}
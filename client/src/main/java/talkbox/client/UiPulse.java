@@ -0,0 +1,112 @@
+package talkbox.client;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javafx.animation.AnimationTimer;
+
+/**
+ * Collects updates for the UI from other threads and applies them once per
+ * frame, instead of each update posting its own task to the FX thread. Events
+ * posted here should only record what changed; components then apply
+ * everything recorded in a frame as one bulk change from their flush step.
+ */
+public class UiPulse extends AnimationTimer {
+	/**
+	 * The most events applied in one frame. Any more wait for the next frame,
+	 * so a burst can not freeze the UI.
+	 */
+	public static final int maxEventsPerPulse = 2000;
+	private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<>();
+	private final CopyOnWriteArrayList<Runnable> flushers = new CopyOnWriteArrayList<>();
+	/**
+	 * Set when a component has recorded changes of its own for its flusher
+	 * to apply.
+	 */
+	private volatile boolean flushRequested = false;
+	private volatile int lastPulseEvents = 0;
+	private volatile int maxPulseEvents = 0;
+	private volatile long pulses = 0;
+	private volatile long totalEvents = 0;
+
+	/**
+	 * Queue an event to be run on the FX thread at the next frame.
+	 *
+	 * @param event The event.
+	 */
+	public void post(Runnable event) {
+		events.add(event);
+	}
+
+	/**
+	 * Run something on the FX thread after the events of every frame that had
+	 * any.
+	 *
+	 * @param flusher What to run.
+	 */
+	public void onPulse(Runnable flusher) {
+		flushers.add(flusher);
+	}
+
+	/**
+	 * Run the flushers at the next frame even if no event is posted, for
+	 * components that record their changes themselves.
+	 */
+	public void requestFlush() {
+		flushRequested = true;
+	}
+
+	@Override
+	public void handle(long now) {
+		int n = 0;
+		Runnable event;
+		while(n < maxEventsPerPulse && (event = events.poll()) != null) {
+			event.run();
+			n++;
+		}
+		if(n == 0 && !flushRequested) {
+			return;
+		}
+		flushRequested = false;
+		for(Runnable f : flushers) {
+			f.run();
+		}
+		lastPulseEvents = n;
+		maxPulseEvents = Math.max(maxPulseEvents, n);
+		pulses++;
+		totalEvents += n;
+	}
+
+	/**
+	 * @return How many events the last frame with any applied.
+	 */
+	public int getLastPulseEvents() {
+		return lastPulseEvents;
+	}
+
+	/**
+	 * @return The most events any one frame applied.
+	 */
+	public int getMaxPulseEvents() {
+		return maxPulseEvents;
+	}
+
+	/**
+	 * @return How many frames have applied events.
+	 */
+	public long getPulses() {
+		return pulses;
+	}
+
+	/**
+	 * @return How many events have been applied.
+	 */
+	public long getTotalEvents() {
+		return totalEvents;
+	}
+
+	@Override
+	public String toString() {
+		return "UiPulse: " + totalEvents + " events in " + pulses + " pulses, last " + lastPulseEvents
+				+ ", most " + maxPulseEvents;
+	}
+}
@@ -0,0 +1,257 @@
+package talkbox.client;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import talkbox.lib.*;
+
+/**
+ * Plays streams of AudioFrames as they arrive. Each stream gets a small jitter
+ * buffer: playback starts once a little audio has arrived, frames are played
+ * in order, and a frame that is late for too long is skipped. When a stream
+ * ends, its audio is handed on as an AudioMessage so it can be played again
+ * from the history. Streams from voice rooms are only played.
+ */
+public class VoicePlayback {
+	/**
+	 * How much audio to buffer before a stream starts playing.
+	 */
+	public static final long prebufferMillis = 80;
+	/**
+	 * How long a stream waits for its next frame before skipping it, if later
+	 * frames have arrived.
+	 */
+	public static final long lateMillis = 60;
+	/**
+	 * How long a stream waits for any frame before it is treated as ended.
+	 */
+	public static final long streamTimeoutMillis = 2000;
+	/**
+	 * How many ended streams are remembered, so frames of them that arrive
+	 * again are ignored.
+	 */
+	public static final int endedLimit = 64;
+	private final LongMap<Stream> streams = new LongMap<>();
+	private final HashSet<Long> ended = new HashSet<>();
+	private final ArrayDeque<Long> endedOrder = new ArrayDeque<>();
+	private final Consumer<AudioMessage> finished;
+	private final ExecutorService threads;
+
+	/**
+	 * Create a new VoicePlayback.
+	 *
+	 * @param finished Called with the whole recording of each stream once it
+	 * ends.
+	 */
+	public VoicePlayback(Consumer<AudioMessage> finished) {
+		this.finished = finished;
+		threads = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "voice-playback");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Queue a received frame for playback.
+	 *
+	 * @param f The frame.
+	 * @param audible False if the stream should only be kept for the history,
+	 * not played.
+	 */
+	public void receive(AudioFrame f, boolean audible) {
+		if(AudioCodecs.forName(f.codec) == null) {
+			Logger.getLogger(VoicePlayback.class.getName()).log(Level.WARNING, "Unknown audio codec {0}", f.codec);
+			return;
+		}
+		Stream s;
+		synchronized(streams) {
+			if(ended.contains(f.stream)) {
+				return;
+			}
+			s = streams.get(f.stream);
+			if(s == null) {
+				s = new Stream(f.sender, f.getFormat(), audible, f.room == null);
+				streams.put(f.stream, s);
+				final Stream started = s;
+				threads.submit(() -> {
+					started.play();
+					end(f.stream, started);
+				});
+			}
+		}
+		s.add(f);
+	}
+
+	private void end(long stream, Stream s) {
+		synchronized(streams) {
+			streams.remove(stream);
+			ended.add(stream);
+			endedOrder.add(stream);
+			while(endedOrder.size() > endedLimit) {
+				ended.remove(endedOrder.poll());
+			}
+		}
+		byte[] wav = s.toWAV();
+		if(wav != null) {
+			finished.accept(new AudioMessage(s.sender, wav));
+		}
+	}
+
+	/**
+	 * The jitter buffer of one stream.
+	 */
+	private static class Stream {
+		private final Client sender;
+		private final AudioFormat format;
+		private final PriorityQueue<AudioFrame> frames;
+		private final AudioBuffer recorded;
+		/**
+		 * Frames are decoded into this, so playing allocates nothing.
+		 */
+		private byte[] pcm = new byte[0];
+		private long buffered = 0;
+		private long lastArrival = System.currentTimeMillis();
+		private final boolean audible;
+		private final boolean record;
+		private int next = -1;
+		private boolean last = false;
+
+		private Stream(Client sender, AudioFormat format, boolean audible, boolean record) {
+			this.sender = sender;
+			this.format = format;
+			this.audible = audible;
+			this.record = record;
+			recorded = record ? new AudioBuffer(format) : null;
+			frames = new PriorityQueue<>((a, b) -> Integer.compare(a.index, b.index));
+		}
+
+		private synchronized void add(AudioFrame f) {
+			if(f.index < next) {
+				return;
+			}
+			frames.add(f);
+			buffered += f.getMillis();
+			lastArrival = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the next frame to play.
+		 *
+		 * @return The frame, or null if the stream has ended.
+		 * @throws InterruptedException
+		 */
+		private synchronized AudioFrame take() throws InterruptedException {
+			if(next < 0) {
+				while(buffered < prebufferMillis && !hasLast() && !timedOut()) {
+					wait(prebufferMillis);
+				}
+				if(frames.isEmpty()) {
+					return null;
+				}
+				next = frames.peek().index;
+			}
+			long waited = 0;
+			while(true) {
+				while(!frames.isEmpty() && frames.peek().index < next) {
+					buffered -= frames.poll().getMillis();
+				}
+				AudioFrame f = frames.peek();
+				if(f != null && (f.index == next || waited >= lateMillis)) {
+					frames.poll();
+					buffered -= f.getMillis();
+					next = f.index + 1;
+					return f;
+				}
+				if(last || timedOut()) {
+					return null;
+				}
+				long start = System.currentTimeMillis();
+				wait(lateMillis);
+				waited += System.currentTimeMillis() - start;
+			}
+		}
+
+		private boolean hasLast() {
+			for(AudioFrame f : frames) {
+				if(f.last) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean timedOut() {
+			return System.currentTimeMillis() - lastArrival > streamTimeoutMillis;
+		}
+
+		/**
+		 * Play frames until the stream ends.
+		 */
+		private void play() {
+			SourceDataLine line = null;
+			boolean mute = !audible;
+			try {
+				AudioFrame f;
+				while((f = take()) != null) {
+					if(line == null && !mute) {
+						try {
+							line = AudioPlayback.shared.acquire(format);
+							line.start();
+						} catch(LineUnavailableException | IllegalArgumentException ex) {
+							//Keep taking frames so the recording is still complete.
+							Logger.getLogger(VoicePlayback.class.getName()).log(Level.SEVERE, null, ex);
+							mute = true;
+						}
+					}
+					int size = f.getDecodedSize();
+					if(pcm.length < size) {
+						pcm = new byte[size];
+					}
+					int n = f.decode(pcm);
+					if(line != null) {
+						line.write(pcm, 0, n);
+					}
+					synchronized(this) {
+						if(record) {
+							recorded.write(pcm, 0, n);
+						}
+						if(f.last) {
+							last = true;
+						}
+					}
+					if(last) {
+						break;
+					}
+				}
+				if(line != null) {
+					line.drain();
+				}
+			} catch(InterruptedException ex) {
+			} finally {
+				if(line != null) {
+					AudioPlayback.shared.release(line);
+				}
+			}
+		}
+
+		/**
+		 * @return Everything played, as a WAV file, or null if nothing was.
+		 */
+		private synchronized byte[] toWAV() {
+			if(recorded == null || recorded.getPCMLength() == 0) {
+				return null;
+			}
+			return recorded.toWAV();
+		}
+	}
+}
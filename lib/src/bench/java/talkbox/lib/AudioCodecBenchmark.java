@@ -0,0 +1,111 @@
+package talkbox.lib;
+
+import java.util.Random;
+
+/**
+ * Measures how fast each AudioCodec encodes and decodes voice, how small it
+ * makes it, and how much of it survives. A minute of two tones with a little
+ * noise, recorded the way CaptureAudio records, is cut into the frames that
+ * are streamed, and every frame is encoded and decoded on its own, as
+ * VoicePlayback decodes them. Each codec is run a few times first so that it
+ * is compiled before it is timed.
+ * <p>
+ * Usage: AudioCodecBenchmark [seconds of audio] [rounds]
+ */
+public class AudioCodecBenchmark {
+	/**
+	 * The sample rate CaptureAudio records at.
+	 */
+	public static final int sampleRate = 8000;
+
+	public static void main(String[] args) {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		byte[] pcm = voice(seconds * sampleRate);
+		int frameBytes = sampleRate * CaptureAudio.streamFrameMillis / 1000 * 2;
+		AudioCodec[] codecs = {AudioCodecs.pcm, AudioCodecs.muLaw, AudioCodecs.adpcm};
+		for(AudioCodec codec : codecs) {
+			byte[] encoded = new byte[codec.encodedSize(frameBytes) * (pcm.length / frameBytes + 1)];
+			byte[] decoded = new byte[pcm.length];
+			int[] lengths = new int[pcm.length / frameBytes + 1];
+			for(int i = 0; i < rounds; i++) {
+				encode(codec, pcm, frameBytes, encoded, lengths);
+				decode(codec, encoded, lengths, decoded);
+			}
+			long start = System.nanoTime();
+			int size = 0;
+			for(int i = 0; i < rounds; i++) {
+				size = encode(codec, pcm, frameBytes, encoded, lengths);
+			}
+			long encodeNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < rounds; i++) {
+				decode(codec, encoded, lengths, decoded);
+			}
+			long decodeNanos = System.nanoTime() - start;
+			double samples = (double)pcm.length / 2 * rounds;
+			System.out.printf("%s: encode %.1f M samples/s, decode %.1f M samples/s, %.2fx smaller, SNR %.1f dB%n",
+					codec.getName(), samples / encodeNanos * 1000, samples / decodeNanos * 1000,
+					(double)pcm.length / size, snr(pcm, decoded));
+		}
+	}
+
+	/**
+	 * Encode audio a frame at a time.
+	 *
+	 * @return How many bytes it was encoded to.
+	 */
+	private static int encode(AudioCodec codec, byte[] pcm, int frameBytes, byte[] encoded, int[] lengths) {
+		int out = 0;
+		for(int off = 0, f = 0; off < pcm.length; off += frameBytes, f++) {
+			lengths[f] = codec.encode(pcm, off, Math.min(frameBytes, pcm.length - off), encoded, out);
+			out += lengths[f];
+		}
+		return out;
+	}
+
+	/**
+	 * Decode audio encoded a frame at a time.
+	 */
+	private static void decode(AudioCodec codec, byte[] encoded, int[] lengths, byte[] pcm) {
+		int in = 0;
+		int out = 0;
+		for(int f = 0; out < pcm.length; f++) {
+			out += codec.decode(encoded, in, lengths[f], pcm, out);
+			in += lengths[f];
+		}
+	}
+
+	/**
+	 * @param samples How many samples to make.
+	 * @return Signed 16 bit big endian PCM of two tones and some noise.
+	 */
+	private static byte[] voice(int samples) {
+		Random random = new Random(1);
+		byte[] pcm = new byte[samples * 2];
+		for(int i = 0; i < samples; i++) {
+			double t = (double)i / sampleRate;
+			double v = 6000 * Math.sin(2 * Math.PI * 220 * t) + 3000 * Math.sin(2 * Math.PI * 1250 * t)
+					+ 300 * random.nextGaussian();
+			int s = (int)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(v)));
+			pcm[i * 2] = (byte)(s >> 8);
+			pcm[i * 2 + 1] = (byte)s;
+		}
+		return pcm;
+	}
+
+	/**
+	 * @return The signal to noise ratio of decoded audio, in decibels.
+	 */
+	private static double snr(byte[] original, byte[] decoded) {
+		double signal = 0;
+		double noise = 0;
+		for(int i = 0; i < original.length; i += 2) {
+			int a = (short)((original[i] << 8) | (original[i + 1] & 0xff));
+			int b = (short)((decoded[i] << 8) | (decoded[i + 1] & 0xff));
+			signal += (double)a * a;
+			noise += (double)(a - b) * (a - b);
+		}
+		return noise == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / noise);
+	}
+}
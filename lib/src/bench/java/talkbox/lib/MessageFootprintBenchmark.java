@@ -0,0 +1,100 @@
+package talkbox.lib;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Measures how many bytes of heap a million received chat messages keep
+ * alive, as Messages and as the Messages of the original layout. The original
+ * layout has a Date, a List of recipients, and its own copy of the sender,
+ * whose id is a string, as each message read from a stream used to. Messages
+ * now share one interned sender. The text is shared in both, so only the
+ * messages themselves are measured.
+ * <p>
+ * Usage: MessageFootprintBenchmark [messages]
+ */
+public class MessageFootprintBenchmark {
+	/**
+	 * The messages being measured, kept here so they can not be collected
+	 * before they are.
+	 */
+	private static Object[] retained;
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		String text = "hello everyone";
+		Client sender = new Client(Client.createID());
+		sender.setName("someone");
+		String id = "DGjrzLLH/7br6DBAkHiZcg==";
+		long before = used();
+		retained = new Object[count];
+		for(int i = 0; i < count; i++) {
+			retained[i] = new LegacyMessage(new LegacyClient(new String(id), new String(sender.getName())), text);
+		}
+		long legacyBytes = used() - before;
+		retained = null;
+		before = used();
+		retained = new Message[count];
+		for(int i = 0; i < count; i++) {
+			retained[i] = new Message(sender, text);
+		}
+		long compactBytes = used() - before;
+		retained = null;
+		print("original layout", legacyBytes, count);
+		print("Message", compactBytes, count);
+	}
+
+	private static void print(String name, long bytes, int count) {
+		System.out.printf("%s: %.1f bytes a message, %.1f MB per million%n", name, bytes / (double)count,
+				bytes * (1000000.0 / count) / (1024 * 1024));
+	}
+
+	/**
+	 * @return How many bytes of heap are in use once garbage is collected.
+	 */
+	private static long used() {
+		Runtime r = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		//Collect until nothing more is freed.
+		for(int i = 0; i < 10; i++) {
+			System.gc();
+			long now = r.totalMemory() - r.freeMemory();
+			if(now >= used) {
+				break;
+			}
+			used = now;
+		}
+		return used;
+	}
+
+	/**
+	 * A Client as it was, identified by a string.
+	 */
+	private static class LegacyClient {
+		private final String id;
+		private final String name;
+
+		private LegacyClient(String id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * A Message as it was.
+	 */
+	private static class LegacyMessage {
+		private final String text;
+		private final Date time;
+		private final LegacyClient sender;
+		private final List<LegacyClient> recipients;
+
+		private LegacyMessage(LegacyClient sender, String text) {
+			this.sender = sender;
+			this.text = text;
+			time = new Date();
+			recipients = new ArrayList<>();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package talkbox.lib;
+
+import java.io.Serializable;
+
+/**
+ * Acknowledges a set of sequence numbers. Every sequence number up to and
+ * including the cumulative one has been received, and so has every range in
+ * the selective list. Anything else has not been received yet.
+ */
+public class Ack implements Serializable {
+	private static final long serialVersionUID = -3326083390712815742L;
+	private static final long[] none = new long[0];
+	/**
+	 * Every sequence number up to and including this one has been received.
+	 */
+	public final long cumulative;
+	private final long[] ranges;
+
+	/**
+	 * Create a new cumulative Ack.
+	 *
+	 * @param cumulative The highest sequence number received without gaps.
+	 */
+	public Ack(long cumulative) {
+		this.cumulative = cumulative;
+		this.ranges = none;
+	}
+
+	/**
+	 * Create a new Ack with selectively acknowledged ranges.
+	 *
+	 * @param cumulative The highest sequence number received without gaps.
+	 * @param ranges Pairs of first and last sequence numbers, inclusive, that
+	 * were received after a gap.
+	 */
+	public Ack(long cumulative, long[] ranges) {
+		this.cumulative = cumulative;
+		this.ranges = ranges == null ? none : ranges;
+	}
+
+	/**
+	 * @param sequence The sequence number to check.
+	 * @return True if the sequence number was received, false otherwise.
+	 */
+	public boolean covers(long sequence) {
+		if(sequence <= cumulative) {
+			return true;
+		}
+		for(int i = 0; i < ranges.length; i += 2) {
+			if(sequence >= ranges[i] && sequence <= ranges[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder().append(cumulative);
+		for(int i = 0; i < ranges.length; i += 2) {
+			sb.append(' ').append(ranges[i]).append('-').append(ranges[i + 1]);
+		}
+		return sb.toString();
+	}
+}
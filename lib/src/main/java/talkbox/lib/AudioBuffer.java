@@ -0,0 +1,265 @@
+package talkbox.lib;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A recording kept as a WAV file in a list of fixed size chunks. Room for the
+ * WAV header is left in front of the audio and filled in when the recording
+ * is finished, so the file is never assembled by copying. Growing the
+ * recording only adds a chunk, and nothing already written is copied again.
+ * The audio is given as signed 16 bit big endian PCM, as recorded by
+ * CaptureAudio, and is kept little endian, as WAV files want it.
+ */
+public class AudioBuffer {
+	/**
+	 * The size of each chunk, about four seconds of CaptureAudio's audio.
+	 */
+	public static final int chunkSize = 1024 * 64;
+	/**
+	 * The size of the WAV header in front of the audio.
+	 */
+	public static final int headerSize = 44;
+	private final AudioFormat format;
+	private final ArrayList<byte[]> chunks = new ArrayList<>();
+	/**
+	 * How much of the last chunk is used.
+	 */
+	private int used;
+	private long size;
+	private boolean finished = false;
+
+	/**
+	 * Create a new, empty AudioBuffer.
+	 *
+	 * @param format The format of the audio.
+	 * @throws IllegalArgumentException If the format is not signed 16 bit big
+	 * endian PCM.
+	 */
+	public AudioBuffer(AudioFormat format) {
+		if(!AudioCodecs.isPCM(format)) {
+			throw new IllegalArgumentException("Not 16 bit big endian PCM: " + format);
+		}
+		this.format = format;
+		chunks.add(new byte[chunkSize]);
+		used = headerSize;
+		size = headerSize;
+	}
+
+	/**
+	 * @return The format of the audio.
+	 */
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * Add audio to the end of the recording.
+	 *
+	 * @param pcm The audio.
+	 * @param off Where the audio starts.
+	 * @param len How many bytes of audio there are, a whole number of
+	 * samples.
+	 * @throws IllegalStateException If the recording is finished.
+	 */
+	public synchronized void write(byte[] pcm, int off, int len) {
+		if(finished) {
+			throw new IllegalStateException("The recording is finished");
+		}
+		int end = off + len - 1;
+		while(off < end) {
+			if(used == chunkSize) {
+				chunks.add(new byte[chunkSize]);
+				used = 0;
+			}
+			byte[] chunk = chunks.get(chunks.size() - 1);
+			int n = Math.min(end - off + 1, chunkSize - used) & ~1;
+			swap(pcm, off, chunk, used, n);
+			off += n;
+			used += n;
+			size += n;
+		}
+	}
+
+	/**
+	 * Copy 16 bit samples, swapping the order of their bytes.
+	 */
+	private static void swap(byte[] from, int off, byte[] to, int toOff, int len) {
+		for(int i = 0; i < len; i += 2) {
+			to[toOff + i] = from[off + i + 1];
+			to[toOff + i + 1] = from[off + i];
+		}
+	}
+
+	/**
+	 * Fill in the WAV header. Nothing can be written after this.
+	 */
+	public synchronized void finish() {
+		if(finished) {
+			return;
+		}
+		finished = true;
+		writeHeader(chunks.get(0), format, (int)(size - headerSize));
+	}
+
+	private static void writeHeader(byte[] b, AudioFormat format, int dataSize) {
+		int channels = format.getChannels();
+		int rate = (int)format.getSampleRate();
+		int blockAlign = channels * 2;
+		putASCII(b, 0, "RIFF");
+		putInt(b, 4, 36 + dataSize);
+		putASCII(b, 8, "WAVE");
+		putASCII(b, 12, "fmt ");
+		putInt(b, 16, 16);
+		putShort(b, 20, 1);
+		putShort(b, 22, channels);
+		putInt(b, 24, rate);
+		putInt(b, 28, rate * blockAlign);
+		putShort(b, 32, blockAlign);
+		putShort(b, 34, 16);
+		putASCII(b, 36, "data");
+		putInt(b, 40, dataSize);
+	}
+
+	private static void putASCII(byte[] b, int off, String s) {
+		for(int i = 0; i < s.length(); i++) {
+			b[off + i] = (byte)s.charAt(i);
+		}
+	}
+
+	private static void putShort(byte[] b, int off, int v) {
+		b[off] = (byte)v;
+		b[off + 1] = (byte)(v >> 8);
+	}
+
+	private static void putInt(byte[] b, int off, int v) {
+		putShort(b, off, v);
+		putShort(b, off + 2, v >> 16);
+	}
+
+	/**
+	 * @return How many bytes of audio have been written.
+	 */
+	public synchronized long getPCMLength() {
+		return size - headerSize;
+	}
+
+	/**
+	 * @return The audio as signed 16 bit big endian PCM, in one new array.
+	 */
+	public synchronized byte[] getPCM() {
+		byte[] pcm = new byte[(int)(size - headerSize)];
+		int o = 0;
+		for(int c = 0; c < chunks.size(); c++) {
+			int start = c == 0 ? headerSize : 0;
+			int end = c == chunks.size() - 1 ? used : chunkSize;
+			swap(chunks.get(c), start, pcm, o, end - start);
+			o += end - start;
+		}
+		return pcm;
+	}
+
+	/**
+	 * @return The WAV file, in one new array.
+	 */
+	public synchronized byte[] toWAV() {
+		finish();
+		byte[] wav = new byte[(int)size];
+		int o = 0;
+		for(int c = 0; c < chunks.size(); c++) {
+			int n = c == chunks.size() - 1 ? used : chunkSize;
+			System.arraycopy(chunks.get(c), 0, wav, o, n);
+			o += n;
+		}
+		return wav;
+	}
+
+	/**
+	 * Read the WAV file without copying it. The recording is finished first.
+	 *
+	 * @return A stream of the WAV file.
+	 */
+	public synchronized InputStream openWAV() {
+		finish();
+		return new ChunkStream(chunks.toArray(new byte[0][]), used);
+	}
+
+	/**
+	 * Make a WAV file from PCM, in one array with no copies in between.
+	 *
+	 * @param format The format of the audio, which must be signed 16 bit big
+	 * endian PCM.
+	 * @param pcm The audio.
+	 * @return The WAV file.
+	 */
+	public static byte[] toWAV(AudioFormat format, byte[] pcm) {
+		byte[] wav = new byte[headerSize + pcm.length];
+		writeHeader(wav, format, pcm.length);
+		swap(pcm, 0, wav, headerSize, pcm.length & ~1);
+		return wav;
+	}
+
+	/**
+	 * A read only view of finished chunks.
+	 */
+	private static class ChunkStream extends InputStream {
+		private final byte[][] chunks;
+		private final int lastUsed;
+		private int chunk = 0;
+		private int position = 0;
+
+		private ChunkStream(byte[][] chunks, int lastUsed) {
+			this.chunks = chunks;
+			this.lastUsed = lastUsed;
+		}
+
+		private int limit() {
+			return chunk == chunks.length - 1 ? lastUsed : chunkSize;
+		}
+
+		/**
+		 * Move to the next chunk if this one has been read.
+		 *
+		 * @return False if everything has been read.
+		 */
+		private boolean next() {
+			while(position == limit()) {
+				if(chunk == chunks.length - 1) {
+					return false;
+				}
+				chunk++;
+				position = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() {
+			return next() ? chunks[chunk][position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len == 0) {
+				return 0;
+			}
+			if(!next()) {
+				return -1;
+			}
+			int n = Math.min(len, limit() - position);
+			System.arraycopy(chunks[chunk], position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			long left = limit() - position;
+			for(int c = chunk + 1; c < chunks.length; c++) {
+				left += c == chunks.length - 1 ? lastUsed : chunkSize;
+			}
+			return (int)Math.min(Integer.MAX_VALUE, left);
+		}
+	}
+}
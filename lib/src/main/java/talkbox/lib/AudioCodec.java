@@ -0,0 +1,63 @@
+package talkbox.lib;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Encodes and decodes signed 16 bit big endian PCM, as recorded by
+ * CaptureAudio. Codecs keep no state between calls and allocate nothing, so
+ * one instance can be shared by every thread, and every encoded block can be
+ * decoded on its own.
+ */
+public interface AudioCodec {
+	/**
+	 * @return The name the codec is known by in messages.
+	 */
+	String getName();
+
+	/**
+	 * @param format A PCM format.
+	 * @return True if this codec can encode audio in the format.
+	 */
+	boolean supports(AudioFormat format);
+
+	/**
+	 * @param pcmBytes A number of bytes of PCM.
+	 * @return The most bytes they can be encoded to.
+	 */
+	int encodedSize(int pcmBytes);
+
+	/**
+	 * @param data Encoded audio.
+	 * @param off Where the audio starts.
+	 * @param len How many bytes of encoded audio there are.
+	 * @return How many bytes of PCM the audio decodes to.
+	 */
+	int decodedSize(byte[] data, int off, int len);
+
+	/**
+	 * Encode PCM.
+	 *
+	 * @param pcm The PCM.
+	 * @param off Where the PCM starts.
+	 * @param len How many bytes of PCM there are. Must be a whole number of
+	 * samples.
+	 * @param out Where to write the encoded audio. Must have room for
+	 * {@link #encodedSize} bytes.
+	 * @param outOff Where to start writing.
+	 * @return How many bytes were written.
+	 */
+	int encode(byte[] pcm, int off, int len, byte[] out, int outOff);
+
+	/**
+	 * Decode audio encoded by this codec.
+	 *
+	 * @param data The encoded audio.
+	 * @param off Where the audio starts.
+	 * @param len How many bytes of encoded audio there are.
+	 * @param pcm Where to write the PCM. Must have room for
+	 * {@link #decodedSize} bytes.
+	 * @param pcmOff Where to start writing.
+	 * @return How many bytes of PCM were written.
+	 */
+	int decode(byte[] data, int off, int len, byte[] pcm, int pcmOff);
+}
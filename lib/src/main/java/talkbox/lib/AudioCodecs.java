@@ -0,0 +1,318 @@
+package talkbox.lib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * The AudioCodecs known by name. Other codecs can be added with
+ * {@link #register}.
+ */
+public class AudioCodecs {
+	private static final ConcurrentHashMap<String, AudioCodec> codecs = new ConcurrentHashMap<>();
+	/**
+	 * Plain PCM, for when nothing else fits.
+	 */
+	public static final AudioCodec pcm = register(new PcmCodec());
+	/**
+	 * G.711 mu-law, 8 bits a sample.
+	 */
+	public static final AudioCodec muLaw = register(new MuLawCodec());
+	/**
+	 * IMA ADPCM, 4 bits a sample. Mono only.
+	 */
+	public static final AudioCodec adpcm = register(new AdpcmCodec());
+
+	/**
+	 * Make a codec known by its name, replacing any codec with the same name.
+	 *
+	 * @param codec The codec.
+	 * @return The codec.
+	 */
+	public static AudioCodec register(AudioCodec codec) {
+		codecs.put(codec.getName(), codec);
+		return codec;
+	}
+
+	/**
+	 * @param name The name of a codec.
+	 * @return The codec, or null if there is none with that name.
+	 */
+	public static AudioCodec forName(String name) {
+		return codecs.get(name);
+	}
+
+	/**
+	 * @param name The name of a codec.
+	 * @return The codec.
+	 * @throws IllegalArgumentException If there is no codec with that name.
+	 */
+	static AudioCodec require(String name) {
+		AudioCodec codec = codecs.get(name);
+		if(codec == null) {
+			throw new IllegalArgumentException("Unknown audio codec " + name);
+		}
+		return codec;
+	}
+
+	/**
+	 * @param format A format.
+	 * @return True if the format is signed 16 bit big endian PCM.
+	 */
+	public static boolean isPCM(AudioFormat format) {
+		return format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED && format.getSampleSizeInBits() == 16
+				&& format.isBigEndian();
+	}
+
+	private static short sample(byte[] pcm, int i) {
+		return (short)((pcm[i] << 8) | (pcm[i + 1] & 0xff));
+	}
+
+	private static void sample(byte[] pcm, int i, int s) {
+		pcm[i] = (byte)(s >> 8);
+		pcm[i + 1] = (byte)s;
+	}
+
+	private static class PcmCodec implements AudioCodec {
+		@Override
+		public String getName() {
+			return "pcm";
+		}
+
+		@Override
+		public boolean supports(AudioFormat format) {
+			return isPCM(format);
+		}
+
+		@Override
+		public int encodedSize(int pcmBytes) {
+			return pcmBytes;
+		}
+
+		@Override
+		public int decodedSize(byte[] data, int off, int len) {
+			return len;
+		}
+
+		@Override
+		public int encode(byte[] pcm, int off, int len, byte[] out, int outOff) {
+			System.arraycopy(pcm, off, out, outOff, len);
+			return len;
+		}
+
+		@Override
+		public int decode(byte[] data, int off, int len, byte[] pcm, int pcmOff) {
+			System.arraycopy(data, off, pcm, pcmOff, len);
+			return len;
+		}
+	}
+
+	private static class MuLawCodec implements AudioCodec {
+		private static final int bias = 0x84;
+		private static final int clip = 32635;
+		/**
+		 * The exponent of each value of the top byte of a biased sample.
+		 */
+		private static final byte[] exponents = new byte[256];
+		private static final short[] decoded = new short[256];
+
+		static {
+			for(int i = 1; i < 256; i++) {
+				exponents[i] = (byte)(31 - Integer.numberOfLeadingZeros(i));
+			}
+			for(int i = 0; i < 256; i++) {
+				int u = ~i & 0xff;
+				int exponent = (u >> 4) & 7;
+				int s = (((u & 0x0f) << 3) + bias) << exponent;
+				s -= bias;
+				decoded[i] = (short)((u & 0x80) != 0 ? -s : s);
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "ulaw";
+		}
+
+		@Override
+		public boolean supports(AudioFormat format) {
+			return isPCM(format);
+		}
+
+		@Override
+		public int encodedSize(int pcmBytes) {
+			return pcmBytes / 2;
+		}
+
+		@Override
+		public int decodedSize(byte[] data, int off, int len) {
+			return len * 2;
+		}
+
+		@Override
+		public int encode(byte[] pcm, int off, int len, byte[] out, int outOff) {
+			int o = outOff;
+			for(int i = off; i < off + len; i += 2) {
+				int s = sample(pcm, i);
+				int sign = (s >> 8) & 0x80;
+				if(sign != 0) {
+					s = -s;
+				}
+				if(s > clip) {
+					s = clip;
+				}
+				s += bias;
+				int exponent = exponents[(s >> 7) & 0xff];
+				int mantissa = (s >> (exponent + 3)) & 0x0f;
+				out[o++] = (byte)~(sign | (exponent << 4) | mantissa);
+			}
+			return o - outOff;
+		}
+
+		@Override
+		public int decode(byte[] data, int off, int len, byte[] pcm, int pcmOff) {
+			int o = pcmOff;
+			for(int i = off; i < off + len; i++) {
+				sample(pcm, o, decoded[data[i] & 0xff]);
+				o += 2;
+			}
+			return o - pcmOff;
+		}
+	}
+
+	/**
+	 * IMA ADPCM in self-contained blocks. Each block starts with a four byte
+	 * header: the predictor and step index it starts from, and whether the last
+	 * nibble is padding. Then come the samples, two to a byte, low nibble
+	 * first.
+	 */
+	private static class AdpcmCodec implements AudioCodec {
+		private static final int header = 4;
+		private static final int[] indexes = {
+			-1, -1, -1, -1, 2, 4, 6, 8,
+			-1, -1, -1, -1, 2, 4, 6, 8
+		};
+		private static final int[] steps = {
+			7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+			19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+			50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+			130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+			337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+			876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+			2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+			5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+			15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+		};
+
+		@Override
+		public String getName() {
+			return "ima-adpcm";
+		}
+
+		@Override
+		public boolean supports(AudioFormat format) {
+			return isPCM(format) && format.getChannels() == 1;
+		}
+
+		@Override
+		public int encodedSize(int pcmBytes) {
+			return header + (pcmBytes / 2 + 1) / 2;
+		}
+
+		@Override
+		public int decodedSize(byte[] data, int off, int len) {
+			if(len < header) {
+				return 0;
+			}
+			return ((len - header) * 2 - (data[off + 3] & 1)) * 2;
+		}
+
+		@Override
+		public int encode(byte[] pcm, int off, int len, byte[] out, int outOff) {
+			int samples = len / 2;
+			int predictor = samples > 0 ? sample(pcm, off) : 0;
+			int index = 0;
+			if(samples > 1) {
+				//Start from a step near the first change, as blocks are short.
+				int diff = Math.abs(sample(pcm, off + 2) - predictor);
+				while(index < steps.length - 1 && steps[index] < diff) {
+					index++;
+				}
+			}
+			sample(out, outOff, predictor);
+			out[outOff + 2] = (byte)index;
+			out[outOff + 3] = (byte)(samples & 1);
+			int o = outOff + header;
+			int packed = 0;
+			for(int n = 0; n < samples; n++) {
+				int diff = sample(pcm, off + n * 2) - predictor;
+				int nibble = 0;
+				if(diff < 0) {
+					nibble = 8;
+					diff = -diff;
+				}
+				int step = steps[index];
+				int delta = step >> 3;
+				if(diff >= step) {
+					nibble |= 4;
+					diff -= step;
+					delta += step;
+				}
+				step >>= 1;
+				if(diff >= step) {
+					nibble |= 2;
+					diff -= step;
+					delta += step;
+				}
+				step >>= 1;
+				if(diff >= step) {
+					nibble |= 1;
+					delta += step;
+				}
+				predictor += (nibble & 8) != 0 ? -delta : delta;
+				predictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+				index = Math.max(0, Math.min(steps.length - 1, index + indexes[nibble]));
+				if((n & 1) == 0) {
+					packed = nibble;
+				} else {
+					out[o++] = (byte)(packed | (nibble << 4));
+				}
+			}
+			if((samples & 1) != 0) {
+				out[o++] = (byte)packed;
+			}
+			return o - outOff;
+		}
+
+		@Override
+		public int decode(byte[] data, int off, int len, byte[] pcm, int pcmOff) {
+			if(len < header) {
+				return 0;
+			}
+			int predictor = sample(data, off);
+			int index = Math.max(0, Math.min(steps.length - 1, data[off + 2]));
+			int samples = (len - header) * 2 - (data[off + 3] & 1);
+			int o = pcmOff;
+			for(int n = 0; n < samples; n++) {
+				int b = data[off + header + n / 2];
+				int nibble = (n & 1) == 0 ? b & 0x0f : (b >> 4) & 0x0f;
+				int step = steps[index];
+				int delta = step >> 3;
+				if((nibble & 4) != 0) {
+					delta += step;
+				}
+				if((nibble & 2) != 0) {
+					delta += step >> 1;
+				}
+				if((nibble & 1) != 0) {
+					delta += step >> 2;
+				}
+				predictor += (nibble & 8) != 0 ? -delta : delta;
+				predictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+				index = Math.max(0, Math.min(steps.length - 1, index + indexes[nibble]));
+				sample(pcm, o, predictor);
+				o += 2;
+			}
+			return o - pcmOff;
+		}
+	}
+}
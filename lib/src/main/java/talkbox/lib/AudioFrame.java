@@ -0,0 +1,159 @@
+package talkbox.lib;
+
+import java.util.Arrays;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A short piece of audio sent while it is still being recorded. Frames of one
+ * recording share a stream id and are numbered from zero, and the last frame
+ * of a stream says so. The audio is encoded with the named AudioCodec, and
+ * decodes to signed 16 bit big endian PCM, as recorded by CaptureAudio.
+ * Frames sent to a voice room are not numbered or kept for resending, as a
+ * late frame is of no use.
+ */
+public class AudioFrame extends Message {
+	private static final long serialVersionUID = 6140275823355914078L;
+	public final long stream;
+	public final int index;
+	/**
+	 * When this frame starts, in milliseconds from the start of the stream.
+	 */
+	public final long timestamp;
+	public final float sampleRate;
+	public final int channels;
+	/**
+	 * The name of the AudioCodec the audio is encoded with.
+	 */
+	public final String codec;
+	public final byte[] data;
+	public final boolean last;
+	/**
+	 * The voice room this frame is for or from, or null if it is not part of
+	 * a room.
+	 */
+	public final String room;
+
+	/**
+	 * Create a new AudioFrame.
+	 *
+	 * @param sender The sender of the message.
+	 * @param stream The id of the stream this frame is part of.
+	 * @param index The number of this frame in the stream.
+	 * @param timestamp When this frame starts, in milliseconds from the start
+	 * of the stream.
+	 * @param format The format of the audio.
+	 * @param pcm The audio.
+	 * @param codec The codec to encode the audio with.
+	 * @param last True if this is the last frame of the stream.
+	 * @param recipients Who to send the message to.
+	 */
+	public AudioFrame(Client sender, long stream, int index, long timestamp, AudioFormat format, byte[] pcm, AudioCodec codec, boolean last, Client... recipients) {
+		this(sender, null, stream, index, timestamp, format, pcm, codec, last, recipients);
+	}
+
+	/**
+	 * Create a new AudioFrame for a voice room.
+	 *
+	 * @param sender The sender of the message.
+	 * @param room The voice room.
+	 * @param stream The id of the stream this frame is part of.
+	 * @param index The number of this frame in the stream.
+	 * @param timestamp When this frame starts, in milliseconds from the start
+	 * of the stream.
+	 * @param format The format of the audio.
+	 * @param pcm The audio.
+	 * @param codec The codec to encode the audio with.
+	 * @param last True if this is the last frame of the stream.
+	 * @param recipients Who to send the message to.
+	 */
+	public AudioFrame(Client sender, String room, long stream, int index, long timestamp, AudioFormat format, byte[] pcm, AudioCodec codec, boolean last, Client... recipients) {
+		super(sender, "audioFrame", recipients);
+		this.room = room;
+		this.stream = stream;
+		this.index = index;
+		this.timestamp = timestamp;
+		this.sampleRate = format.getSampleRate();
+		this.channels = format.getChannels();
+		this.codec = codec.getName();
+		byte[] out = new byte[codec.encodedSize(pcm.length)];
+		int n = codec.encode(pcm, 0, pcm.length, out, 0);
+		data = n == out.length ? out : Arrays.copyOf(out, n);
+		this.last = last;
+	}
+
+	private AudioFrame(AudioFrame f, long stream, int index, long timestamp, boolean last) {
+		super(f.sender, f.text, f.getRecipients());
+		this.stream = stream;
+		this.index = index;
+		this.timestamp = timestamp;
+		sampleRate = f.sampleRate;
+		channels = f.channels;
+		codec = f.codec;
+		data = f.data;
+		this.last = last;
+		room = f.room;
+	}
+
+	/**
+	 * Make a frame with the same audio in another stream. The encoded audio is
+	 * shared, not copied.
+	 *
+	 * @param stream The id of the stream.
+	 * @param index The number of the frame in the stream.
+	 * @param timestamp When the frame starts in the stream.
+	 * @param last True if this is the last frame of the stream.
+	 * @return The new frame.
+	 */
+	public AudioFrame inStream(long stream, int index, long timestamp, boolean last) {
+		return new AudioFrame(this, stream, index, timestamp, last);
+	}
+
+	/**
+	 * @return The format of the audio in this frame.
+	 */
+	public AudioFormat getFormat() {
+		return new AudioFormat(sampleRate, 16, channels, true, true);
+	}
+
+	/**
+	 * @return How many bytes of PCM the audio in this frame decodes to.
+	 * @throws IllegalArgumentException If the codec is not known here.
+	 */
+	public int getDecodedSize() {
+		return AudioCodecs.require(codec).decodedSize(data, 0, data.length);
+	}
+
+	/**
+	 * Decode the audio in this frame.
+	 *
+	 * @param pcm Where to write the PCM. Must have room for
+	 * {@link #getDecodedSize} bytes.
+	 * @return How many bytes were written.
+	 * @throws IllegalArgumentException If the codec is not known here.
+	 */
+	public int decode(byte[] pcm) {
+		return AudioCodecs.require(codec).decode(data, 0, data.length, pcm, 0);
+	}
+
+	/**
+	 * @return How long the audio in this frame is, in milliseconds.
+	 */
+	public long getMillis() {
+		return (long)(getDecodedSize() / (2L * channels) * 1000 / sampleRate);
+	}
+
+	@Override
+	public boolean display() {
+		return false;
+	}
+
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + data.length;
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.MEDIA;
+	}
+}
@@ -1,19 +1,244 @@
 package talkbox.lib;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 
+/**
+ * A recording. Its length and a small waveform are worked out by the sender,
+ * so they can be shown without decoding the audio. The server can send a
+ * reference in place of a large recording, which has everything but the
+ * audio and is filled in once the audio is fetched.
+ */
 public class AudioMessage extends Message {
 	private static final long serialVersionUID = -2015517444054302221L;
+	/**
+	 * How many peaks the waveform of a recording has.
+	 */
+	public static final int peakCount = 64;
 	private byte[] audioBytes;
+	private long durationMillis;
+	/**
+	 * The loudest sample in each of peakCount equal parts of the recording,
+	 * from 0 to 255, or null if not known.
+	 */
+	private byte[] peaks;
+	/**
+	 * The name of the AudioCodec the audio is encoded with, or null if it is
+	 * a WAV file.
+	 */
+	private String codec;
+	private float sampleRate;
+	private int channels;
+	/**
+	 * The content hash of the audio, or null if this is not a reference.
+	 */
+	private String hash;
+	private int size;
 	
 	public AudioMessage(Client sender, byte[] audioBytes){
 		super(sender, "audioMessage");
 		this.audioBytes = audioBytes;
+		try(AudioInputStream in = AudioSystem.getAudioInputStream(new ByteArrayInputStream(audioBytes))) {
+			AudioFormat f = in.getFormat();
+			AudioFormat pcm = new AudioFormat(f.getSampleRate(), 16, f.getChannels(), true, true);
+			try(AudioInputStream converted = AudioSystem.getAudioInputStream(pcm, in)) {
+				byte[] b = new byte[(int)converted.getFrameLength() * pcm.getFrameSize()];
+				new DataInputStream(converted).readFully(b);
+				describe(pcm, b);
+			}
+		} catch(IOException | UnsupportedAudioFileException | IllegalArgumentException ex) {
+			//The length and waveform are left unknown.
+		}
 	}
-	
-	public byte[] getAudioBytes(){
+
+	/**
+	 * Create a new AudioMessage holding encoded audio.
+	 *
+	 * @param sender The sender of the message.
+	 * @param format The format of the PCM, which must be supported by the
+	 * codec.
+	 * @param pcm The audio.
+	 * @param codec The codec to encode the audio with.
+	 */
+	public AudioMessage(Client sender, AudioFormat format, byte[] pcm, AudioCodec codec) {
+		super(sender, "audioMessage");
+		this.codec = codec.getName();
+		sampleRate = format.getSampleRate();
+		channels = format.getChannels();
+		byte[] out = new byte[codec.encodedSize(pcm.length)];
+		int n = codec.encode(pcm, 0, pcm.length, out, 0);
+		audioBytes = n == out.length ? out : Arrays.copyOf(out, n);
+		describe(format, pcm);
+	}
+
+	private AudioMessage(AudioMessage am, String hash) {
+		super(am);
+		durationMillis = am.durationMillis;
+		peaks = am.peaks;
+		codec = am.codec;
+		sampleRate = am.sampleRate;
+		channels = am.channels;
+		this.hash = hash;
+		size = am.audioBytes.length;
+	}
+
+	/**
+	 * Make a reference to this recording, with everything but the audio.
+	 *
+	 * @param hash The content hash of the audio, from {@link #getData}.
+	 * @return The reference.
+	 */
+	public AudioMessage toReference(String hash) {
+		return new AudioMessage(this, hash);
+	}
+
+	/**
+	 * @return The content hash of the audio if this is a reference, or null.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return The size of the audio as sent, in bytes.
+	 */
+	public int getSize() {
+		return audioBytes != null ? audioBytes.length : size;
+	}
+
+	/**
+	 * @return False if this is a reference whose audio has not been fetched.
+	 */
+	public boolean hasAudio() {
+		return audioBytes != null;
+	}
+
+	/**
+	 * Fill in the audio of a reference.
+	 *
+	 * @param data The audio as sent, which must match the hash.
+	 * @throws IllegalArgumentException If the audio does not match the hash.
+	 */
+	public void fill(byte[] data) {
+		if(hash == null || !hash.equals(Thumbnails.hash(data))) {
+			throw new IllegalArgumentException("The audio does not match " + hash);
+		}
+		audioBytes = data;
+	}
+
+	/**
+	 * @return The audio as sent, encoded with the codec from
+	 * {@link #getCodec} or as a WAV file, or null if it has not been fetched.
+	 */
+	public byte[] getData() {
 		return audioBytes;
 	}
+
+	/**
+	 * Work out the length and waveform of the audio.
+	 *
+	 * @param format The format of the audio, signed 16 bit big endian PCM.
+	 * @param pcm The audio.
+	 */
+	private void describe(AudioFormat format, byte[] pcm) {
+		int frameSize = format.getFrameSize();
+		int frames = pcm.length / frameSize;
+		durationMillis = (long)(frames * 1000L / format.getFrameRate());
+		int count = Math.min(peakCount, frames);
+		peaks = new byte[count];
+		for(int p = 0; p < count; p++) {
+			int start = (int)((long)frames * p / count) * frameSize;
+			int end = (int)((long)frames * (p + 1) / count) * frameSize;
+			int peak = 0;
+			for(int i = start; i < end; i += 2) {
+				peak = Math.max(peak, Math.abs((short)((pcm[i] << 8) | (pcm[i + 1] & 0xff))));
+			}
+			peaks[p] = (byte)Math.min(255, peak >> 7);
+		}
+	}
+
+	/**
+	 * @return The length of the recording in milliseconds, or 0 if not known.
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @return The loudest sample in each of up to {@link #peakCount} equal
+	 * parts of the recording, from 0 to 255 as unsigned bytes, or null if not
+	 * known.
+	 */
+	public byte[] getPeaks() {
+		return peaks;
+	}
 	
+	/**
+	 * @return The audio as a WAV file, decoding it if it is encoded.
+	 * @throws IllegalStateException If the audio has not been fetched.
+	 */
+	public byte[] getAudioBytes(){
+		requireAudio();
+		if(codec == null) {
+			return audioBytes;
+		}
+		return AudioBuffer.toWAV(getFormat(), getPCM());
+	}
+
+	/**
+	 * @return The name of the AudioCodec the audio is encoded with, or null if
+	 * it is a WAV file.
+	 */
+	public String getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return The format of the decoded audio, or null if the audio is a WAV
+	 * file.
+	 */
+	public AudioFormat getFormat() {
+		return codec == null ? null : new AudioFormat(sampleRate, 16, channels, true, true);
+	}
+
+	/**
+	 * Decode the audio.
+	 *
+	 * @return The audio as PCM in the format from {@link #getFormat}, or null
+	 * if the audio is a WAV file.
+	 * @throws IllegalArgumentException If the codec is not known here.
+	 * @throws IllegalStateException If the audio has not been fetched.
+	 */
+	public byte[] getPCM() {
+		if(codec == null) {
+			return null;
+		}
+		requireAudio();
+		AudioCodec c = AudioCodecs.require(codec);
+		byte[] pcm = new byte[c.decodedSize(audioBytes, 0, audioBytes.length)];
+		c.decode(audioBytes, 0, audioBytes.length, pcm, 0);
+		return pcm;
+	}
 	
+	private void requireAudio() {
+		if(audioBytes == null) {
+			throw new IllegalStateException("The audio has not been fetched");
+		}
+	}
+
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + (audioBytes != null ? audioBytes.length : 0);
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.MEDIA;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package talkbox.lib;
+
+/**
+ * Things a Client can tell the server it supports or prefers when it
+ * connects. They are sent as a set of bits.
+ */
+public class Capabilities {
+	/**
+	 * The Client would rather get a thumbnail of an ImageMessage, and request
+	 * the full image when it is opened.
+	 */
+	public static final int thumbnails = 1;
+	/**
+	 * The Client would rather get a reference to a large AudioMessage kept by
+	 * the server, and fetch the audio when it is played.
+	 */
+	public static final int mediaReferences = 2;
+
+	/**
+	 * @param capabilities A set of capabilities.
+	 * @param capability The capability to look for.
+	 * @return True if the capability is in the set, false otherwise.
+	 */
+	public static boolean has(int capabilities, int capability) {
+		return (capabilities & capability) == capability;
+	}
+}
@@ -1,6 +1,7 @@
 package talkbox.lib;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,13 +14,79 @@ public class CaptureAudio implements Runnable {
 
     TargetDataLine line;
     volatile Thread thread;
-    AudioInputStream audioInputStream;
-    ByteArrayOutputStream out;
-    byte[] audioBytes;
     String errStr;
     AudioFormat format;
     boolean running = true;
-    private CompletableFuture<byte[]> cfBytes = null;
+    private CompletableFuture<AudioBuffer> cfRecording = null;
+    private volatile StreamListener listener = null;
+    private volatile boolean trimSilence = true;
+    private volatile boolean keepRecording = true;
+
+    /**
+     * How much audio is read from the line at a time while streaming, in
+     * milliseconds.
+     */
+    public static final int streamFrameMillis = 40;
+    /**
+     * While silence is being dropped, an empty piece is streamed this often
+     * so listeners know the recording is still going.
+     */
+    public static final int streamKeepAliveMillis = 1000;
+
+    /**
+     * Gets the audio as it is recorded, so it can be sent before the
+     * recording is finished.
+     */
+    public interface StreamListener {
+        /**
+         * Called with each piece of audio as it is read from the line.
+         *
+         * @param format The format of the audio.
+         * @param pcm The audio. The array is not reused.
+         * @param timestamp When this piece starts, in milliseconds from the
+         * start of the recording.
+         */
+        void captured(AudioFormat format, byte[] pcm, long timestamp);
+
+        /**
+         * Called once the recording has stopped.
+         *
+         * @param timestamp The length of the recording in milliseconds.
+         */
+        void ended(long timestamp);
+    }
+
+    /**
+     * Stream the next recording to a listener as it is recorded. The whole
+     * recording is still available from {@link #getAudioBytes} afterwards.
+     *
+     * @param listener The listener, or null to stop streaming.
+     */
+    public void setStreamListener(StreamListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set whether silence is dropped from the start and end of recordings and
+     * long pauses are shortened, as found by {@link VoiceActivity}.
+     *
+     * @param trimSilence True to drop silence.
+     */
+    public void setTrimSilence(boolean trimSilence) {
+        this.trimSilence = trimSilence;
+    }
+
+    /**
+     * Set whether the whole recording is kept. A recording that is only
+     * streamed, as to a voice room, need not be, and can then go on for as
+     * long as it likes. If it is not kept, {@link #getAudioBytes} gives a
+     * WAV file with no audio in it.
+     *
+     * @param keepRecording True to keep the recording.
+     */
+    public void setKeepRecording(boolean keepRecording) {
+        this.keepRecording = keepRecording;
+    }
 
     public void start() {
         running = true;
@@ -36,10 +103,21 @@ public class CaptureAudio implements Runnable {
         }
     }
 
-    public synchronized CompletableFuture<byte[]> getAudioBytes() {
-        if(cfBytes == null)
-            cfBytes = new CompletableFuture<>();
-        return cfBytes;
+    /**
+     * @return The recording, once it is finished. Nothing is copied to get
+     * it.
+     */
+    public synchronized CompletableFuture<AudioBuffer> getRecording() {
+        if(cfRecording == null)
+            cfRecording = new CompletableFuture<>();
+        return cfRecording;
+    }
+
+    /**
+     * @return The recording as a WAV file, once it is finished.
+     */
+    public CompletableFuture<byte[]> getAudioBytes() {
+        return getRecording().thenApply(AudioBuffer::toWAV);
     }
 
     public AudioFormat getFormat() {
@@ -59,8 +137,6 @@ public class CaptureAudio implements Runnable {
     }
 
     public void run() {
-        audioInputStream = null;
-
         // define the required attributes for our line,
         // and make sure a compatible line is supported.
         setFormat();
@@ -86,13 +162,21 @@ public class CaptureAudio implements Runnable {
             return;
         }
 
-        // play back the captured audio data
-        out = new ByteArrayOutputStream();
+        AudioBuffer recording = new AudioBuffer(format);
+        StreamListener stream = listener;
         int frameSizeInBytes = format.getFrameSize();
         int bufferLengthInFrames = line.getBufferSize() / 8;
+        if (stream != null)
+            bufferLengthInFrames = (int) (format.getFrameRate() * streamFrameMillis / 1000);
         int bufferLengthInBytes = bufferLengthInFrames * frameSizeInBytes;
         byte[] data = new byte[bufferLengthInBytes];
         int numBytesRead;
+        long bytesPerSecond = (long) (format.getFrameRate() * frameSizeInBytes);
+        VoiceActivity vad = trimSilence ? new VoiceActivity(format) : null;
+        byte[] kept = vad != null ? new byte[vad.maxOutput(bufferLengthInBytes)] : data;
+        long lastStreamed = System.currentTimeMillis();
+        boolean keep = keepRecording;
+        long recorded = 0;
 
         line.start();
         
@@ -101,31 +185,31 @@ public class CaptureAudio implements Runnable {
                 if ((numBytesRead = line.read(data, 0, bufferLengthInBytes)) == -1)
                     break;
                 
-                out.write(data, 0, numBytesRead);
+                if (vad != null)
+                    numBytesRead = vad.process(data, 0, numBytesRead, kept);
+                if (stream != null && (numBytesRead > 0
+                        || System.currentTimeMillis() - lastStreamed >= streamKeepAliveMillis)) {
+                    stream.captured(format, Arrays.copyOf(kept, numBytesRead), recorded * 1000L / bytesPerSecond);
+                    lastStreamed = System.currentTimeMillis();
+                }
+                recorded += numBytesRead;
+                if (keep)
+                    recording.write(kept, 0, numBytesRead);
             } catch (Exception ie) {                
             shutDown(ie.toString());
             }
         }
-        audioBytes = out.toByteArray();
-        // load bytes into the audio input stream for playback
-        ByteArrayInputStream bais = new ByteArrayInputStream(audioBytes);
-        if((frameSizeInBytes = format.getFrameSize()) < 1)
-            frameSizeInBytes = 1;
-        
-        audioInputStream = new AudioInputStream(bais, format, audioBytes.length/frameSizeInBytes);
-        out.reset();
-        try {
-            AudioSystem.write(audioInputStream, AudioFileFormat.Type.WAVE, out);
-        } catch (IOException ex) {
-            Logger.getLogger(CaptureAudio.class.getName()).log(Level.SEVERE, null, ex);
-        }
-        
-        getAudioBytes().complete(out.toByteArray());
+        if (vad != null)
+            Logger.getLogger(CaptureAudio.class.getName()).log(Level.INFO, vad.toString());
+        if (stream != null)
+            stream.ended(recorded * 1000L / bytesPerSecond);
+        recording.finish();
+        getRecording().complete(recording);
         // we reached the end of the stream.
         // stop and close the line.
         line.stop();
         line.close();
         line = null;
-		cfBytes = null;
+		cfRecording = null;
     }
 } // End class Capture
\ No newline at end of file
@@ -0,0 +1,26 @@
+package talkbox.lib;
+
+/**
+ * The logical channels that share a single connection. Channels are listed in
+ * order of priority, so anything queued on an earlier channel is sent before
+ * anything queued on a later one.
+ */
+public enum Channel {
+	/**
+	 * Presence changes, file requests and other small protocol traffic.
+	 */
+	CONTROL,
+	/**
+	 * Text messages and file share announcements.
+	 */
+	CHAT,
+	/**
+	 * Images and audio.
+	 */
+	MEDIA,
+	/**
+	 * File transfers. Bulk items are handed out a few at a time so they can
+	 * be interleaved with everything else.
+	 */
+	BULK;
+}
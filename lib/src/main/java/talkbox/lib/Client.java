@@ -2,33 +2,45 @@ package talkbox.lib;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.Socket;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
-import java.util.Date;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class represents a user. It contains a unique id and the screen name of
  * the user. If the program is connected directly, it also contains the Socket
- * representing that connection. If possible, the id is an MD5 hash of the
- * Socket and the Date the Client connected at. Otherwise the id is a
- * concatenation of the Client address and the Date the Client connected at.
+ * representing that connection. The id is a 64 bit number from an
+ * IDGenerator, and is only turned into a string where it is shown.
+ * Clients that are read from a stream are interned, so every message from the
+ * same sender under the same name shares one Client. A shared Client can not
+ * be renamed, as that would rename the sender of every message already read;
+ * use {@link #renamed} to get a Client with the new name instead.
  */
 public class Client implements Serializable {
 	public static final long serialVersionUID = 5477434248976l;
+	/**
+	 * The most read Clients kept for interning. The table is emptied when it
+	 * is full.
+	 */
+	public static final int internLimit = 4096;
+	private static final ConcurrentHashMap<Long, Client> interned = new ConcurrentHashMap<>();
 	/**
 	 * The unique id of this Client.
 	 */
-	public final String id;
+	public final long id;
 	private String name;
 	private transient boolean nameChanged = false;
+	/**
+	 * True if this Client was read from a stream and may be shared.
+	 */
+	private transient boolean shared = false;
 	private transient final Socket socket;
 	private transient final ObjectInputStream in;
 	private transient final ObjectOutputStream out;
+	private transient final FrameOutputStream frames;
 
 	/**
 	 * Create a new Client from a Socket.
@@ -38,23 +50,10 @@ public class Client implements Serializable {
 	 */
 	public Client(Socket socket) throws IOException {
 		this.socket = socket;
-		out = new ObjectOutputStream(socket.getOutputStream());
-		in = new ObjectInputStream(socket.getInputStream());
-		id = createID(socket, new Date());
-	}
-
-	/**
-	 * Create a new Client from a Socket and a Date.
-	 *
-	 * @param socket The Socket that connects to this Client.
-	 * @param date The Date when this Client connected.
-	 * @throws java.io.IOException
-	 */
-	public Client(Socket socket, Date date) throws IOException {
-		this.socket = socket;
-		out = new ObjectOutputStream(socket.getOutputStream());
-		in = new ObjectInputStream(socket.getInputStream());
-		id = createID(socket, date);
+		frames = new FrameOutputStream(socket.getOutputStream());
+		out = new DictionaryOutputStream(frames);
+		in = new DictionaryInputStream(new FrameInputStream(socket.getInputStream()));
+		id = createID();
 	}
 
 	/**
@@ -62,10 +61,11 @@ public class Client implements Serializable {
 	 *
 	 * @param id The unique id of this Client.
 	 */
-	public Client(String id) {
+	public Client(long id) {
 		this.socket = null;
 		this.in = null;
 		this.out = null;
+		this.frames = null;
 		this.id = id;
 	}
 
@@ -75,11 +75,47 @@ public class Client implements Serializable {
 	 * @param id The unique id of this Client.
 	 * @param socket The Socket that connects to this Client.
 	 */
-	public Client(String id, Socket socket) throws IOException {
+	public Client(long id, Socket socket) throws IOException {
 		this.id = id;
 		this.socket = socket;
-		out = new ObjectOutputStream(socket.getOutputStream());
-		in = new ObjectInputStream(socket.getInputStream());
+		frames = new FrameOutputStream(socket.getOutputStream());
+		out = new DictionaryOutputStream(frames);
+		in = new DictionaryInputStream(new FrameInputStream(socket.getInputStream()));
+	}
+
+	/**
+	 * Create a new Client with a specified id that uses the connection of
+	 * another Client. This is used when a connection resumes an earlier
+	 * session and should take over that session's id.
+	 *
+	 * @param id The unique id of this Client.
+	 * @param connection The Client whose connection should be used.
+	 */
+	public Client(long id, Client connection) {
+		this.id = id;
+		this.socket = connection.socket;
+		this.in = connection.in;
+		this.out = connection.out;
+		this.frames = connection.frames;
+	}
+
+	/**
+	 * Compress what is written to this Client from now on. Only use a
+	 * Compressor the other end has said it can read.
+	 *
+	 * @param compressor The Compressor, or null to stop compressing.
+	 * @param threshold The size of the smallest frame that is compressed.
+	 */
+	public void setCompressor(Compressor compressor, int threshold) {
+		frames.setThreshold(threshold);
+		frames.setCompressor(compressor);
+	}
+
+	/**
+	 * @return The short string form of the id of this Client.
+	 */
+	public String getIDString() {
+		return IDGenerator.toString(id);
 	}
 
 	/**
@@ -101,15 +137,30 @@ public class Client implements Serializable {
 	 * Change the screenname of this Client.
 	 *
 	 * @param name The new screenname.
+	 * @throws IllegalStateException If this Client was read from a stream.
 	 */
 	public void setName(String name) {
 		if(this.name != null && this.name.equals(name)) {
 			return;
 		}
+		if(shared) {
+			throw new IllegalStateException("A Client read from a stream can not be renamed");
+		}
 		this.name = name;
 		nameChanged = true;
 	}
 
+	/**
+	 * @param name A screenname.
+	 * @return A Client with the same id as this one and the screenname, which
+	 * can be renamed.
+	 */
+	public Client renamed(String name) {
+		Client c = new Client(id);
+		c.name = name;
+		return c;
+	}
+
 	/**
 	 * @return If the name has changed since nameChangeProcessed was last
 	 * called, true, otherwise, false.
@@ -143,7 +194,43 @@ public class Client implements Serializable {
 	}
 
 	public void writeObject(Object o) throws IOException {
+		frames.setCompressible(Message.isCompressible(o));
+		out.reset();
+		out.writeObject(o);
+		out.flush();
+	}
+
+	/**
+	 * Write an instruction and the object that goes with it, then flush once.
+	 *
+	 * @param ins The instruction that tells the other end what follows.
+	 * @param o The object to write after the instruction.
+	 * @throws IOException
+	 */
+	public void writeObject(String ins, Object o) throws IOException {
+		frames.setCompressible(Message.isCompressible(o));
 		out.reset();
+		out.writeObject(ins);
+		out.writeObject(o);
+		out.flush();
+	}
+
+	/**
+	 * Write an instruction, a sequence number, an acknowledgement and the
+	 * object that goes with them, then flush once.
+	 *
+	 * @param ins The instruction that tells the other end what follows.
+	 * @param sequence The sequence number of the object.
+	 * @param ack What has been received from the other end, or null.
+	 * @param o The object to write after the acknowledgement.
+	 * @throws IOException
+	 */
+	public void writeObject(String ins, long sequence, Ack ack, Object o) throws IOException {
+		frames.setCompressible(Message.isCompressible(o));
+		out.reset();
+		out.writeObject(ins);
+		out.writeLong(sequence);
+		out.writeObject(ack);
 		out.writeObject(o);
 		out.flush();
 	}
@@ -152,55 +239,51 @@ public class Client implements Serializable {
 		return in.readUTF();
 	}
 
+	public long readLong() throws IOException {
+		return in.readLong();
+	}
+
+	public int readInt() throws IOException {
+		return in.readInt();
+	}
+
+	public int readUnsignedByte() throws IOException {
+		return in.readUnsignedByte();
+	}
+
 	public Object readObject() throws IOException, ClassNotFoundException {
 		return in.readObject();
 	}
 
 	/**
-	 * Create a MD5 hash from a Socket and a Date. Hopefully this provides a
-	 * unique id.
-	 *
-	 * @param socket The Socket that connects to this Client.
-	 * @param date The Date this Client connected at.
-	 * @return A MD5 hash made from the Socket and Date.
-	 * @throws java.security.NoSuchAlgorithmException
-	 */
-	public static String createMD5ID(Socket socket, Date date) throws NoSuchAlgorithmException {
-		MessageDigest md5 = MessageDigest.getInstance("MD5");
-		if(socket != null) {
-			md5.update(socket.getInetAddress().getAddress());
-		}
-		long t = System.nanoTime();
-		for(int i = 0; i < Long.BYTES; i++) {
-			md5.update((byte)t);
-			t >>= 8;
-		}
-		byte[] digest = md5.digest(date.toString().getBytes());
-		Base64.Encoder encoder = Base64.getEncoder();
-		return encoder.encodeToString(digest);
+	 * @return A new unique id, from this program's IDGenerator.
+	 */
+	public static long createID() {
+		return IDGenerator.shared().next();
 	}
 
 	/**
-	 * Try to create a MD5ID, fall back on String concatenation if not
-	 * available.
+	 * Use the Client already read with the same id and name, if there is one.
 	 *
-	 * @param socket The Socket that connectes to this Client.
-	 * @param date The Date this Client connected at.
-	 * @return A hopefully unique id.
-	 */
-	public static String createID(Socket socket, Date date) {
-		try {
-			return createMD5ID(socket, date);
-		} catch(NoSuchAlgorithmException ex) {
+	 * @return The interned Client.
+	 * @throws ObjectStreamException
+	 */
+	private Object readResolve() throws ObjectStreamException {
+		Client c = interned.get(id);
+		if(c != null && Objects.equals(c.name, name)) {
+			return c;
+		}
+		if(interned.size() >= internLimit) {
+			interned.clear();
 		}
-		return socket.getInetAddress().toString() + date.toString() + System.nanoTime();
+		shared = true;
+		interned.put(id, this);
+		return this;
 	}
 
 	@Override
 	public int hashCode() {
-		int hash = 7;
-		hash = 17 * hash + Objects.hashCode(this.id);
-		return hash;
+		return Long.hashCode(id);
 	}
 
 	@Override
@@ -212,6 +295,6 @@ public class Client implements Serializable {
 			return false;
 		}
 		final Client other = (Client)obj;
-		return Objects.equals(this.id, other.id);
+		return this.id == other.id;
 	}
 }
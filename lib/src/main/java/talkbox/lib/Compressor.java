@@ -0,0 +1,46 @@
+package talkbox.lib;
+
+import java.io.IOException;
+
+/**
+ * Compresses and decompresses the frames written by a FrameOutputStream. One
+ * instance is shared by every connection, so a Compressor must be safe to
+ * use from many threads at once, and every frame must be decompressible on
+ * its own.
+ */
+public interface Compressor {
+	/**
+	 * @return The number that names this Compressor in a frame, from 1 to
+	 * 255. 0 is for frames that are not compressed.
+	 */
+	int getId();
+
+	/**
+	 * @return The name of this Compressor.
+	 */
+	String getName();
+
+	/**
+	 * Compress bytes, giving up if they do not get smaller.
+	 *
+	 * @param in The bytes.
+	 * @param off Where the bytes start.
+	 * @param len How many bytes there are.
+	 * @param out Where to write the compressed bytes.
+	 * @return How many bytes were written, or -1 if they did not fit in out.
+	 */
+	int compress(byte[] in, int off, int len, byte[] out);
+
+	/**
+	 * Decompress bytes.
+	 *
+	 * @param in The compressed bytes.
+	 * @param off Where the compressed bytes start.
+	 * @param len How many compressed bytes there are.
+	 * @param out Where to write the bytes.
+	 * @param outLen How many bytes they decompress to.
+	 * @throws IOException If the bytes are not valid or do not decompress to
+	 * outLen bytes.
+	 */
+	void decompress(byte[] in, int off, int len, byte[] out, int outLen) throws IOException;
+}
@@ -0,0 +1,154 @@
+package talkbox.lib;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The Compressors known by id. Other compressors can be added with
+ * {@link #register}.
+ */
+public class Compressors {
+	private static final Compressor[] compressors = new Compressor[256];
+	/**
+	 * Deflate at its fastest level, which is what connections use.
+	 */
+	public static final Compressor deflate = register(new DeflateCompressor(1, Deflater.BEST_SPEED));
+
+	/**
+	 * Make a compressor known by its id, replacing any compressor with the
+	 * same id.
+	 *
+	 * @param compressor The compressor.
+	 * @return The compressor.
+	 * @throws IllegalArgumentException If the id is not from 1 to 255.
+	 */
+	public static Compressor register(Compressor compressor) {
+		int id = compressor.getId();
+		if(id < 1 || id > 255) {
+			throw new IllegalArgumentException("Bad compressor id " + id);
+		}
+		synchronized(compressors) {
+			compressors[id] = compressor;
+		}
+		return compressor;
+	}
+
+	/**
+	 * @param id The id of a compressor.
+	 * @return The compressor, or null if there is none with that id.
+	 */
+	public static Compressor forId(int id) {
+		if(id < 1 || id > 255) {
+			return null;
+		}
+		synchronized(compressors) {
+			return compressors[id];
+		}
+	}
+
+	/**
+	 * Pick the compressor for a connection.
+	 *
+	 * @param offered The ids of the compressors one end can read, the one it
+	 * would rather have first.
+	 * @param supported The compressors the other end can use.
+	 * @return The first offered compressor that is also supported, or null if
+	 * there is none and nothing should be compressed.
+	 */
+	public static Compressor choose(int[] offered, Compressor[] supported) {
+		for(int id : offered) {
+			for(Compressor c : supported) {
+				if(c.getId() == id) {
+					return c;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Raw deflate, without the zlib header and checksum, as the frame already
+	 * says how long the bytes are. Deflaters and Inflaters hold native memory
+	 * and are slow to make, so a few of each are kept and reused.
+	 */
+	private static class DeflateCompressor implements Compressor {
+		/**
+		 * How many Deflaters and Inflaters are kept for reuse.
+		 */
+		private static final int poolSize = 16;
+		private final int id;
+		private final int level;
+		private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(poolSize);
+		private final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(poolSize);
+
+		private DeflateCompressor(int id, int level) {
+			this.id = id;
+			this.level = level;
+		}
+
+		@Override
+		public int getId() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public int compress(byte[] in, int off, int len, byte[] out) {
+			Deflater d = deflaters.poll();
+			if(d == null) {
+				d = new Deflater(level, true);
+			}
+			try {
+				d.setInput(in, off, len);
+				d.finish();
+				int n = 0;
+				while(!d.finished() && n < out.length) {
+					n += d.deflate(out, n, out.length - n);
+				}
+				return d.finished() ? n : -1;
+			} finally {
+				d.reset();
+				if(!deflaters.offer(d)) {
+					d.end();
+				}
+			}
+		}
+
+		@Override
+		public void decompress(byte[] in, int off, int len, byte[] out, int outLen) throws IOException {
+			Inflater i = inflaters.poll();
+			if(i == null) {
+				i = new Inflater(true);
+			}
+			try {
+				i.setInput(in, off, len);
+				int n = 0;
+				while(n < outLen && !i.finished()) {
+					int r = i.inflate(out, n, outLen - n);
+					if(r == 0 && (i.needsInput() || i.needsDictionary())) {
+						break;
+					}
+					n += r;
+				}
+				if(n != outLen) {
+					throw new ZipException("Frame decompressed to " + n + " bytes, not " + outLen);
+				}
+			} catch(DataFormatException ex) {
+				throw new ZipException(ex.getMessage());
+			} finally {
+				i.reset();
+				if(!inflaters.offer(i)) {
+					i.end();
+				}
+			}
+		}
+	}
+}
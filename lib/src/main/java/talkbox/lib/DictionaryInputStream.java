@@ -0,0 +1,68 @@
+package talkbox.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+
+/**
+ * Reads what a DictionaryOutputStream wrote, keeping the same dictionary as
+ * the other end. Classes are looked up here by name, so both ends must have
+ * the same version of every class that is sent.
+ */
+public class DictionaryInputStream extends ObjectInputStream {
+	private final ArrayList<ObjectStreamClass> classes = new ArrayList<>();
+	private final Object[] slots = new Object[DictionaryOutputStream.capacity];
+
+	/**
+	 * Create a new DictionaryInputStream.
+	 *
+	 * @param in The stream to read from.
+	 * @throws IOException
+	 */
+	public DictionaryInputStream(InputStream in) throws IOException {
+		super(in);
+		enableResolveObject(true);
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+		int i = readInt();
+		if(i >= 0) {
+			if(i >= classes.size()) {
+				throw new StreamCorruptedException("Unknown class " + i);
+			}
+			return classes.get(i);
+		}
+		String name = readUTF();
+		ObjectStreamClass desc = ObjectStreamClass.lookupAny(Class.forName(name, false, getClass().getClassLoader()));
+		if(desc == null) {
+			throw new InvalidClassException(name, "Not known here");
+		}
+		classes.add(desc);
+		return desc;
+	}
+
+	@Override
+	protected Object resolveObject(Object obj) throws IOException {
+		if(obj instanceof DictionaryOutputStream.Define) {
+			DictionaryOutputStream.Define d = (DictionaryOutputStream.Define)obj;
+			if(d.slot < 0 || d.slot >= slots.length) {
+				throw new StreamCorruptedException("Bad slot " + d.slot);
+			}
+			slots[d.slot] = d.value;
+			return d.value;
+		}
+		if(obj instanceof DictionaryOutputStream.Ref) {
+			DictionaryOutputStream.Ref r = (DictionaryOutputStream.Ref)obj;
+			if(r.slot < 0 || r.slot >= slots.length || slots[r.slot] == null) {
+				throw new StreamCorruptedException("Empty slot " + r.slot);
+			}
+			return slots[r.slot];
+		}
+		return obj;
+	}
+}
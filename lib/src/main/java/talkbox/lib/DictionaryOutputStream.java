@@ -0,0 +1,183 @@
+package talkbox.lib;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An ObjectOutputStream that keeps a dictionary for the life of a connection,
+ * so things that are written again and again are only written in full once.
+ * The class of each object is written as its name the first time and as a
+ * number after that. Clients and short strings, such as names, rooms,
+ * instructions and file names, are given a slot and are written as the
+ * number of their slot after that. A Client gets a slot the first time it is
+ * written, and a string the second time, so text that is only sent once does
+ * not push out entries that are used again. The
+ * dictionary survives {@link #reset}, so messages can still be written
+ * without sharing anything mutable between writes.
+ * <p>
+ * There are at most {@link #capacity} slots. When they are all used, the
+ * slot used least recently is given to the next new entry, and the definition
+ * that takes it over tells the other end to forget what was in it. It must
+ * be read with a DictionaryInputStream.
+ */
+public class DictionaryOutputStream extends ObjectOutputStream {
+	/**
+	 * How many Clients and strings are kept in the dictionary.
+	 */
+	public static final int capacity = 1024;
+	/**
+	 * The longest string kept in the dictionary. Longer strings are rarely
+	 * repeated.
+	 */
+	public static final int maxStringLength = 64;
+	/**
+	 * The hashes of strings written once, by their hash. A string that
+	 * collides with another is only given a slot sooner.
+	 */
+	private final int[] seen = new int[4096];
+	private final HashMap<String, Integer> classes = new HashMap<>();
+	/**
+	 * The slot of each entry, used least recently first.
+	 */
+	private final LinkedHashMap<Object, Integer> slots = new LinkedHashMap<>(16, 0.75f, true);
+	/**
+	 * The copy being defined, which is written as it is.
+	 */
+	private Object defining;
+
+	/**
+	 * Create a new DictionaryOutputStream. The stream header is flushed, so
+	 * the other end is not kept waiting for it.
+	 *
+	 * @param out The stream to write to.
+	 * @throws IOException
+	 */
+	public DictionaryOutputStream(OutputStream out) throws IOException {
+		super(out);
+		enableReplaceObject(true);
+		flush();
+	}
+
+	@Override
+	protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+		Integer i = classes.get(desc.getName());
+		if(i != null) {
+			writeInt(i);
+			return;
+		}
+		writeInt(-1);
+		writeUTF(desc.getName());
+		classes.put(desc.getName(), classes.size());
+	}
+
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		if(obj == defining) {
+			defining = null;
+			return obj;
+		}
+		Object key;
+		if(obj instanceof String && ((String)obj).length() <= maxStringLength) {
+			key = obj;
+		} else if(obj != null && obj.getClass() == Client.class) {
+			key = new ClientKey((Client)obj);
+		} else {
+			return obj;
+		}
+		Integer slot = slots.get(key);
+		if(slot != null) {
+			return new Ref(slot);
+		}
+		if(obj instanceof String) {
+			int h = obj.hashCode();
+			int i = (h ^ (h >>> 16)) & (seen.length - 1);
+			if(seen[i] != h) {
+				seen[i] = h;
+				return obj;
+			}
+		}
+		if(slots.size() < capacity) {
+			slot = slots.size();
+		} else {
+			Iterator<Map.Entry<Object, Integer>> it = slots.entrySet().iterator();
+			slot = it.next().getValue();
+			it.remove();
+		}
+		slots.put(key, slot);
+		//The stream writes every later sight of obj as this Define, so a copy
+		//is defined instead of obj itself.
+		defining = copy(obj);
+		return new Define(slot, defining);
+	}
+
+	private static Object copy(Object obj) {
+		if(obj instanceof String) {
+			return new String((String)obj);
+		}
+		Client c = (Client)obj;
+		Client copy = new Client(c.id);
+		copy.setName(c.getName());
+		return copy;
+	}
+
+	/**
+	 * A Client is only the same entry under the same name.
+	 */
+	private static final class ClientKey {
+		private final long id;
+		private final String name;
+
+		private ClientKey(Client c) {
+			id = c.id;
+			name = c.getName();
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(id) * 31 + Objects.hashCode(name);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey)obj;
+			return id == other.id && Objects.equals(name, other.name);
+		}
+	}
+
+	/**
+	 * Puts an entry in a slot, replacing whatever was there.
+	 */
+	static final class Define implements Serializable {
+		private static final long serialVersionUID = 2212475816235091734L;
+		final int slot;
+		final Object value;
+
+		Define(int slot, Object value) {
+			this.slot = slot;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Stands for the entry in a slot.
+	 */
+	static final class Ref implements Serializable {
+		private static final long serialVersionUID = -3290580113637519562L;
+		final int slot;
+
+		Ref(int slot) {
+			this.slot = slot;
+		}
+	}
+}
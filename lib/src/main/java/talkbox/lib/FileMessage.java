@@ -37,6 +37,36 @@ public class FileMessage extends Message {
 		name = file.getName();
 	}
 
+	/**
+	 * Create a new FileMessage with text, shared under a different name than
+	 * the file has.
+	 *
+	 * @param sender The sender of the message.
+	 * @param text The text of the message.
+	 * @param file The file to share.
+	 * @param name The name to share the file under.
+	 * @param recipients Who to send the message to.
+	 */
+	protected FileMessage(Client sender, String text, File file, String name, Client... recipients) {
+		super(sender, text, recipients);
+		this.file = file;
+		this.name = name;
+	}
+
+	/**
+	 * Create a new FileMessage that shares a file as another form of an
+	 * existing Message, keeping its id and stamp.
+	 *
+	 * @param m The original Message.
+	 * @param file The file to share.
+	 * @param name The name to share the file under.
+	 */
+	protected FileMessage(Message m, File file, String name) {
+		super(m);
+		this.file = file;
+		this.name = name;
+	}
+
 	/**
 	 * Create a new FileMessage from another FileMessage.
 	 *
@@ -142,6 +172,11 @@ public class FileMessage extends Message {
 			return false;
 		}
 
+		@Override
+		public Channel getChannel() {
+			return Channel.CONTROL;
+		}
+
 		@Override
 		public int hashCode() {
 			int hash = 7;
@@ -9,6 +9,11 @@ public class FilePacket extends FileMessage implements DataPacket, Comparable<Fi
 	private static final long serialVersionUID = -6321865498170925123L;
 	public static final int preferredSize = 1024 * 512;
 	public static final int minimumSize = 1024;
+	/**
+	 * The size of the packets a file is sent in. This is kept small so that
+	 * other traffic on the connection only ever waits behind one slice.
+	 */
+	public static final int sliceSize = 1024 * 16;
 	public final byte[] bytes;
 	public final int start;
 	public final int sequence;
@@ -165,6 +170,16 @@ public class FilePacket extends FileMessage implements DataPacket, Comparable<Fi
 		return false;
 	}
 
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + bytes.length;
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.BULK;
+	}
+
 	/**
 	 * @return The bytes encapsulated by this FilePacket.
 	 */
@@ -0,0 +1,125 @@
+package talkbox.lib;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Reads the frames written by a FrameOutputStream, decompressing those that
+ * are compressed. Frames that are not compressed are read straight through
+ * without being copied.
+ */
+public class FrameInputStream extends InputStream {
+	private final DataInputStream in;
+	private final byte[] buffer = new byte[FrameOutputStream.maxFrameBytes];
+	private final byte[] compressed = new byte[FrameOutputStream.maxFrameBytes];
+	/**
+	 * Where the decompressed frame in the buffer is read up to, and where it
+	 * ends.
+	 */
+	private int position = 0;
+	private int limit = 0;
+	/**
+	 * How much of the frame that is not compressed is left to read.
+	 */
+	private int remaining = 0;
+
+	/**
+	 * Create a new FrameInputStream.
+	 *
+	 * @param in The stream to read from.
+	 */
+	public FrameInputStream(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+
+	/**
+	 * Read the header of the next frame, and the frame itself if it is
+	 * compressed, once the last has all been read.
+	 *
+	 * @return False if the stream ended between frames.
+	 * @throws IOException
+	 */
+	private boolean next() throws IOException {
+		while(position == limit && remaining == 0) {
+			int id = in.read();
+			if(id < 0) {
+				return false;
+			}
+			int length = in.readInt();
+			if(length < 0 || length > FrameOutputStream.maxFrameBytes) {
+				throw new StreamCorruptedException("Bad frame length " + length);
+			}
+			if(id == 0) {
+				remaining = length;
+				continue;
+			}
+			Compressor c = Compressors.forId(id);
+			if(c == null) {
+				throw new StreamCorruptedException("Unknown compressor " + id);
+			}
+			int size = in.readInt();
+			if(size < 0 || size > FrameOutputStream.maxFrameBytes) {
+				throw new StreamCorruptedException("Bad frame size " + size);
+			}
+			in.readFully(compressed, 0, length);
+			c.decompress(compressed, 0, length, buffer, size);
+			position = 0;
+			limit = size;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!next()) {
+			return -1;
+		}
+		if(position < limit) {
+			return buffer[position++] & 0xff;
+		}
+		int b = in.read();
+		if(b < 0) {
+			throw new EOFException("Stream ended in a frame");
+		}
+		remaining--;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(!next()) {
+			return -1;
+		}
+		if(position < limit) {
+			int n = Math.min(len, limit - position);
+			System.arraycopy(buffer, position, b, off, n);
+			position += n;
+			return n;
+		}
+		int n = in.read(b, off, Math.min(len, remaining));
+		if(n < 0) {
+			throw new EOFException("Stream ended in a frame");
+		}
+		remaining -= n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if(position < limit) {
+			return limit - position;
+		}
+		return Math.min(remaining, in.available());
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
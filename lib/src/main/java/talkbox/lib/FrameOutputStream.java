@@ -0,0 +1,207 @@
+package talkbox.lib;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes bytes in frames, each of which may be compressed on its own. What is
+ * written between two flushes is one frame, and a frame is cut early once it
+ * reaches {@link #maxFrameBytes}. Once a Compressor is set, a frame is
+ * compressed if it is at least as large as the threshold, the writer has not
+ * said that what it holds is not compressible, and a sample of it does not
+ * look compressed already, as JPEG, PNG and encoded audio do. The guess is
+ * only a guess: base64 of a JPEG uses 6 bits of each byte and is compressed,
+ * and so a writer that knows what it sends should say so with
+ * {@link #setCompressible(boolean)}. A frame is written as it is if
+ * compressing it would not make it smaller. It must be read with a
+ * FrameInputStream.
+ * <p>
+ * Each frame starts with the id of its Compressor, or 0 if it is not
+ * compressed, and how many bytes follow. A compressed frame then says how
+ * many bytes it decompresses to.
+ */
+public class FrameOutputStream extends OutputStream {
+	/**
+	 * The size of the largest frame.
+	 */
+	public static final int maxFrameBytes = 1024 * 64;
+	/**
+	 * The size of the smallest frame compressed unless told otherwise. Smaller
+	 * frames gain too little to be worth the time.
+	 */
+	public static final int defaultThreshold = 512;
+	/**
+	 * How many bytes of a frame are looked at to guess if it is compressed.
+	 */
+	public static final int sampleBytes = 512;
+	/**
+	 * The entropy, in bits per byte, above which a sample is taken to be
+	 * compressed already. Compressed data measures a little under 8 in a
+	 * sample this small.
+	 */
+	public static final double compressedEntropy = 7.2;
+	private final DataOutputStream out;
+	private final byte[] buffer = new byte[maxFrameBytes];
+	private final byte[] compressed = new byte[maxFrameBytes];
+	private final int[] counts = new int[256];
+	private int count = 0;
+	private volatile Compressor compressor;
+	private volatile int threshold = defaultThreshold;
+	private volatile boolean compressible = true;
+	private long rawBytes = 0;
+	private long writtenBytes = 0;
+
+	/**
+	 * Create a new FrameOutputStream. Nothing is compressed until a
+	 * Compressor is set.
+	 *
+	 * @param out The stream to write to.
+	 */
+	public FrameOutputStream(OutputStream out) {
+		this.out = new DataOutputStream(out);
+	}
+
+	/**
+	 * @param compressor The Compressor for frames written from now on, or
+	 * null to stop compressing.
+	 */
+	public void setCompressor(Compressor compressor) {
+		this.compressor = compressor;
+	}
+
+	/**
+	 * @return The Compressor for frames, or null if they are not compressed.
+	 */
+	public Compressor getCompressor() {
+		return compressor;
+	}
+
+	/**
+	 * @param threshold The size of the smallest frame that is compressed.
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * @return The size of the smallest frame that is compressed.
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Say if what is written until the next flush is worth compressing.
+	 *
+	 * @param compressible False to send it as it is, true to compress it if
+	 * it does not look compressed already.
+	 */
+	public void setCompressible(boolean compressible) {
+		this.compressible = compressible;
+	}
+
+	@Override
+	public synchronized void write(int b) throws IOException {
+		if(count == buffer.length) {
+			writeFrame();
+		}
+		buffer[count++] = (byte)b;
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(count == buffer.length) {
+				writeFrame();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		writeFrame();
+		out.flush();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Write what is in the buffer as a frame, compressed if it is worth it.
+	 */
+	private void writeFrame() throws IOException {
+		if(count == 0) {
+			return;
+		}
+		Compressor c = compressor;
+		int n = -1;
+		if(c != null && compressible && count >= threshold && !looksCompressed(buffer, count)) {
+			n = c.compress(buffer, 0, count, compressed);
+		}
+		if(n > 0 && n < count) {
+			out.writeByte(c.getId());
+			out.writeInt(n);
+			out.writeInt(count);
+			out.write(compressed, 0, n);
+			writtenBytes += 9 + n;
+		} else {
+			out.writeByte(0);
+			out.writeInt(count);
+			out.write(buffer, 0, count);
+			writtenBytes += 5 + count;
+		}
+		rawBytes += count;
+		count = 0;
+	}
+
+	/**
+	 * Guess if bytes are compressed already from the entropy of a sample of
+	 * them, spread evenly over the bytes.
+	 *
+	 * @param b The bytes.
+	 * @param len How many bytes there are.
+	 * @return True if the sample is close to random.
+	 */
+	private boolean looksCompressed(byte[] b, int len) {
+		int samples = Math.min(len, sampleBytes);
+		int step = len / samples;
+		for(int i = 0; i < samples; i++) {
+			counts[b[i * step] & 0xff]++;
+		}
+		double entropy = 0;
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] > 0) {
+				double p = (double)counts[i] / samples;
+				entropy -= p * Math.log(p);
+				counts[i] = 0;
+			}
+		}
+		return entropy / Math.log(2) > compressedEntropy;
+	}
+
+	/**
+	 * @return How many bytes have been written to this stream and sent on.
+	 */
+	public synchronized long getRawBytes() {
+		return rawBytes;
+	}
+
+	/**
+	 * @return How many bytes this stream has written, frame headers included.
+	 */
+	public synchronized long getWrittenBytes() {
+		return writtenBytes;
+	}
+}
@@ -0,0 +1,124 @@
+package talkbox.lib;
+
+import java.security.SecureRandom;
+
+/**
+ * Makes unique 64 bit ids without hashing. Each id is made of the time it was
+ * made, in milliseconds since {@link #epoch}, then the node that made it, then
+ * a sequence number for ids made in the same millisecond. Ids from one node
+ * only ever increase, and ids from different nodes never collide, so no two
+ * programs that make ids at the same time may share a node.
+ * <p>
+ * Each program makes its ids with {@link #shared}. The server's node is 0, and
+ * it hands every session a node of its own from 1 to {@link #maxAssignedNode}
+ * in its SessionTicket, which the Client then makes its ids with. Until then a
+ * Client uses a random node above {@link #maxAssignedNode}, which can only
+ * collide with another Client that has not connected yet either.
+ */
+public class IDGenerator {
+	/**
+	 * The time ids count from, the start of 2016.
+	 */
+	public static final long epoch = 1451606400000L;
+	public static final int nodeBits = 16;
+	public static final int sequenceBits = 6;
+	public static final int maxNode = (1 << nodeBits) - 1;
+	/**
+	 * The highest node the server hands out. Nodes above it are picked at
+	 * random before one is handed out.
+	 */
+	public static final int maxAssignedNode = (1 << (nodeBits - 1)) - 1;
+	private static final int maxSequence = (1 << sequenceBits) - 1;
+	private static final IDGenerator shared = new IDGenerator(
+			maxAssignedNode + 1 + new SecureRandom().nextInt(maxNode - maxAssignedNode));
+	private int node;
+	private long lastMillis = -1;
+	private int sequence = 0;
+
+	/**
+	 * Create a new IDGenerator.
+	 *
+	 * @param node The id of this node, from 0 to {@link #maxNode}. No two
+	 * nodes that make ids at the same time should share one.
+	 */
+	public IDGenerator(int node) {
+		if(node < 0 || node > maxNode) {
+			throw new IllegalArgumentException("Node must be from 0 to " + maxNode + ": " + node);
+		}
+		this.node = node;
+	}
+
+	/**
+	 * @return The IDGenerator this program makes Client and Message ids with.
+	 */
+	public static IDGenerator shared() {
+		return shared;
+	}
+
+	/**
+	 * @return The id of this node.
+	 */
+	public synchronized int getNode() {
+		return node;
+	}
+
+	/**
+	 * Make ids as a different node from now on. Ids already made stay
+	 * unique, as this node keeps counting from the last one.
+	 *
+	 * @param node The id of the node, from 0 to {@link #maxNode}.
+	 */
+	public synchronized void setNode(int node) {
+		if(node < 0 || node > maxNode) {
+			throw new IllegalArgumentException("Node must be from 0 to " + maxNode + ": " + node);
+		}
+		this.node = node;
+	}
+
+	/**
+	 * @return A new id. If more than 64 are asked for in one millisecond,
+	 * the rest are made as if it were the next.
+	 */
+	public synchronized long next() {
+		long now = System.currentTimeMillis() - epoch;
+		//If the clock went back, keep counting from where it was.
+		if(now < lastMillis) {
+			now = lastMillis;
+		}
+		if(now == lastMillis) {
+			sequence = (sequence + 1) & maxSequence;
+			if(sequence == 0) {
+				now++;
+			}
+		} else {
+			sequence = 0;
+		}
+		lastMillis = now;
+		return (now << (nodeBits + sequenceBits)) | ((long)node << sequenceBits) | sequence;
+	}
+
+	/**
+	 * @param id An id.
+	 * @return When the id was made, in milliseconds since the epoch.
+	 */
+	public static long millisOf(long id) {
+		return (id >>> (nodeBits + sequenceBits)) + epoch;
+	}
+
+	/**
+	 * @param id An id.
+	 * @return The short string form of the id, for logs and anything shown.
+	 */
+	public static String toString(long id) {
+		return Long.toUnsignedString(id, 36);
+	}
+
+	/**
+	 * @param s The string form of an id.
+	 * @return The id.
+	 * @throws NumberFormatException If the string is not an id.
+	 */
+	public static long parse(String s) {
+		return Long.parseUnsignedLong(s, 36);
+	}
+}
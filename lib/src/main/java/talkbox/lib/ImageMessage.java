@@ -5,7 +5,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Base64;
-import java.util.Objects;
 
 /**
  * This class represents an image. The image is stored as a base64 string.
@@ -73,21 +72,23 @@ public class ImageMessage extends Message {
 	}
 
 	@Override
-	public int hashCode() {
-		int hash = 7;
-		hash = 83 * hash + Objects.hashCode(this.base64image);
-		return hash;
+	public int estimateSize() {
+		return super.estimateSize() + base64image.length();
 	}
 
 	@Override
-	public boolean equals(Object obj) {
-		if(obj == null) {
-			return false;
-		}
-		if(getClass() != obj.getClass()) {
-			return false;
-		}
-		final ImageMessage other = (ImageMessage)obj;
-		return Objects.equals(this.base64image, other.base64image);
+	public Channel getChannel() {
+		return Channel.MEDIA;
+	}
+
+	/**
+	 * The image is base64, which only uses 6 bits of each byte, so it is
+	 * compressed even though it is media: deflate wins back nearly all of the
+	 * third that base64 adds. A sample of it never looks compressed, so this
+	 * only says what the guess would find anyway.
+	 */
+	@Override
+	public boolean isCompressible() {
+		return true;
 	}
 }
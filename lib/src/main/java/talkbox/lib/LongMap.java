@@ -0,0 +1,197 @@
+package talkbox.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to values, with the keys kept unboxed in an array
+ * and found by linear probing. It is not thread safe.
+ *
+ * @param <V> The type of the values.
+ */
+public class LongMap<V> {
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+	private int mask;
+	/**
+	 * The value for the key 0, which marks an empty slot in the table.
+	 */
+	private Object zero;
+	private boolean hasZero = false;
+
+	/**
+	 * Create a new, empty LongMap.
+	 */
+	public LongMap() {
+		this(16);
+	}
+
+	/**
+	 * Create a new, empty LongMap.
+	 *
+	 * @param capacity How many entries to make room for at first.
+	 */
+	public LongMap(int capacity) {
+		int n = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) * 2;
+		keys = new long[n];
+		values = new Object[n];
+		mask = n - 1;
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private int find(long key) {
+		int i = hash(key) & mask;
+		while(keys[i] != 0 && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * @param key A key.
+	 * @return The value of the key, or null if it has none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		if(key == 0) {
+			return (V)zero;
+		}
+		return (V)values[find(key)];
+	}
+
+	/**
+	 * @param key A key.
+	 * @return True if the key has a value.
+	 */
+	public boolean containsKey(long key) {
+		return key == 0 ? hasZero : keys[find(key)] != 0;
+	}
+
+	/**
+	 * Give a key a value.
+	 *
+	 * @param key The key.
+	 * @param value The value.
+	 * @return The value the key had, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if(key == 0) {
+			V old = (V)zero;
+			zero = value;
+			if(!hasZero) {
+				hasZero = true;
+				size++;
+			}
+			return old;
+		}
+		int i = find(key);
+		V old = (V)values[i];
+		values[i] = value;
+		if(keys[i] == 0) {
+			keys[i] = key;
+			size++;
+			if(size * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * Take a key out of the map.
+	 *
+	 * @param key The key.
+	 * @return The value the key had, or null.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		if(key == 0) {
+			V old = (V)zero;
+			if(hasZero) {
+				hasZero = false;
+				zero = null;
+				size--;
+			}
+			return old;
+		}
+		int i = find(key);
+		if(keys[i] == 0) {
+			return null;
+		}
+		V old = (V)values[i];
+		size--;
+		//Move later keys of the same run back, so no probe stops early.
+		int gap = i;
+		for(int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			if(((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = 0;
+		values[gap] = null;
+		return old;
+	}
+
+	private void resize(int n) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[n];
+		values = new Object[n];
+		mask = n - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != 0) {
+				int j = find(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @return How many keys have values.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Take every key out of the map.
+	 */
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, null);
+		zero = null;
+		hasZero = false;
+		size = 0;
+	}
+
+	/**
+	 * @return A new list of the values.
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<V> values() {
+		ArrayList<V> list = new ArrayList<>(size);
+		if(hasZero) {
+			list.add((V)zero);
+		}
+		for(int i = 0; i < keys.length; i++) {
+			if(keys[i] != 0) {
+				list.add((V)values[i]);
+			}
+		}
+		return list;
+	}
+}
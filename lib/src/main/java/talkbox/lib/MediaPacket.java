@@ -0,0 +1,72 @@
+package talkbox.lib;
+
+/**
+ * Part of a piece of media kept by the server, sent in answer to a
+ * MediaRequest.
+ */
+public class MediaPacket extends Message implements DataPacket {
+	private static final long serialVersionUID = -7315006482254011239L;
+	public final String hash;
+	public final byte[] bytes;
+	/**
+	 * Where these bytes start in the media.
+	 */
+	public final long start;
+	/**
+	 * The size of the whole media, or -1 if the server does not have it.
+	 */
+	public final long totalBytes;
+
+	/**
+	 * Create a new MediaPacket.
+	 *
+	 * @param sender The sender of the message.
+	 * @param hash The content hash of the media.
+	 * @param bytes Part of the media.
+	 * @param start Where the bytes start in the media.
+	 * @param totalBytes The size of the whole media, or -1 if it is not
+	 * available.
+	 */
+	public MediaPacket(Client sender, String hash, byte[] bytes, long start, long totalBytes) {
+		super(sender, "mediaPacket");
+		this.hash = hash;
+		this.bytes = bytes;
+		this.start = start;
+		this.totalBytes = totalBytes;
+	}
+
+	/**
+	 * @return False if the server does not have the media.
+	 */
+	public boolean isAvailable() {
+		return totalBytes >= 0;
+	}
+
+	@Override
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public boolean display() {
+		return false;
+	}
+
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + bytes.length;
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.BULK;
+	}
+
+	/**
+	 * The bytes are part of an image or audio, which is encoded already.
+	 */
+	@Override
+	public boolean isCompressible() {
+		return false;
+	}
+}
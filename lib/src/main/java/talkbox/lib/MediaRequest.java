@@ -0,0 +1,41 @@
+package talkbox.lib;
+
+/**
+ * Asks the server for part of a piece of media it keeps, by its content hash.
+ * The server answers with MediaPackets.
+ */
+public class MediaRequest extends Message {
+	private static final long serialVersionUID = 3829171045712334658L;
+	public final String hash;
+	public final long start;
+	/**
+	 * Where the requested part ends, or 0 for the end of the media.
+	 */
+	public final long end;
+
+	/**
+	 * Create a new MediaRequest.
+	 *
+	 * @param sender The Client requesting the media.
+	 * @param hash The content hash of the media.
+	 * @param start Skip this many bytes from the start of the media.
+	 * @param end Where the requested part ends, or 0 for the end of the
+	 * media.
+	 */
+	public MediaRequest(Client sender, String hash, long start, long end) {
+		super(sender, "mediaRequest");
+		this.hash = hash;
+		this.start = Math.max(0, start);
+		this.end = Math.max(0, end);
+	}
+
+	@Override
+	public boolean display() {
+		return false;
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.CONTROL;
+	}
+}
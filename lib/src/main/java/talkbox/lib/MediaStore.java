@@ -0,0 +1,182 @@
+package talkbox.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Media kept on disk, each piece in a file named by its content hash, so the
+ * same media is only kept once. The total size is
+ * bounded, and the media used least recently is deleted to make room. Media
+ * already in the directory is picked up when the store is made.
+ */
+public class MediaStore {
+	public final File directory;
+	public final long maxBytes;
+	/**
+	 * The size of each piece of media, by hash, least recently used first.
+	 */
+	private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes = 0;
+
+	/**
+	 * Create a new MediaStore.
+	 *
+	 * @param directory Where to keep the media.
+	 * @param maxBytes The most bytes of media to keep.
+	 * @throws IOException If the directory can not be made.
+	 */
+	public MediaStore(File directory, long maxBytes) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if(files == null) {
+			throw new IOException("Can not use " + directory);
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for(File f : files) {
+			if(Thumbnails.isHash(f.getName())) {
+				sizes.put(f.getName(), f.length());
+				bytes += f.length();
+			} else {
+				f.delete();
+			}
+		}
+		synchronized(this) {
+			evict();
+		}
+	}
+
+	/**
+	 * Keep a piece of media.
+	 *
+	 * @param media The media.
+	 * @return The content hash of the media, or null if it is too large to
+	 * keep.
+	 * @throws IOException
+	 */
+	public String put(byte[] media) throws IOException {
+		if(media.length > maxBytes / 4) {
+			return null;
+		}
+		String hash = Thumbnails.hash(media);
+		synchronized(this) {
+			if(sizes.get(hash) != null) {
+				return hash;
+			}
+		}
+		File part = File.createTempFile("media", ".part", directory);
+		try {
+			Files.write(part.toPath(), media);
+			Files.move(part.toPath(), new File(directory, hash).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			part.delete();
+		}
+		synchronized(this) {
+			if(sizes.put(hash, (long)media.length) == null) {
+				bytes += media.length;
+			}
+			evict();
+		}
+		return hash;
+	}
+
+	/**
+	 * Keep media that was written to a file, if its contents match its hash.
+	 * The file is moved into the store.
+	 *
+	 * @param hash The content hash the media should have.
+	 * @param file The file the media was written to.
+	 * @return The file the media is kept in, or null if its contents do not
+	 * match the hash or it is too large to keep.
+	 * @throws IOException
+	 */
+	public File put(String hash, File file) throws IOException {
+		long length = file.length();
+		if(!Thumbnails.isHash(hash) || length > maxBytes / 4 || !Thumbnails.hash(file).equals(hash)) {
+			return null;
+		}
+		File kept = new File(directory, hash);
+		Files.move(file.toPath(), kept.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		synchronized(this) {
+			Long old = sizes.put(hash, length);
+			bytes += length - (old == null ? 0 : old);
+			evict();
+		}
+		return kept;
+	}
+
+	/**
+	 * @param hash The content hash of a piece of media.
+	 * @return The file the media is kept in, or null if it is not kept.
+	 */
+	public synchronized File get(String hash) {
+		return sizes.get(hash) == null ? null : new File(directory, hash);
+	}
+
+	/**
+	 * Delete the media used least recently until the store is small enough.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Long> e = it.next();
+			bytes -= e.getValue();
+			it.remove();
+			new File(directory, e.getKey()).delete();
+		}
+	}
+
+	/**
+	 * @param hash The content hash of a piece of media.
+	 * @return The size of the media, or -1 if it is not kept.
+	 */
+	public synchronized long size(String hash) {
+		Long size = sizes.get(hash);
+		return size == null ? -1 : size;
+	}
+
+	/**
+	 * Read part of a piece of media.
+	 *
+	 * @param hash The content hash of the media.
+	 * @param start Where to start reading.
+	 * @param length How many bytes to read. Fewer are read if the media ends
+	 * first.
+	 * @return The bytes read, or null if the media is not kept.
+	 * @throws IOException
+	 */
+	public byte[] read(String hash, long start, int length) throws IOException {
+		long size = size(hash);
+		if(size < 0) {
+			return null;
+		}
+		byte[] b = new byte[(int)Math.max(0, Math.min(length, size - start))];
+		try(RandomAccessFile f = new RandomAccessFile(new File(directory, hash), "r")) {
+			f.seek(start);
+			f.readFully(b);
+		} catch(IOException ex) {
+			//It was deleted to make room while being read.
+			if(size(hash) < 0) {
+				return null;
+			}
+			throw ex;
+		}
+		return b;
+	}
+
+	/**
+	 * @return How many bytes of media are kept.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+}
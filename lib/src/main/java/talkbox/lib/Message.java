@@ -1,22 +1,41 @@
 package talkbox.lib;
 
 import java.io.Serializable;
-import java.util.Date;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * This class represents a chat message. It includes the text of the message,
- * the time the message was sent, and the intended recipients.
+ * the time the message was sent, and the ids of the intended recipients. Each
+ * Message is given a unique id when it is made, which is what makes two
+ * Messages equal, so a Message can be used as a key before and after it is
+ * sent. Copies made for other recipients, such as thumbnails and references,
+ * keep the id of the Message they were made from.
+ * <p>
+ * When a Message is first sent it is also stamped with an origin, which
+ * identifies the program that sent it, and a sequence number that is unique
+ * for that origin. These are only used to acknowledge messages and drop
+ * duplicates, and are the only part of a Message that changes after it is
+ * made.
  */
 public class Message implements Serializable {
 	private static final long serialVersionUID = 4609441689316482567L;
+	private static final long[] noRecipients = new long[0];
+	/**
+	 * The unique id of this Message.
+	 */
+	public final long id;
 	public final String text;
-	public final Date time;
+	/**
+	 * When this Message was made, in milliseconds since the epoch.
+	 */
+	public final long time;
 	public final Client sender;
-	private final List<Client> recipients;
+	/**
+	 * The ids of the intended recipients, empty if this Message is for
+	 * everyone.
+	 */
+	private final long[] recipients;
+	private long origin = 0;
+	private long sequence = 0;
 
 	/**
 	 * Create a new Message with specified text.
@@ -25,10 +44,7 @@ public class Message implements Serializable {
 	 * @param text The message text.
 	 */
 	public Message(Client sender, String text) {
-		this.sender = sender;
-		this.text = text;
-		time = new Date();
-		recipients = new ArrayList<>();
+		this(sender, text, noRecipients);
 	}
 
 	/**
@@ -39,83 +55,171 @@ public class Message implements Serializable {
 	 * @param recipients An array of Clients that are the intended recipients.
 	 */
 	public Message(Client sender, String text, Client... recipients) {
+		this(sender, text, idsOf(recipients));
+	}
+
+	/**
+	 * Create a new Message with specified text and recipient ids.
+	 *
+	 * @param sender The Client that sent the message.
+	 * @param text The message text.
+	 * @param recipients The ids of the intended recipients, or null for
+	 * everyone.
+	 */
+	protected Message(Client sender, String text, long[] recipients) {
+		id = IDGenerator.shared().next();
 		this.sender = sender;
 		this.text = text;
-		time = new Date();
-		if(recipients != null) {
-			this.recipients = Arrays.asList(recipients);
-		} else {
-			this.recipients = new ArrayList<>();
-		}
+		time = System.currentTimeMillis();
+		this.recipients = recipients != null && recipients.length > 0 ? recipients.clone() : noRecipients;
 	}
 
 	/**
-	 * Add a recipient to this Message.
+	 * Create a new Message that is another form of an existing one. It keeps
+	 * the id, sender, text, time, recipients and stamp of the original.
 	 *
-	 * @param recipient The recipient to add.
-	 * @return True if added, false otherwise.
+	 * @param m The original Message.
 	 */
-	public boolean addRecipient(Client recipient) {
-		if(recipients.contains(recipient)) {
-			return false;
+	protected Message(Message m) {
+		id = m.id;
+		sender = m.sender;
+		text = m.text;
+		time = m.time;
+		recipients = m.recipients;
+		origin = m.origin;
+		sequence = m.sequence;
+	}
+
+	private static long[] idsOf(Client[] clients) {
+		if(clients == null || clients.length == 0) {
+			return noRecipients;
+		}
+		long[] r = new long[clients.length];
+		for(int i = 0; i < r.length; i++) {
+			r[i] = clients[i].id;
 		}
-		return recipients.add(recipient);
+		return r;
 	}
 
 	/**
-	 * Get an array of Clients that are the intended recipients.
+	 * Get the ids of the intended recipients.
 	 *
-	 * @return The Clients that this Message is intended for.
+	 * @return The ids of the Clients that this Message is intended for, or
+	 * null if it is for everyone.
 	 */
-	public Client[] getRecipients() {
-		if(recipients == null || recipients.size() <= 0) {
+	public long[] getRecipients() {
+		if(recipients.length == 0) {
 			return null;
 		}
-		return recipients.toArray(new Client[0]);
+		return recipients.clone();
 	}
 
-	public void setRecipients(Client... recipients) {
-		this.recipients.clear();
-		this.recipients.addAll(Arrays.asList(recipients));
+	/**
+	 * Stamp this Message with the origin and sequence number it was sent
+	 * with. A Message can only be stamped once.
+	 *
+	 * @param origin The origin that sent this Message.
+	 * @param sequence The sequence number of this Message for that origin.
+	 * Must be greater than zero.
+	 */
+	public void stamp(long origin, long sequence) {
+		if(this.sequence != 0) {
+			throw new IllegalStateException("Message has already been stamped.");
+		}
+		this.origin = origin;
+		this.sequence = sequence;
 	}
 
-	public void setRecipients(List<Client> recipients) {
-		this.recipients.clear();
-		this.recipients.addAll(recipients);
+	/**
+	 * @return The origin that sent this Message, or 0 if it was never stamped.
+	 */
+	public long getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * @return The sequence number of this Message, or 0 if it was never
+	 * stamped.
+	 */
+	public long getSequence() {
+		return sequence;
 	}
 
 	public boolean display() {
 		return true;
 	}
 
+	/**
+	 * Estimate how many bytes this Message takes up on the wire. This is used
+	 * to cap the size of a batch and does not need to be exact.
+	 *
+	 * @return The estimated size of this Message in bytes.
+	 */
+	public int estimateSize() {
+		if(text == null) {
+			return 64;
+		}
+		return 64 + text.length() * 2;
+	}
+
+	/**
+	 * Get the channel this Message should be sent on. Messages without text
+	 * announce a Client and are sent as control traffic.
+	 *
+	 * @return The Channel to send this Message on.
+	 */
+	public Channel getChannel() {
+		if(text == null) {
+			return Channel.CONTROL;
+		}
+		return Channel.CHAT;
+	}
+
+	/**
+	 * Say if this Message is worth compressing when it is sent. Media is
+	 * encoded already and would only cost time, so it is not, but anything
+	 * else is still left to the guess a FrameOutputStream makes from its
+	 * bytes.
+	 *
+	 * @return False if this Message should be sent as it is.
+	 */
+	public boolean isCompressible() {
+		return getChannel() != Channel.MEDIA;
+	}
+
+	/**
+	 * @param o A Message, an array of Messages or anything else that is
+	 * about to be sent.
+	 * @return False if it is a Message, or an array of them, that should be
+	 * sent as it is, true otherwise.
+	 */
+	public static boolean isCompressible(Object o) {
+		if(o instanceof Message) {
+			return ((Message)o).isCompressible();
+		}
+		if(o instanceof Message[]) {
+			for(Message m : (Message[])o) {
+				if(m != null && !m.isCompressible()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public int hashCode() {
-		int hash = 3;
-		hash = 59 * hash + Objects.hashCode(this.text);
-		hash = 59 * hash + Objects.hashCode(this.time);
-		hash = 59 * hash + Objects.hashCode(this.sender);
-		hash = 59 * hash + Objects.hashCode(this.recipients);
-		return hash;
+		return (int)(id ^ (id >>> 32));
 	}
 
 	@Override
 	public boolean equals(Object obj) {
-		if(obj == null) {
-			return false;
-		}
-		if(getClass() != obj.getClass()) {
-			return false;
-		}
-		final Message other = (Message)obj;
-		if(!Objects.equals(this.text, other.text)) {
-			return false;
-		}
-		if(!Objects.equals(this.time, other.time)) {
-			return false;
+		if(this == obj) {
+			return true;
 		}
-		if(!Objects.equals(this.sender, other.sender)) {
+		if(obj == null || getClass() != obj.getClass()) {
 			return false;
 		}
-		return Objects.equals(this.recipients, other.recipients);
+		return id == ((Message)obj).id;
 	}
 }
@@ -0,0 +1,205 @@
+package talkbox.lib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * A queue of outgoing items with one lane per {@link Channel}. Items are handed
+ * out in batches in order of channel priority, and only a limited number of
+ * {@link Channel#BULK} items are handed out at a time so that a large transfer
+ * can never hold up chat or presence traffic for more than one slice.
+ * <p>
+ * Batches are capped by item count and by the estimated size of the items.
+ * When a linger time is set, {@link #take()} waits that long for a batch to
+ * fill up before handing it out.
+ *
+ * @param <T> The type of item being queued.
+ */
+public class Outbox<T> {
+	private final ArrayDeque<T>[] lanes;
+	private final ToIntFunction<? super T> sizer;
+	private int size = 0;
+	private long bytes = 0;
+	private boolean closed = false;
+	private int maxItems = Integer.MAX_VALUE;
+	private int maxBulk = 1;
+	private long maxBytes = Long.MAX_VALUE;
+	private long lingerNanos = 0;
+
+	/**
+	 * Create a new, empty Outbox that does not cap batches by size.
+	 */
+	public Outbox() {
+		this(item -> 0);
+	}
+
+	/**
+	 * Create a new, empty Outbox.
+	 *
+	 * @param sizer Estimates the size of an item in bytes.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public Outbox(ToIntFunction<? super T> sizer) {
+		this.sizer = sizer;
+		lanes = new ArrayDeque[Channel.values().length];
+		for(int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ArrayDeque<>();
+		}
+	}
+
+	/**
+	 * Set how large a batch may be. A batch always contains at least one item,
+	 * even if that item alone is larger than maxBytes.
+	 *
+	 * @param maxItems The most items in a batch.
+	 * @param maxBulk The most bulk items in a batch.
+	 * @param maxBytes The most bytes in a batch.
+	 */
+	public synchronized void setLimits(int maxItems, int maxBulk, long maxBytes) {
+		this.maxItems = Math.max(1, maxItems);
+		this.maxBulk = Math.max(1, maxBulk);
+		this.maxBytes = Math.max(1, maxBytes);
+	}
+
+	/**
+	 * Set how long {@link #take()} waits for more items once something is
+	 * queued. Zero hands out whatever is queued immediately.
+	 *
+	 * @param time How long to wait.
+	 * @param unit The unit of time.
+	 */
+	public synchronized void setLinger(long time, TimeUnit unit) {
+		lingerNanos = Math.max(0, unit.toNanos(time));
+	}
+
+	/**
+	 * Queue an item on a channel.
+	 *
+	 * @param channel The channel to queue the item on.
+	 * @param item The item to queue.
+	 * @return True if queued, false if this Outbox has been closed.
+	 */
+	public synchronized boolean add(Channel channel, T item) {
+		if(closed) {
+			return false;
+		}
+		lanes[channel.ordinal()].add(item);
+		size++;
+		bytes += sizer.applyAsInt(item);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Remove the next batch without waiting. Items are taken in priority order
+	 * until the batch is full.
+	 *
+	 * @return The items to send, possibly empty.
+	 */
+	public synchronized List<T> poll() {
+		List<T> items = new ArrayList<>();
+		long taken = 0;
+		int bulk = Channel.BULK.ordinal();
+		lanes:
+		for(int i = 0; i < lanes.length; i++) {
+			ArrayDeque<T> lane = lanes[i];
+			int n = 0;
+			while(!lane.isEmpty() && (i != bulk || n < maxBulk)) {
+				if(items.size() >= maxItems) {
+					break lanes;
+				}
+				int s = sizer.applyAsInt(lane.peek());
+				if(!items.isEmpty() && taken + s > maxBytes) {
+					break lanes;
+				}
+				items.add(lane.poll());
+				taken += s;
+				n++;
+			}
+		}
+		size -= items.size();
+		bytes -= taken;
+		return items;
+	}
+
+	/**
+	 * Like {@link #poll()}, but wait until there is something to send, then
+	 * linger until the batch is full or the linger time is up.
+	 *
+	 * @return The items to send. This is only empty if this Outbox was closed.
+	 * @throws InterruptedException
+	 */
+	public synchronized List<T> take() throws InterruptedException {
+		while(size == 0 && !closed) {
+			wait();
+		}
+		return linger();
+	}
+
+	/**
+	 * Like {@link #take()}, but give up if nothing is queued in time.
+	 *
+	 * @param timeout How long to wait for something to be queued.
+	 * @param unit The unit of timeout.
+	 * @return The items to send. This is empty if nothing was queued in time
+	 * or this Outbox was closed.
+	 * @throws InterruptedException
+	 */
+	public synchronized List<T> take(long timeout, TimeUnit unit) throws InterruptedException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		long remaining;
+		while(size == 0 && !closed && (remaining = end - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return linger();
+	}
+
+	private List<T> linger() throws InterruptedException {
+		if(size == 0) {
+			return new ArrayList<>();
+		}
+		long deadline = System.nanoTime() + lingerNanos;
+		long remaining;
+		while(!closed && !isBatchFull() && (remaining = deadline - System.nanoTime()) > 0) {
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return poll();
+	}
+
+	private boolean isBatchFull() {
+		return size >= maxItems || bytes >= maxBytes || lanes[Channel.BULK.ordinal()].size() >= maxBulk;
+	}
+
+	/**
+	 * Close this Outbox. Nothing more can be queued, and anyone waiting in
+	 * {@link #take()} is woken up.
+	 */
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return True if this Outbox has been closed, false otherwise.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return True if nothing is queued, false otherwise.
+	 */
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The number of queued items.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
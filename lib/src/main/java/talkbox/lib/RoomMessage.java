@@ -0,0 +1,39 @@
+package talkbox.lib;
+
+/**
+ * Asks the server to put a Client in a voice room or take it out. While a
+ * Client is in a room, the AudioFrames it sends to the room are mixed with
+ * those of everyone else in it, and it is sent one mixed stream of everyone
+ * but itself. A Client is in at most one room at a time.
+ */
+public class RoomMessage extends Message {
+	private static final long serialVersionUID = -4406317092436257170L;
+	/**
+	 * The name of the room.
+	 */
+	public final String room;
+	public final boolean join;
+
+	/**
+	 * Create a new RoomMessage.
+	 *
+	 * @param sender The Client joining or leaving.
+	 * @param room The name of the room.
+	 * @param join True to join the room, false to leave it.
+	 */
+	public RoomMessage(Client sender, String room, boolean join) {
+		super(sender, "room");
+		this.room = room;
+		this.join = join;
+	}
+
+	@Override
+	public boolean display() {
+		return false;
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.CONTROL;
+	}
+}
@@ -0,0 +1,161 @@
+package talkbox.lib;
+
+import java.util.Arrays;
+
+/**
+ * Remembers which sequence numbers have been seen so duplicates can be
+ * dropped. Everything at or below the base has been seen. Above the base, a
+ * fixed size window of bits records what arrived out of order. If a sequence
+ * number arrives that is past the end of the window, the window slides forward
+ * and anything it slides past is treated as seen.
+ */
+public class SequenceWindow {
+	/**
+	 * The number of sequence numbers tracked above the base by default.
+	 */
+	public static final int defaultSize = 1024;
+	private final long[] bits;
+	private final int size;
+	private long base;
+	private long highest;
+	private boolean changed = false;
+
+	/**
+	 * Create a new SequenceWindow of the default size.
+	 *
+	 * @param base Every sequence number up to and including this one is
+	 * treated as already seen.
+	 */
+	public SequenceWindow(long base) {
+		this(base, defaultSize);
+	}
+
+	/**
+	 * Create a new SequenceWindow.
+	 *
+	 * @param base Every sequence number up to and including this one is
+	 * treated as already seen.
+	 * @param size How many sequence numbers above the base to track. This is
+	 * rounded up to a multiple of 64.
+	 */
+	public SequenceWindow(long base, int size) {
+		this.size = Math.max(64, (size + 63) & ~63);
+		bits = new long[this.size / 64];
+		this.base = base;
+		highest = base;
+	}
+
+	private int slot(long sequence) {
+		return (int)Math.floorMod(sequence, (long)size);
+	}
+
+	private boolean isSet(long sequence) {
+		int i = slot(sequence);
+		return (bits[i >>> 6] & (1L << i)) != 0;
+	}
+
+	private void set(long sequence) {
+		int i = slot(sequence);
+		bits[i >>> 6] |= 1L << i;
+	}
+
+	private void clear(long sequence) {
+		int i = slot(sequence);
+		bits[i >>> 6] &= ~(1L << i);
+	}
+
+	/**
+	 * Mark a sequence number as seen.
+	 *
+	 * @param sequence The sequence number.
+	 * @return True if it had not been seen before, false if it is a duplicate.
+	 */
+	public synchronized boolean mark(long sequence) {
+		if(sequence <= base) {
+			return false;
+		}
+		if(sequence > base + size) {
+			long newBase = sequence - size;
+			if(newBase - base >= size) {
+				Arrays.fill(bits, 0);
+			} else {
+				for(long s = base + 1; s <= newBase; s++) {
+					clear(s);
+				}
+			}
+			base = newBase;
+		}
+		if(isSet(sequence)) {
+			return false;
+		}
+		set(sequence);
+		highest = Math.max(highest, sequence);
+		while(base < highest && isSet(base + 1)) {
+			clear(base + 1);
+			base++;
+		}
+		changed = true;
+		return true;
+	}
+
+	/**
+	 * @param sequence The sequence number to check.
+	 * @return True if it has been seen, false otherwise.
+	 */
+	public synchronized boolean contains(long sequence) {
+		return sequence <= base || (sequence <= base + size && isSet(sequence));
+	}
+
+	/**
+	 * @return The highest sequence number seen without gaps.
+	 */
+	public synchronized long getBase() {
+		return base;
+	}
+
+	/**
+	 * Describe everything seen as an Ack.
+	 *
+	 * @return An Ack for everything seen so far.
+	 */
+	public synchronized Ack toAck() {
+		changed = false;
+		if(highest <= base) {
+			return new Ack(base);
+		}
+		long[] ranges = new long[8];
+		int n = 0;
+		long s = base + 2;
+		while(s <= highest) {
+			if(!isSet(s)) {
+				s++;
+				continue;
+			}
+			long first = s;
+			while(s + 1 <= highest && isSet(s + 1)) {
+				s++;
+			}
+			if(n == ranges.length) {
+				ranges = Arrays.copyOf(ranges, n * 2);
+			}
+			ranges[n++] = first;
+			ranges[n++] = s;
+			s++;
+		}
+		return new Ack(base, Arrays.copyOf(ranges, n));
+	}
+
+	/**
+	 * Get an Ack only if something new has been seen since the last Ack was
+	 * made. This lets acknowledgements ride along with other traffic instead
+	 * of being sent for every message.
+	 *
+	 * @return An Ack, or null if nothing new has been seen.
+	 */
+	public synchronized Ack pollAck() {
+		if(!changed) {
+			return null;
+		}
+		return toAck();
+	}
+}
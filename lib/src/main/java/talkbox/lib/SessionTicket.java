@@ -0,0 +1,57 @@
+package talkbox.lib;
+
+import java.io.Serializable;
+
+/**
+ * Sent by the server right after a Client connects. It holds the token the
+ * Client should present to resume this session after losing its connection.
+ */
+public class SessionTicket implements Serializable {
+	private static final long serialVersionUID = 2184650993475115208L;
+	/**
+	 * The secret token that identifies this session.
+	 */
+	public final String token;
+	/**
+	 * The messages the server has received from this session. The Client
+	 * should resend anything it has not acknowledged.
+	 */
+	public final Ack received;
+	/**
+	 * True if an earlier session was resumed, false if this is a new one.
+	 */
+	public final boolean resumed;
+	/**
+	 * The capabilities of the Client that the server supports.
+	 */
+	public final int capabilities;
+	/**
+	 * The node the Client should make ids with, from
+	 * {@link IDGenerator#shared}.
+	 */
+	public final int node;
+	/**
+	 * The id of the compressor both ends use for frames, or 0 if they are not
+	 * compressed.
+	 */
+	public final int compressor;
+
+	/**
+	 * Create a new SessionTicket.
+	 *
+	 * @param token The secret token that identifies the session.
+	 * @param received The messages received from the session.
+	 * @param resumed Was an earlier session resumed.
+	 * @param capabilities The capabilities the server supports.
+	 * @param node The node the Client should make ids with.
+	 * @param compressor The id of the compressor for frames, or 0 for none.
+	 */
+	public SessionTicket(String token, Ack received, boolean resumed, int capabilities, int node, int compressor) {
+		this.token = token;
+		this.received = received;
+		this.resumed = resumed;
+		this.capabilities = capabilities;
+		this.node = node;
+		this.compressor = compressor;
+	}
+}
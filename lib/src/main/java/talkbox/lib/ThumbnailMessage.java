@@ -0,0 +1,158 @@
+package talkbox.lib;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * This class represents a shared image. Only a small thumbnail is sent with
+ * the message; the full image is shared like any other file, and is requested
+ * from the sender when someone opens it. The shared name of the image is its
+ * content hash, so a copy that was already downloaded can be found again.
+ */
+public class ThumbnailMessage extends FileMessage {
+	private static final long serialVersionUID = 5218433690527310462L;
+	/**
+	 * The encoded thumbnail.
+	 */
+	public final byte[] thumbnail;
+	/**
+	 * The size of the full image, in pixels.
+	 */
+	public final int width, height;
+	/**
+	 * The SHA-256 of the full image file.
+	 */
+	public final String hash;
+	/**
+	 * The size of the full image file, in bytes.
+	 */
+	public final long size;
+	/**
+	 * The shared name of the original file the image was made from, or null if
+	 * the image is the original.
+	 */
+	public final String originalName;
+	/**
+	 * The size of the original file, in bytes.
+	 */
+	public final long originalSize;
+	/**
+	 * True if the server made this thumbnail and holds the full image, so the
+	 * full image is requested from the server instead of the sender.
+	 */
+	public final boolean served;
+	private final transient File original;
+
+	/**
+	 * Create a new ThumbnailMessage for an image file.
+	 *
+	 * @param sender The sender of the message.
+	 * @param text The text of the message.
+	 * @param file The File containing the image.
+	 * @param recipients Who to send the message to.
+	 * @throws IOException If the file could not be read as an image.
+	 */
+	public ThumbnailMessage(Client sender, String text, File file, Client... recipients) throws IOException {
+		this(sender, text, file, ImageIO.read(file), null, recipients);
+	}
+
+	/**
+	 * Create a new ThumbnailMessage for an image that was made from another
+	 * file, such as a smaller copy of a photo. The original file is shared
+	 * too, so that it can still be requested.
+	 *
+	 * @param sender The sender of the message.
+	 * @param text The text of the message.
+	 * @param file The File containing the image.
+	 * @param image The decoded image, so that it does not have to be read
+	 * again.
+	 * @param original The File the image was made from, or null if there is
+	 * none.
+	 * @param recipients Who to send the message to.
+	 * @throws IOException If the file could not be read.
+	 */
+	public ThumbnailMessage(Client sender, String text, File file, BufferedImage image, File original, Client... recipients) throws IOException {
+		this(sender, text, file, image, Thumbnails.hash(file), original, recipients);
+	}
+
+	private ThumbnailMessage(Client sender, String text, File file, BufferedImage image, String hash, File original, Client... recipients) throws IOException {
+		super(sender, text, file, hash + extension(file), recipients);
+		if(image == null) {
+			throw new IOException("Not a readable image: " + file);
+		}
+		this.thumbnail = Thumbnails.thumbnail(image);
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.hash = hash;
+		this.size = file.length();
+		this.original = original;
+		this.served = false;
+		if(original != null) {
+			this.originalName = hash + "-" + original.getName();
+			this.originalSize = original.length();
+		} else {
+			this.originalName = null;
+			this.originalSize = size;
+		}
+	}
+
+	/**
+	 * @return A FileMessage for the shared original file, which can be used to
+	 * request it, or null if the image is the original.
+	 */
+	public FileMessage getOriginal() {
+		if(originalName == null) {
+			return null;
+		}
+		return new FileMessage(sender, "", original, originalName);
+	}
+
+	/**
+	 * Create a thumbnail of an ImageMessage, for recipients that would rather
+	 * only get the full image when they open it. The thumbnail keeps the id
+	 * and stamp of the ImageMessage, so a recipient that somehow gets both
+	 * only shows one.
+	 *
+	 * @param im The ImageMessage.
+	 * @param bytes The encoded image from the ImageMessage.
+	 * @param image The decoded image.
+	 * @throws IOException If the thumbnail could not be made.
+	 */
+	public ThumbnailMessage(ImageMessage im, byte[] bytes, BufferedImage image) throws IOException {
+		this(im, bytes, image, Thumbnails.hash(bytes));
+	}
+
+	private ThumbnailMessage(ImageMessage im, byte[] bytes, BufferedImage image, String hash) throws IOException {
+		super(im, null, hash);
+		this.thumbnail = Thumbnails.thumbnail(image);
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.hash = hash;
+		this.size = bytes.length;
+		this.served = true;
+		this.original = null;
+		this.originalName = null;
+		this.originalSize = size;
+	}
+
+	private static String extension(File file) {
+		String n = file.getName();
+		int dot = n.lastIndexOf('.');
+		if(dot < 0 || n.length() - dot > 6) {
+			return "";
+		}
+		return n.substring(dot).toLowerCase();
+	}
+
+	@Override
+	public int estimateSize() {
+		return super.estimateSize() + thumbnail.length;
+	}
+
+	@Override
+	public Channel getChannel() {
+		return Channel.MEDIA;
+	}
+}
@@ -0,0 +1,152 @@
+package talkbox.lib;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.imageio.ImageIO;
+
+/**
+ * Helpers for making small previews of images and naming images by their
+ * content.
+ */
+public class Thumbnails {
+	/**
+	 * The longest side of a thumbnail, in pixels.
+	 */
+	public static final int maxSide = 320;
+	private static final char[] hex = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Scale an image down so that neither side is longer than max. Images that
+	 * are already small enough are returned as they are.
+	 *
+	 * @param image The image to scale.
+	 * @param max The longest either side may be.
+	 * @return The scaled image.
+	 */
+	public static BufferedImage scale(BufferedImage image, int max) {
+		int w = image.getWidth(), h = image.getHeight();
+		if(w <= max && h <= max) {
+			return image;
+		}
+		double scale = Math.min((double)max / w, (double)max / h);
+		int sw = Math.max(1, (int)Math.round(w * scale));
+		int sh = Math.max(1, (int)Math.round(h * scale));
+		boolean alpha = image.getColorModel().hasAlpha();
+		BufferedImage scaled = new BufferedImage(sw, sh, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(image, 0, 0, sw, sh, null);
+		} finally {
+			g.dispose();
+		}
+		return scaled;
+	}
+
+	/**
+	 * Encode an image, as a PNG if it has transparency and as a JPEG otherwise.
+	 *
+	 * @param image The image to encode.
+	 * @return The encoded bytes.
+	 * @throws IOException
+	 */
+	public static byte[] encode(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if(image.getColorModel().hasAlpha()) {
+			ImageIO.write(image, "png", out);
+		} else {
+			if(image.getType() != BufferedImage.TYPE_INT_RGB) {
+				BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = rgb.createGraphics();
+				g.drawImage(image, 0, 0, null);
+				g.dispose();
+				image = rgb;
+			}
+			ImageIO.write(image, "jpg", out);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Make a thumbnail of an image.
+	 *
+	 * @param image The full size image.
+	 * @return The encoded thumbnail.
+	 * @throws IOException
+	 */
+	public static byte[] thumbnail(BufferedImage image) throws IOException {
+		return encode(scale(image, maxSide));
+	}
+
+	/**
+	 * Hash the contents of a file.
+	 *
+	 * @param file The file to hash.
+	 * @return The SHA-256 of the file, as lower case hex.
+	 * @throws IOException
+	 */
+	public static String hash(File file) throws IOException {
+		MessageDigest md = digest();
+		try(BufferedInputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			byte[] buffer = new byte[1024 * 16];
+			int r;
+			while((r = in.read(buffer)) != -1) {
+				md.update(buffer, 0, r);
+			}
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Hash some bytes.
+	 *
+	 * @param bytes The bytes to hash.
+	 * @return The SHA-256 of the bytes, as lower case hex.
+	 */
+	public static String hash(byte[] bytes) {
+		return toHex(digest().digest(bytes));
+	}
+
+	/**
+	 * @param hash A string that should be a hash made by this class.
+	 * @return True if it is one, false otherwise.
+	 */
+	public static boolean isHash(String hash) {
+		if(hash == null || hash.length() != 64) {
+			return false;
+		}
+		for(int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] c = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			c[i * 2] = hex[(bytes[i] >> 4) & 0xf];
+			c[i * 2 + 1] = hex[bytes[i] & 0xf];
+		}
+		return new String(c);
+	}
+}
@@ -0,0 +1,207 @@
+package talkbox.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Finds speech in a recording as it is read, and drops the silence around it.
+ * Audio is looked at in 10 ms pieces: a piece is speech if it is loud enough
+ * above the noise floor, or a little quieter but with many zero crossings, as
+ * in sounds like "s" and "f". Silence before the first speech and after the
+ * last is dropped, and long pauses are shortened, keeping a little before and
+ * after speech so words are not cut off. One VoiceActivity is used for one
+ * recording.
+ */
+public class VoiceActivity {
+	/**
+	 * How long each piece of audio looked at is.
+	 */
+	public static final int pieceMillis = 10;
+	/**
+	 * How much audio is kept after speech stops.
+	 */
+	public static final int hangoverMillis = 200;
+	/**
+	 * How much audio is kept before speech starts.
+	 */
+	public static final int prerollMillis = 100;
+	/**
+	 * The quietest RMS level that can count as speech.
+	 */
+	public static final double minLevel = 200;
+	/**
+	 * How far above the noise floor speech has to be.
+	 */
+	public static final double speechRatio = 3;
+	/**
+	 * The fraction of sample pairs that must cross zero for a quieter piece
+	 * to count as speech.
+	 */
+	public static final double fricativeCrossings = 0.25;
+	private static final AtomicLong totalIn = new AtomicLong();
+	private static final AtomicLong totalKept = new AtomicLong();
+	private final boolean enabled;
+	private final int pieceBytes;
+	private final int hangoverBytes;
+	private final byte[] preroll;
+	private int prerollStart = 0;
+	private int prerollLength = 0;
+	private int hangover = 0;
+	private double noise = minLevel;
+	private long in = 0;
+	private long kept = 0;
+
+	/**
+	 * Create a new VoiceActivity.
+	 *
+	 * @param format The format of the recording. Anything other than signed 16
+	 * bit big endian PCM is kept as it is.
+	 */
+	public VoiceActivity(AudioFormat format) {
+		enabled = AudioCodecs.isPCM(format);
+		int frameSize = Math.max(1, format.getFrameSize());
+		int framesPerMilli = Math.max(1, (int)format.getFrameRate() / 1000);
+		pieceBytes = framesPerMilli * pieceMillis * frameSize;
+		hangoverBytes = framesPerMilli * hangoverMillis * frameSize;
+		preroll = new byte[enabled ? framesPerMilli * prerollMillis * frameSize : 0];
+	}
+
+	/**
+	 * @param length How many bytes are given to {@link #process} at once.
+	 * @return The most bytes {@link #process} can write for them.
+	 */
+	public int maxOutput(int length) {
+		return length + preroll.length;
+	}
+
+	/**
+	 * Look at the next part of the recording and keep what should be kept.
+	 *
+	 * @param pcm The audio.
+	 * @param off Where the audio starts.
+	 * @param len How many bytes of audio there are, a whole number of frames.
+	 * @param out Where to write what is kept. Must have room for
+	 * {@link #maxOutput} bytes.
+	 * @return How many bytes were written.
+	 */
+	public int process(byte[] pcm, int off, int len, byte[] out) {
+		int o = 0;
+		if(!enabled) {
+			System.arraycopy(pcm, off, out, 0, len);
+			o = len;
+		} else {
+			for(int p = off; p < off + len; p += pieceBytes) {
+				int n = Math.min(pieceBytes, off + len - p);
+				if(isSpeech(pcm, p, n)) {
+					o = drainPreroll(out, o);
+					hangover = hangoverBytes;
+				} else if(hangover <= 0) {
+					addPreroll(pcm, p, n);
+					continue;
+				}
+				hangover -= n;
+				System.arraycopy(pcm, p, out, o, n);
+				o += n;
+			}
+		}
+		in += len;
+		kept += o;
+		totalIn.addAndGet(len);
+		totalKept.addAndGet(o);
+		return o;
+	}
+
+	private boolean isSpeech(byte[] pcm, int off, int len) {
+		int samples = len / 2;
+		if(samples == 0) {
+			return false;
+		}
+		double sum = 0;
+		int crossings = 0;
+		int previous = (short)((pcm[off] << 8) | (pcm[off + 1] & 0xff));
+		for(int i = off; i < off + len - 1; i += 2) {
+			int s = (short)((pcm[i] << 8) | (pcm[i + 1] & 0xff));
+			sum += (double)s * s;
+			if((s ^ previous) < 0) {
+				crossings++;
+			}
+			previous = s;
+		}
+		double level = Math.sqrt(sum / samples);
+		double threshold = Math.max(minLevel, noise * speechRatio);
+		boolean speech = level >= threshold
+				|| (level >= threshold / 2 && (double)crossings / samples >= fricativeCrossings);
+		//The floor falls quickly to quiet pieces and rises slowly, so speech
+		//barely moves it.
+		if(level < noise) {
+			noise = Math.max(minLevel / speechRatio, noise * 0.8 + level * 0.2);
+		} else {
+			noise += (level - noise) * 0.002;
+		}
+		return speech;
+	}
+
+	private void addPreroll(byte[] pcm, int off, int len) {
+		if(preroll.length == 0) {
+			return;
+		}
+		if(len > preroll.length) {
+			off += len - preroll.length;
+			len = preroll.length;
+		}
+		int end = (prerollStart + prerollLength) % preroll.length;
+		int first = Math.min(len, preroll.length - end);
+		System.arraycopy(pcm, off, preroll, end, first);
+		System.arraycopy(pcm, off + first, preroll, 0, len - first);
+		prerollLength += len;
+		if(prerollLength > preroll.length) {
+			prerollStart = (prerollStart + prerollLength - preroll.length) % preroll.length;
+			prerollLength = preroll.length;
+		}
+	}
+
+	private int drainPreroll(byte[] out, int o) {
+		int first = Math.min(prerollLength, preroll.length - prerollStart);
+		System.arraycopy(preroll, prerollStart, out, o, first);
+		System.arraycopy(preroll, 0, out, o + first, prerollLength - first);
+		o += prerollLength;
+		prerollStart = 0;
+		prerollLength = 0;
+		return o;
+	}
+
+	/**
+	 * @return How many bytes of this recording have been looked at.
+	 */
+	public long getBytesIn() {
+		return in;
+	}
+
+	/**
+	 * @return How many bytes of this recording have been kept.
+	 */
+	public long getBytesKept() {
+		return kept;
+	}
+
+	/**
+	 * @return How many bytes of every recording have been dropped.
+	 */
+	public static long getTotalBytesSaved() {
+		return totalIn.get() - totalKept.get();
+	}
+
+	/**
+	 * @return The bytes looked at and kept over every recording.
+	 */
+	public static String totals() {
+		long i = totalIn.get();
+		long k = totalKept.get();
+		return "VoiceActivity[in=" + i + ", kept=" + k + ", saved=" + (i - k) + "]";
+	}
+
+	@Override
+	public String toString() {
+		return "VoiceActivity[in=" + in + ", kept=" + kept + ", saved=" + (in - kept) + "]";
+	}
+}
@@ -1,27 +1,173 @@
 package talkbox.server;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFormat;
 import talkbox.lib.*;
 
 /**
  * This class keeps track of all connected clients and forwards sent messages.
+ * Every Client has a Session that outlives its connection for a while, so a
+ * Client that loses its connection can come back and pick up where it left
+ * off.
  */
 public class Server implements Runnable {
+	/**
+	 * The most messages written to a Client in one batch.
+	 */
+	public static final int batchMessages = 256;
+	/**
+	 * The most bytes written to a Client in one batch, as estimated by the
+	 * messages.
+	 */
+	public static final int batchBytes = 1024 * 64;
+	/**
+	 * How long to wait for more messages before writing a batch to a Client.
+	 */
+	public static final long batchLingerMillis = 1;
+	/**
+	 * How long a Session is kept after its connection is lost.
+	 */
+	public static final long sessionTimeoutMillis = 60000;
+	/**
+	 * How many unacknowledged messages each Session keeps so they can be
+	 * replayed.
+	 */
+	public static final int replayLimit = 1024;
+	/**
+	 * How many of the last messages each Client sent to everyone are kept for
+	 * Clients whose session this Server does not know, as after a restart, so
+	 * they get what was sent before they came back.
+	 */
+	public static final int recentLimit = 1024;
+	/**
+	 * How long an acknowledgement may wait for other traffic to ride along
+	 * with before it is sent on its own.
+	 */
+	public static final long ackDelayMillis = 100;
+	/**
+	 * How many threads make thumbnails of images and send kept media.
+	 */
+	public static final int thumbnailThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * How many full images to remember for Clients that only got a thumbnail
+	 * and open the image later. The images themselves are in the media store.
+	 */
+	public static final int originalsKept = 4096;
+	/**
+	 * Where media is kept, in a directory for each port.
+	 */
+	public static final File mediaDirectory = new File(System.getProperty("java.io.tmpdir"), "talkbox-media");
+	/**
+	 * How many bytes of media to keep on disk.
+	 */
+	public static final long mediaBytes = 1024L * 1024 * 512;
+	/**
+	 * How large the audio of an AudioMessage has to be for Clients that
+	 * prefer references to get one instead.
+	 */
+	public static final int referenceBytes = 1024 * 16;
+	/**
+	 * The capabilities of Clients the server supports.
+	 */
+	public static final int capabilities = Capabilities.thumbnails | Capabilities.mediaReferences;
+	/**
+	 * The Compressors the server can use for frames. A Client gets the first
+	 * one it offers that is here.
+	 */
+	public static final Compressor[] compressors = {Compressors.deflate};
+	/**
+	 * The size of the smallest frame that is compressed.
+	 */
+	public static final int compressionThreshold = FrameOutputStream.defaultThreshold;
+	/**
+	 * How often each voice room is mixed, in milliseconds.
+	 */
+	public static final int mixMillis = 20;
+	/**
+	 * How many threads mix voice rooms.
+	 */
+	public static final int mixThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * How much audio a speaker must have waiting before it is mixed in, so a
+	 * little jitter does not break up its voice.
+	 */
+	public static final int mixStartMillis = 60;
+	/**
+	 * The most audio kept waiting for each speaker. Older audio is dropped,
+	 * so a speaker can not fall behind the room.
+	 */
+	public static final int mixBufferMillis = 200;
+	/**
+	 * The format voice rooms are mixed in. Frames in any other format are
+	 * dropped.
+	 */
+	public static final AudioFormat mixFormat = new AudioFormat(8000, 16, 1, true, true);
+	/**
+	 * The codec mixed audio is sent with.
+	 */
+	public static final AudioCodec mixCodec = AudioCodecs.adpcm;
 	public final int port;
 	private final ServerSocket server;
 	private final Thread thread;
 	private final AtomicBoolean started;
 	private final ExecutorService threadPool;
-	private final HashMap<String, Client> clientMap;
+	private final ExecutorService thumbnailer;
+	private final LinkedHashMap<String, ThumbnailMessage> originals;
+	private final MediaStore media;
+	private final ScheduledExecutorService mixer;
+	private final HashMap<String, Room> rooms;
+	private final LongMap<Client> clientMap;
+	private final LongMap<Session> sessions;
+	private final HashMap<String, Session> tokens;
+	/**
+	 * The last stamped messages sent to everyone, by origin. They are kept
+	 * apart so that a Client resending many old messages after a restart
+	 * does not push out what the others sent. Guarded by itself.
+	 */
+	private final LongMap<ArrayDeque<Message>> recent = new LongMap<>();
+	/**
+	 * Every open connection, so they can all be closed when this Server
+	 * stops.
+	 */
+	private final Set<ServerClient> connections = ConcurrentHashMap.newKeySet();
+	/**
+	 * Which IDGenerator nodes are held by a Session, and the next one to try.
+	 * A node is only handed out again once every other has been, so a
+	 * program that has just lost its Session is unlikely to share its node.
+	 * Guarded by clientMap.
+	 */
+	private final boolean[] nodes = new boolean[IDGenerator.maxAssignedNode + 1];
+	private int nextNode = 1;
+	private final SecureRandom random;
 	private boolean running = true, stopped = false;
 
 	/**
@@ -36,8 +182,18 @@ public class Server implements Runnable {
 		server.setSoTimeout(250);
 		this.port = server.getLocalPort();
 		threadPool = Executors.newCachedThreadPool();
-		clientMap = new HashMap<>();
+		thumbnailer = Executors.newFixedThreadPool(thumbnailThreads);
+		originals = new LinkedHashMap<>(16, 0.75f, true);
+		media = new MediaStore(new File(mediaDirectory, Integer.toString(this.port)), mediaBytes);
+		mixer = Executors.newScheduledThreadPool(mixThreads);
+		rooms = new HashMap<>();
+		clientMap = new LongMap<>();
+		sessions = new LongMap<>();
+		tokens = new HashMap<>();
+		random = new SecureRandom();
 		started = new AtomicBoolean();
+		//The server makes ids as node 0, which is never handed out.
+		IDGenerator.shared().setNode(0);
 		thread = new Thread(this);
 	}
 
@@ -53,8 +209,18 @@ public class Server implements Runnable {
 		server.setSoTimeout(250);
 		this.port = server.getLocalPort();
 		threadPool = Executors.newCachedThreadPool();
-		clientMap = new HashMap<>();
+		thumbnailer = Executors.newFixedThreadPool(thumbnailThreads);
+		originals = new LinkedHashMap<>(16, 0.75f, true);
+		media = new MediaStore(new File(mediaDirectory, Integer.toString(this.port)), mediaBytes);
+		mixer = Executors.newScheduledThreadPool(mixThreads);
+		rooms = new HashMap<>();
+		clientMap = new LongMap<>();
+		sessions = new LongMap<>();
+		tokens = new HashMap<>();
+		random = new SecureRandom();
 		started = new AtomicBoolean();
+		//The server makes ids as node 0, which is never handed out.
+		IDGenerator.shared().setNode(0);
 		if(thread) {
 			this.thread = new Thread(this);
 		} else {
@@ -76,38 +242,82 @@ public class Server implements Runnable {
 	}
 
 	/**
-	 * Stop this server.
+	 * Stop this server. Once it has stopped listening, every connection is
+	 * closed and every Session is forgotten.
 	 */
 	public void stop() {
 		running = false;
 	}
 
-	private void addClient(Client client) {
+	private String createToken() {
+		byte[] bytes = new byte[18];
+		random.nextBytes(bytes);
+		return Base64.getUrlEncoder().encodeToString(bytes);
+	}
+
+	private void addSession(Session session) {
 		synchronized(clientMap) {
-			for(Client c : clientMap.values()) {
-				try {
-					c.writeObject("clientConnect");
-					c.writeObject(client);
-				} catch(IOException ex) {
-					Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-				}
+			session.node = takeNode();
+			for(Session s : sessions.values()) {
+				s.queue(Channel.CONTROL, "clientConnect", session.client);
 			}
-			clientMap.put(client.id, client);
+			clientMap.put(session.client.id, session.client);
+			sessions.put(session.client.id, session);
+			tokens.put(session.token, session);
 		}
 	}
 
-	private void removeClient(Client client) {
+	private void removeSession(Session session) {
+		leaveRoom(session);
 		synchronized(clientMap) {
-			clientMap.remove(client.id);
-			for(Client c : clientMap.values()) {
-				try {
-					c.writeObject("clientDisconnect");
-					c.writeObject(client);
-				} catch(IOException ex) {
-					Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+			clientMap.remove(session.client.id);
+			sessions.remove(session.client.id);
+			tokens.remove(session.token);
+			nodes[session.node] = false;
+			session.outbox.close();
+			synchronized(recent) {
+				recent.remove(session.origin);
+			}
+			for(Session s : sessions.values()) {
+				s.queue(Channel.CONTROL, "clientDisconnect", session.client);
+			}
+		}
+	}
+
+	/**
+	 * Hand out the next free node. If every node is held, which takes more
+	 * Sessions than there are nodes, one is shared. Call with clientMap held.
+	 *
+	 * @return The node.
+	 */
+	private int takeNode() {
+		int node = nextNode;
+		for(int i = 0; i < IDGenerator.maxAssignedNode && nodes[node]; i++) {
+			node = node % IDGenerator.maxAssignedNode + 1;
+		}
+		nodes[node] = true;
+		nextNode = node % IDGenerator.maxAssignedNode + 1;
+		return node;
+	}
+
+	/**
+	 * Forget every Session whose connection has been lost for longer than
+	 * {@link #sessionTimeoutMillis}.
+	 */
+	private void expireSessions() {
+		long now = System.currentTimeMillis();
+		ArrayList<Session> expired = new ArrayList<>();
+		synchronized(clientMap) {
+			for(Session s : sessions.values()) {
+				if(s.connection == null && now - s.detachedAt > sessionTimeoutMillis) {
+					expired.add(s);
 				}
 			}
 		}
+		for(Session s : expired) {
+			removeSession(s);
+			System.out.println(s.client.getIDString() + ": session expired");
+		}
 	}
 
 	/**
@@ -120,52 +330,340 @@ public class Server implements Runnable {
 	}
 
 	/**
-	 * Send messages to their intended recipients.
+	 * Queue messages for their intended recipients. Each message is queued on
+	 * the channel it asks for, so the recipients receive chat ahead of any
+	 * media or file slices already waiting for them.
 	 *
 	 * @param messages An array of messages to send.
 	 */
 	public void sendMessages(Message[] messages) {
+		sendMessages(messages, null);
+	}
+
+	private void sendMessages(Message[] messages, Session from) {
 		for(Message m : messages) {
-			Client[] recipients = m.getRecipients();
-			if(recipients == null || recipients.length == 0) {
-				sendToAll(m);
+			if(m instanceof FileMessage.FileRequest && serveOriginal((FileMessage.FileRequest)m, from)) {
 				continue;
 			}
-			for(Client r : recipients) {
-				Client s;
-				synchronized(clientMap) {
-					s = clientMap.get(r.id);
+			if(m instanceof MediaRequest) {
+				if(from != null) {
+					serveMedia((MediaRequest)m, from);
 				}
-				if(s == null) {
-					continue;
+				continue;
+			}
+			if(m instanceof RoomMessage) {
+				RoomMessage rm = (RoomMessage)m;
+				if(from != null && rm.join) {
+					joinRoom(from, rm.room);
+				} else if(from != null) {
+					leaveRoom(from);
 				}
-				try {
-					s.writeObject("message");
-					s.writeObject(m);
-				} catch(IOException ex) {
-					Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+				continue;
+			}
+			long[] recipients = m.getRecipients();
+			if(m.getSequence() != 0 && (recipients == null || recipients.length == 0)) {
+				synchronized(recent) {
+					ArrayDeque<Message> kept = recent.get(m.getOrigin());
+					if(kept == null) {
+						kept = new ArrayDeque<>();
+						recent.put(m.getOrigin(), kept);
+					}
+					kept.add(m);
+					if(kept.size() > recentLimit) {
+						kept.poll();
+					}
 				}
 			}
+			route(m, recipientsOf(m, from));
 		}
 	}
 
 	/**
-	 * Send a message to all connected Clients.
+	 * Queue a message for Sessions, in the form each of them prefers.
 	 *
-	 * @param message The message to send.
+	 * @param m The message.
+	 * @param to The Sessions to send it to.
 	 */
-	public void sendToAll(Message message) {
-		Client[] clients = getClients();
-		for(Client c : clients) {
-			if(c.id.equals(message.sender.id)) {
-				continue;
+	private void route(Message m, Session[] to) {
+		if(m instanceof ImageMessage) {
+			sendImage((ImageMessage)m, to);
+		} else if(m instanceof AudioMessage) {
+			sendAudio((AudioMessage)m, to);
+		} else {
+			for(Session s : to) {
+				s.queue(m.getChannel(), "message", m);
+			}
+		}
+	}
+
+	/**
+	 * Send the last messages sent to everyone to a Client that came back to
+	 * a session this Server does not know. It drops those it already has.
+	 *
+	 * @param session The new Session of the Client.
+	 */
+	private void replayRecent(Session session) {
+		ArrayList<Message> messages = new ArrayList<>();
+		synchronized(recent) {
+			for(ArrayDeque<Message> kept : recent.values()) {
+				messages.addAll(kept);
+			}
+		}
+		Session[] to = {session};
+		for(Message m : messages) {
+			if(m.getOrigin() != session.origin) {
+				route(m, to);
+			}
+		}
+	}
+
+	/**
+	 * @param m A message.
+	 * @param from The Session the message came from, or null.
+	 * @return The Sessions of the message's recipients, or of everyone but its
+	 * sender if it has none.
+	 */
+	private Session[] recipientsOf(Message m, Session from) {
+		long[] recipients = m.getRecipients();
+		ArrayList<Session> to = new ArrayList<>();
+		synchronized(clientMap) {
+			if(recipients == null || recipients.length == 0) {
+				for(Session s : sessions.values()) {
+					if(s != from && s.client.id != m.sender.id) {
+						to.add(s);
+					}
+				}
+			} else {
+				for(long r : recipients) {
+					Session s = sessions.get(r);
+					if(s != null) {
+						to.add(s);
+					}
+				}
 			}
+		}
+		return to.toArray(new Session[0]);
+	}
+
+	/**
+	 * Queue an ImageMessage. Recipients that prefer thumbnails get a thumbnail
+	 * instead, which is made once for all of them on the thumbnail threads.
+	 * The full image is kept so they can still request it.
+	 *
+	 * @param im The ImageMessage to send.
+	 * @param to The Sessions to send it to.
+	 */
+	private void sendImage(ImageMessage im, Session[] to) {
+		ArrayList<Session> thumbs = new ArrayList<>();
+		for(Session s : to) {
+			if(Capabilities.has(s.capabilities, Capabilities.thumbnails)) {
+				thumbs.add(s);
+			} else {
+				s.queue(im.getChannel(), "message", im);
+			}
+		}
+		if(thumbs.isEmpty()) {
+			return;
+		}
+		thumbnailer.submit(() -> {
+			Message m = thumbnail(im);
+			for(Session s : thumbs) {
+				s.queue(m.getChannel(), "message", m);
+			}
+		});
+	}
+
+	/**
+	 * Queue an AudioMessage. If it is large, its audio is kept in the media
+	 * store and recipients that prefer references get one instead, and fetch
+	 * the audio if it is played.
+	 *
+	 * @param am The AudioMessage to send.
+	 * @param to The Sessions to send it to.
+	 */
+	private void sendAudio(AudioMessage am, Session[] to) {
+		ArrayList<Session> refs = new ArrayList<>();
+		for(Session s : to) {
+			if(am.hasAudio() && am.getSize() >= referenceBytes
+					&& Capabilities.has(s.capabilities, Capabilities.mediaReferences)) {
+				refs.add(s);
+			} else {
+				s.queue(am.getChannel(), "message", am);
+			}
+		}
+		if(refs.isEmpty()) {
+			return;
+		}
+		Message m = am;
+		try {
+			String hash = media.put(am.getData());
+			if(hash != null) {
+				m = am.toReference(hash);
+			}
+		} catch(IOException ex) {
+			Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+		}
+		for(Session s : refs) {
+			s.queue(m.getChannel(), "message", m);
+		}
+	}
+
+	/**
+	 * Send part of a piece of kept media, read from disk a slice at a time on
+	 * the thumbnail threads.
+	 *
+	 * @param mr The request.
+	 * @param from The Session of the Client requesting it.
+	 */
+	private void serveMedia(MediaRequest mr, Session from) {
+		thumbnailer.submit(() -> {
 			try {
-				c.writeObject("message");
-				c.writeObject(message);
+				long size = media.size(mr.hash);
+				long end = mr.end == 0 || mr.end > size ? size : mr.end;
+				long start = Math.min(mr.start, Math.max(0, end));
+				do {
+					byte[] b = media.read(mr.hash, start, (int)Math.min(FilePacket.sliceSize, end - start));
+					if(b == null) {
+						from.queue(Channel.BULK, "message", new MediaPacket(mr.sender, mr.hash, new byte[0], start, -1));
+						return;
+					}
+					from.queue(Channel.BULK, "message", new MediaPacket(mr.sender, mr.hash, b, start, size));
+					start += b.length;
+				} while(start < end);
 			} catch(IOException ex) {
 				Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
 			}
+		});
+	}
+
+	/**
+	 * Make a thumbnail of an ImageMessage and keep the full image.
+	 *
+	 * @param im The ImageMessage.
+	 * @return The thumbnail, or the ImageMessage itself if its image could not
+	 * be read.
+	 */
+	private Message thumbnail(ImageMessage im) {
+		try {
+			byte[] bytes = Base64.getDecoder().decode(im.base64image);
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+			if(image == null) {
+				return im;
+			}
+			ThumbnailMessage tm = new ThumbnailMessage(im, bytes, image);
+			if(media.put(bytes) == null) {
+				return im;
+			}
+			synchronized(originals) {
+				originals.put(tm.name, tm);
+				Iterator<ThumbnailMessage> it = originals.values().iterator();
+				while(originals.size() > originalsKept && it.hasNext()) {
+					it.next();
+					it.remove();
+				}
+			}
+			return tm;
+		} catch(IOException | IllegalArgumentException ex) {
+			Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+			return im;
+		}
+	}
+
+	/**
+	 * Send a full image the Server kept when it made a thumbnail, if that is
+	 * what is being requested.
+	 *
+	 * @param fr The request.
+	 * @param from The Session of the Client requesting it.
+	 * @return True if the Server is sending it, false if the request should be
+	 * forwarded.
+	 */
+	private boolean serveOriginal(FileMessage.FileRequest fr, Session from) {
+		ThumbnailMessage tm;
+		synchronized(originals) {
+			tm = originals.get(fr.name);
+		}
+		if(tm == null || from == null || media.size(tm.hash) < 0) {
+			return false;
+		}
+		thumbnailer.submit(() -> {
+			try {
+				long size = media.size(tm.hash);
+				int start = 0;
+				int sequence = 0;
+				do {
+					byte[] b = media.read(tm.hash, start, FilePacket.sliceSize);
+					if(b == null) {
+						return;
+					}
+					FilePacket p = new FilePacket(tm, b, start, sequence++, size);
+					from.queue(p.getChannel(), "message", p);
+					start += b.length;
+				} while(start < size);
+			} catch(IOException ex) {
+				Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Put a Session in a voice room, taking it out of any other room first.
+	 *
+	 * @param s The Session.
+	 * @param name The name of the room.
+	 */
+	private void joinRoom(Session s, String name) {
+		synchronized(rooms) {
+			if(s.room != null && s.room.name.equals(name)) {
+				return;
+			}
+			leaveRoom(s);
+			Room r = rooms.get(name);
+			if(r == null) {
+				r = new Room(name);
+				rooms.put(name, r);
+			}
+			r.add(s);
+			s.room = r;
+		}
+		System.out.println(s.client.getIDString() + ": joined voice room " + name);
+	}
+
+	/**
+	 * Take a Session out of its voice room, if it is in one. A room is closed
+	 * once it is empty.
+	 *
+	 * @param s The Session.
+	 */
+	private void leaveRoom(Session s) {
+		synchronized(rooms) {
+			Room r = s.room;
+			if(r == null) {
+				return;
+			}
+			s.room = null;
+			if(r.remove(s)) {
+				rooms.remove(r.name);
+			}
+		}
+	}
+
+	/**
+	 * Queue a message for all connected Clients.
+	 *
+	 * @param message The message to send.
+	 */
+	public void sendToAll(Message message) {
+		Session[] all;
+		synchronized(clientMap) {
+			all = sessions.values().toArray(new Session[0]);
+		}
+		for(Session s : all) {
+			if(s.client.id == message.sender.id) {
+				continue;
+			}
+			s.queue(message.getChannel(), "message", message);
 		}
 	}
 
@@ -191,70 +689,639 @@ public class Server implements Runnable {
 		while(running) {
 			try {
 				Socket s = server.accept();
-				Client c = new Client(s);
-				addClient(c);
-				threadPool.submit(new ServerClient(c));
+				s.setTcpNoDelay(true);
+				ServerClient c = new ServerClient(s);
+				connections.add(c);
+				threadPool.submit(c);
 			} catch(SocketTimeoutException ex) {
 			} catch(IOException ex) {
 				Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
 			}
+			expireSessions();
 		}
 		try {
 			server.close();
 		} catch(IOException ex) {
 			Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
 		}
+		//Drop every connection, as if the server had died, so the Clients
+		//go and find it again.
+		for(ServerClient c : connections) {
+			c.close();
+		}
+		mixer.shutdownNow();
+		thumbnailer.shutdown();
+		threadPool.shutdown();
 		stopped = true;
 		unjoin();
 	}
 
-	private class ServerClient implements Runnable {
+	/**
+	 * A voice room. Every tick, the audio waiting from each speaker is added
+	 * into one sum, and each listener is sent the sum less its own audio.
+	 * Listeners that did not speak in a tick all get the same audio, so it is
+	 * only encoded once for them. A listener that hears nobody is sent
+	 * nothing, and a new stream is started for it when someone speaks again.
+	 */
+	private class Room {
+		private final String name;
+		/**
+		 * The sender of the mixed audio.
+		 */
 		private final Client client;
-		private boolean connected = true;
+		private final HashMap<Session, Member> members = new HashMap<>();
+		private final ScheduledFuture<?> task;
+		private final int samples = (int)mixFormat.getSampleRate() * mixMillis / 1000;
+		private final int[] sum = new int[samples];
+		private final byte[] pcm = new byte[samples * 2];
+		private final AudioFrame ended;
+		private byte[] decoded = new byte[0];
+		private long ticks = 0;
+
+		private Room(String name) {
+			this.name = name;
+			client = new Client(Client.createID());
+			client.setName(name);
+			ended = new AudioFrame(client, name, 0, 0, 0, mixFormat, new byte[0], mixCodec, true);
+			task = mixer.scheduleAtFixedRate(this::mix, mixMillis, mixMillis, TimeUnit.MILLISECONDS);
+		}
 
-		private ServerClient(Client client) {
+		private synchronized void add(Session s) {
+			members.put(s, new Member(samples));
+		}
+
+		/**
+		 * @param s The Session to take out of the room.
+		 * @return True if the room is now empty and has been closed.
+		 */
+		private synchronized boolean remove(Session s) {
+			members.remove(s);
+			if(members.isEmpty()) {
+				task.cancel(false);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Queue audio from a speaker to be mixed.
+		 *
+		 * @param s The Session of the speaker.
+		 * @param f The audio.
+		 */
+		private synchronized void receive(Session s, AudioFrame f) {
+			Member m = members.get(s);
+			AudioCodec codec = AudioCodecs.forName(f.codec);
+			if(m == null || codec == null || f.sampleRate != mixFormat.getSampleRate() || f.channels != 1) {
+				return;
+			}
+			int size = codec.decodedSize(f.data, 0, f.data.length);
+			if(decoded.length < size) {
+				decoded = new byte[size];
+			}
+			int n = codec.decode(f.data, 0, f.data.length, decoded, 0);
+			m.put(decoded, n);
+		}
+
+		private synchronized void mix() {
+			ticks++;
+			Arrays.fill(sum, 0);
+			int speaking = 0;
+			for(Member m : members.values()) {
+				if(m.take()) {
+					for(int i = 0; i < samples; i++) {
+						sum[i] += m.frame[i];
+					}
+					speaking++;
+				}
+			}
+			AudioFrame shared = null;
+			for(Map.Entry<Session, Member> e : members.entrySet()) {
+				Session s = e.getKey();
+				Member m = e.getValue();
+				if(speaking - (m.active ? 1 : 0) == 0) {
+					if(m.streaming) {
+						m.streaming = false;
+						send(s, ended.inStream(m.stream, m.index++, (ticks - m.started) * mixMillis, true));
+					}
+					continue;
+				}
+				AudioFrame f = m.active ? null : shared;
+				if(f == null) {
+					for(int i = 0; i < samples; i++) {
+						int v = sum[i] - (m.active ? m.frame[i] : 0);
+						v = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+						pcm[i * 2] = (byte)(v >> 8);
+						pcm[i * 2 + 1] = (byte)v;
+					}
+					f = new AudioFrame(client, name, 0, 0, 0, mixFormat, pcm, mixCodec, false);
+					if(!m.active) {
+						shared = f;
+					}
+				}
+				if(!m.streaming) {
+					m.streaming = true;
+					m.stream = ThreadLocalRandom.current().nextLong();
+					m.index = 0;
+					m.started = ticks;
+				}
+				send(s, f.inStream(m.stream, m.index++, (ticks - m.started) * mixMillis, false));
+			}
+		}
+
+		/**
+		 * Queue mixed audio for a listener. Nothing is queued while its
+		 * connection is lost, as the audio would be stale by the time it was
+		 * resumed.
+		 */
+		private void send(Session s, AudioFrame f) {
+			if(s.connection != null) {
+				s.queue(f.getChannel(), "voice", f);
+			}
+		}
+	}
+
+	/**
+	 * One Session in a voice room: the audio waiting from it, and the stream
+	 * of mixed audio being sent to it.
+	 */
+	private static class Member {
+		private final short[] buffer;
+		private final short[] frame;
+		private final int startSamples;
+		private int start = 0;
+		private int length = 0;
+		/**
+		 * True once enough audio has arrived to start mixing it in.
+		 */
+		private boolean speaking = false;
+		/**
+		 * True if the member's audio was mixed in this tick.
+		 */
+		private boolean active = false;
+		private boolean streaming = false;
+		private long stream;
+		private int index;
+		private long started;
+
+		private Member(int samples) {
+			frame = new short[samples];
+			buffer = new short[samples * mixBufferMillis / mixMillis];
+			startSamples = samples * mixStartMillis / mixMillis;
+		}
+
+		/**
+		 * Add decoded audio, dropping the oldest audio if too much is waiting.
+		 */
+		private void put(byte[] pcm, int len) {
+			for(int i = 0; i + 1 < len; i += 2) {
+				if(length == buffer.length) {
+					start = (start + 1) % buffer.length;
+					length--;
+				}
+				buffer[(start + length) % buffer.length] = (short)((pcm[i] << 8) | (pcm[i + 1] & 0xff));
+				length++;
+			}
+		}
+
+		/**
+		 * Take the next tick of audio into the frame.
+		 *
+		 * @return True if there was audio to mix.
+		 */
+		private boolean take() {
+			if(!speaking && length >= startSamples) {
+				speaking = true;
+			} else if(speaking && length == 0) {
+				speaking = false;
+			}
+			active = speaking;
+			if(!active) {
+				return false;
+			}
+			int n = Math.min(frame.length, length);
+			for(int i = 0; i < n; i++) {
+				frame[i] = buffer[(start + i) % buffer.length];
+			}
+			Arrays.fill(frame, n, frame.length, (short)0);
+			start = (start + n) % buffer.length;
+			length -= n;
+			return true;
+		}
+	}
+
+	/**
+	 * Something waiting to be written to a Client.
+	 */
+	private static class Frame {
+		private final String ins;
+		private final Object payload;
+
+		private Frame(String ins, Object payload) {
+			this.ins = ins;
+			this.payload = payload;
+		}
+
+		private int estimateSize() {
+			if(payload instanceof Message) {
+				return ((Message)payload).estimateSize();
+			}
+			return 64;
+		}
+	}
+
+	/**
+	 * Everything the Server knows about a Client that should survive a lost
+	 * connection: what is waiting to be sent to it, the messages sent to it
+	 * that it has not acknowledged, and which of its own messages have been
+	 * received.
+	 */
+	private class Session {
+		private final String token;
+		private final Outbox<Frame> outbox;
+		private final ArrayDeque<Message> replay;
+		/**
+		 * Held by whichever connection is writing to this Client, so a new
+		 * connection does not start writing until the old one has stopped.
+		 */
+		private final Object writing = new Object();
+		private Client client;
+		private volatile ServerClient connection;
+		private long detachedAt;
+		/**
+		 * The sequence number of the last message written to the Client.
+		 */
+		private long sent = 0;
+		/**
+		 * The origin the Client stamps its messages with.
+		 */
+		private long origin;
+		/**
+		 * The node the Client makes ids with. Guarded by clientMap.
+		 */
+		private int node;
+		/**
+		 * What the Client said it supports when it last connected.
+		 */
+		private volatile int capabilities;
+		/**
+		 * The voice room the Client is in, or null.
+		 */
+		private volatile Room room;
+		/**
+		 * The messages received from the Client, or null before the first.
+		 */
+		private SequenceWindow received;
+
+		private Session(Client client) {
 			this.client = client;
+			token = createToken();
+			outbox = new Outbox<>(Frame::estimateSize);
+			outbox.setLimits(batchMessages, 1, batchBytes);
+			outbox.setLinger(batchLingerMillis, TimeUnit.MILLISECONDS);
+			replay = new ArrayDeque<>();
+		}
+
+		/**
+		 * Queue something to be written to this Client. Anything queued while
+		 * the connection is lost is written once it is resumed.
+		 *
+		 * @param channel The channel to queue it on.
+		 * @param ins The instruction that tells the Client what follows.
+		 * @param payload The object to write after the instruction.
+		 */
+		private void queue(Channel channel, String ins, Object payload) {
+			outbox.add(channel, new Frame(ins, payload));
+		}
+
+		/**
+		 * Number a batch of messages and keep them for replay. This is done
+		 * before they are written, so a batch that is lost along with the
+		 * connection is replayed when the Session is resumed.
+		 *
+		 * @param messages The messages about to be written.
+		 * @return The sequence number of the first message.
+		 */
+		private synchronized long keep(List<Message> messages) {
+			long first = sent + 1;
+			sent += messages.size();
+			replay.addAll(messages);
+			while(replay.size() > replayLimit) {
+				replay.poll();
+			}
+			return first;
+		}
+
+		/**
+		 * Write every kept message the Client has not received.
+		 *
+		 * @param client The Client to write to.
+		 * @param last The sequence number of the last message the Client
+		 * received.
+		 * @throws IOException
+		 */
+		private synchronized void replay(Client client, long last) throws IOException {
+			long oldest = sent - replay.size() + 1;
+			if(last + 1 < oldest) {
+				System.out.println(client.getIDString() + ": " + (oldest - last - 1) + " messages could not be replayed");
+				last = oldest - 1;
+			}
+			if(last >= sent) {
+				return;
+			}
+			Message[] batch = new Message[(int)(sent - last)];
+			Iterator<Message> it = replay.descendingIterator();
+			for(int i = batch.length - 1; i >= 0; i--) {
+				batch[i] = it.next();
+			}
+			client.writeObject("messages", last + 1, null, batch);
+		}
+
+		/**
+		 * Forget the kept messages the Client has acknowledged.
+		 *
+		 * @param ack What the Client has received.
+		 */
+		private synchronized void acknowledge(Ack ack) {
+			while(!replay.isEmpty() && sent - replay.size() + 1 <= ack.cumulative) {
+				replay.poll();
+			}
+		}
+
+		/**
+		 * Drop messages that were already received from this Client, which
+		 * happens when it resends after a lost connection.
+		 *
+		 * @param messages The messages in the order they were sent.
+		 * @return The messages that had not been received before.
+		 */
+		private synchronized Message[] accept(Message[] messages) {
+			ArrayList<Message> fresh = new ArrayList<>(messages.length);
+			for(Message m : messages) {
+				if(m.getOrigin() != origin || m.getSequence() == 0) {
+					fresh.add(m);
+					continue;
+				}
+				if(received == null) {
+					received = new SequenceWindow(m.getSequence() - 1);
+				}
+				if(received.mark(m.getSequence())) {
+					fresh.add(m);
+				}
+			}
+			if(fresh.size() == messages.length) {
+				return messages;
+			}
+			return fresh.toArray(new Message[0]);
+		}
+
+		/**
+		 * @return Everything received from the Client.
+		 */
+		private synchronized Ack toAck() {
+			return received == null ? new Ack(0) : received.toAck();
+		}
+
+		/**
+		 * @return What has been received from the Client since the last Ack,
+		 * or null if nothing new.
+		 */
+		private synchronized Ack pollAck() {
+			return received == null ? null : received.pollAck();
+		}
+	}
+
+	private class ServerClient implements Runnable {
+		private final Socket socket;
+		private Client client;
+		private Session session;
+		private volatile Future<?> writer;
+		private volatile boolean connected = true;
+		private boolean resumed = false;
+		private int compressor = 0;
+
+		private ServerClient(Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Read what the Client wants: a new session, or to resume an earlier
+		 * one. If the earlier session can not be found, a new one is started.
+		 * Either way the Client then says what origin it stamps its messages
+		 * with, the last message it received, its capabilities and the ids
+		 * of the compressors it can read.
+		 *
+		 * @param c The Client for the new connection.
+		 * @return The sequence number of the last message the Client received.
+		 * @throws IOException
+		 */
+		private long handshake(Client c) throws IOException {
+			String token = null;
+			if(c.readUTF().equals("resume")) {
+				token = c.readUTF();
+			}
+			long origin = c.readLong();
+			long last = c.readLong();
+			int capabilities = c.readInt() & Server.capabilities;
+			int[] offered = new int[c.readUnsignedByte()];
+			for(int i = 0; i < offered.length; i++) {
+				offered[i] = c.readUnsignedByte();
+			}
+			Compressor chosen = Compressors.choose(offered, compressors);
+			if(chosen != null) {
+				c.setCompressor(chosen, compressionThreshold);
+				compressor = chosen.getId();
+			}
+			ServerClient old = null;
+			synchronized(clientMap) {
+				Session previous = token == null ? null : tokens.get(token);
+				if(previous != null) {
+					client = new Client(previous.client.id, c);
+					client.setName(previous.client.getName());
+					client.nameChangeProcessed();
+					session = previous;
+					session.origin = origin;
+					session.capabilities = capabilities;
+					old = session.connection;
+					session.connection = this;
+					session.client = client;
+					clientMap.put(client.id, client);
+					resumed = true;
+				}
+			}
+			if(!resumed) {
+				client = c;
+				session = new Session(c);
+				session.origin = origin;
+				session.capabilities = capabilities;
+				session.connection = this;
+				addSession(session);
+				if(token != null) {
+					replayRecent(session);
+				}
+				return 0;
+			}
+			if(old != null) {
+				old.close();
+			}
+			return last;
+		}
+
+		/**
+		 * Write everything queued for this Client until the Outbox is closed
+		 * or the connection is lost. Everything else in a batch is written
+		 * first, then its messages are written together as one numbered
+		 * array along with any acknowledgement that is due. If there is
+		 * nothing to write for a while, a due acknowledgement is written on
+		 * its own.
+		 *
+		 * @param last The sequence number of the last message the Client
+		 * received before this connection.
+		 */
+		private void write(long last) {
+			synchronized(session.writing) {
+				try {
+					session.replay(client, last);
+					ArrayList<Message> messages = new ArrayList<>();
+					while(connected && session.connection == this) {
+						List<Frame> frames = session.outbox.take(ackDelayMillis, TimeUnit.MILLISECONDS);
+						if(frames.isEmpty()) {
+							if(session.outbox.isClosed()) {
+								break;
+							}
+							Ack ack = session.pollAck();
+							if(ack != null) {
+								client.writeObject("ack", ack);
+							}
+							continue;
+						}
+						for(Frame f : frames) {
+							if(f.ins.equals("message")) {
+								messages.add((Message)f.payload);
+							}
+						}
+						long first = session.keep(messages);
+						for(Frame f : frames) {
+							if(!f.ins.equals("message")) {
+								client.writeObject(f.ins, f.payload);
+							}
+						}
+						if(!messages.isEmpty()) {
+							client.writeObject("messages", first, session.pollAck(), messages.toArray(new Message[0]));
+							messages.clear();
+						}
+					}
+				} catch(IOException | RuntimeException ex) {
+					if(connected || ex instanceof RuntimeException) {
+						Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+					}
+					close();
+				} catch(InterruptedException ex) {
+				}
+			}
+		}
+
+		/**
+		 * Close the connection without ending the Session.
+		 */
+		private void close() {
+			connected = false;
+			Future<?> w = writer;
+			if(w != null) {
+				w.cancel(true);
+			}
+			try {
+				socket.close();
+			} catch(IOException ex) {
+				Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+			}
 		}
 
 		@Override
 		public void run() {
+			boolean clean = false;
 			try {
-				System.out.println(client.id + ": connected");
-				client.writeObject(client);
+				long last = handshake(new Client(socket));
+				System.out.println(client.getIDString() + ": connected");
 				synchronized(clientMap) {
+					client.writeObject(client);
+					client.writeObject(new SessionTicket(session.token, session.toAck(), resumed, session.capabilities, session.node, compressor));
 					client.writeObject("clients");
-					client.writeObject(clientMap);
+					client.writeObject(clientMap.values().toArray(new Client[0]));
 				}
+				writer = threadPool.submit(() -> write(last));
 				while(connected) {
 					String ins = client.readUTF();
 					switch(ins) {
 						case "message":
 							try {
-								Message[] messages = (Message[])client.readObject();
+								Ack ack = (Ack)client.readObject();
+								if(ack != null) {
+									session.acknowledge(ack);
+								}
+								Message[] messages = session.accept((Message[])client.readObject());
+								if(messages.length == 0) {
+									break;
+								}
 								client.setName(messages[messages.length - 1].sender.getName());
-								System.out.println(client.id + ": " + client.getName() + " sent " + messages.length + " messages.");
-								sendMessages(messages);
+								System.out.println(client.getIDString() + ": " + client.getName() + " sent " + messages.length + " messages.");
+								sendMessages(messages, session);
+							} catch(ClassNotFoundException ex) {
+								Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+							}
+							break;
+						case "voice":
+							try {
+								AudioFrame f = (AudioFrame)client.readObject();
+								Room r = session.room;
+								if(r != null && r.name.equals(f.room)) {
+									r.receive(session, f);
+								}
+							} catch(ClassNotFoundException ex) {
+								Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+							}
+							break;
+						case "ack":
+							try {
+								session.acknowledge((Ack)client.readObject());
 							} catch(ClassNotFoundException ex) {
 								Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
 							}
 							break;
 						case "disconnect":
 							connected = false;
-							client.getSocket().shutdownOutput();
+							clean = true;
+							socket.shutdownOutput();
 							break;
 					}
 				}
-			} catch(IOException ex) {
-				Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+			} catch(IOException | RuntimeException ex) {
+				//A bad message must not skip the close and detach below.
+				if(connected || ex instanceof RuntimeException) {
+					Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+				}
 			}
-			try {
-				client.getSocket().close();
-			} catch(IOException ex) {
-				Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+			close();
+			connections.remove(this);
+			if(session == null) {
+				return;
+			}
+			boolean detached = false;
+			synchronized(clientMap) {
+				if(session.connection == this) {
+					session.connection = null;
+					session.detachedAt = System.currentTimeMillis();
+					detached = true;
+				}
+			}
+			if(!detached) {
+				System.out.println(client.getIDString() + ": replaced by a resumed connection");
+			} else if(clean) {
+				removeSession(session);
+				System.out.println(client.getIDString() + ": disconnected");
+			} else {
+				System.out.println(client.getIDString() + ": connection lost");
 			}
-			connected = false;
-			removeClient(client);
-			System.out.println(client.id + ": disconnected");
 		}
 	}
 }